@@ -0,0 +1,212 @@
+/*
+ * Copyright 2024 by Eliatra - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://eliatra.com
+ *
+ */
+
+
+package com.eliatra.cloud.lock.index;
+
+import com.eliatra.cloud.lock.lucene.encryption.CeffCryptoMergePolicy;
+import com.eliatra.cloud.lock.lucene.encryption.CeffDirectory;
+import com.eliatra.cloud.lock.plugin.EliatraCloudLockPluginSettings;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.LiveIndexWriterConfig;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FilterDirectory;
+import org.opensearch.common.settings.Settings;
+import org.opensearch.core.index.shard.ShardId;
+import org.opensearch.index.shard.IndexEventListener;
+import org.opensearch.index.shard.IndexShard;
+import org.opensearch.monitor.os.OsProbe;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Accounts the crypto time of the merges of encrypted shards and throttles them by it while the node is CPU saturated,
+ * see {@link CeffCryptoMergePolicy}.
+ *
+ * <p>The merge policy is installed on the index writer by the engine on its first commit, around the migration merge
+ * policy so migrations are accounted as well. Merges are throttled once the CPU usage of the node reaches
+ * index.cloud_lock_merge_cpu_saturation_percent, to a rate at which their crypto time stays within
+ * index.cloud_lock_merge_crypto_cpu_percent of one processor.
+ *
+ * <p>The crypto time of the running and recently finished merges of all shards of this node is reported by
+ * {@link #stats()}.
+ */
+public class CeffMergeService implements IndexEventListener {
+
+    /** The CPU usage of the node is sampled at most this often, throttled merges ask for it on every pause */
+    private static final long CPU_SAMPLE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    protected Logger logger = LogManager.getLogger(getClass());
+    private final Map<ShardId, ShardMerges> shards = new ConcurrentHashMap<>();
+    private volatile long cpuSampleNanos = System.nanoTime() - CPU_SAMPLE_INTERVAL_NANOS;
+    private volatile double cpuLoad = -1;
+
+    @Override
+    public void afterIndexShardCreated(IndexShard indexShard) {
+        final Settings settings = indexShard.indexSettings().getSettings();
+        shards.put(indexShard.shardId(), new ShardMerges(indexShard.shardId(),
+                EliatraCloudLockPluginSettings.INDEX_MERGE_CPU_SATURATION_PERCENT.getFrom(settings) / 100d,
+                cryptoCpuBudget(settings)));
+    }
+
+    @Override
+    public void afterIndexShardClosed(ShardId shardId, IndexShard indexShard, Settings indexSettings) {
+        shards.remove(shardId);
+    }
+
+    /**
+     * Called by the engine before every commit after the migration merge policy was installed, wraps the merge policy
+     * of the writer once.
+     */
+    public void install(ShardId shardId, IndexWriter writer) {
+        final ShardMerges merges = shards.get(shardId);
+        final Directory directory = FilterDirectory.unwrap(writer.getDirectory());
+
+        if (merges == null || !(directory instanceof CeffDirectory)) {
+            return;
+        }
+
+        final LiveIndexWriterConfig config = writer.getConfig();
+
+        if (!(config.getMergePolicy() instanceof CeffCryptoMergePolicy)) {
+            final CeffCryptoMergePolicy mergePolicy = new CeffCryptoMergePolicy(config.getMergePolicy(),
+                    (CeffDirectory) directory, this::cpuLoad, merges.saturatedCpuLoad, merges.cryptoCpuBudget);
+            config.setMergePolicy(mergePolicy);
+            merges.mergePolicy = mergePolicy;
+            logger.debug("Installed crypto merge policy for {}", shardId);
+        }
+    }
+
+    /**
+     * @return the crypto time of the merges of all shards of this node with an installed merge policy
+     */
+    public List<Stats> stats() throws IOException {
+        final List<Stats> result = new ArrayList<>(shards.size());
+
+        for (final ShardMerges merges : shards.values()) {
+            final CeffCryptoMergePolicy mergePolicy = merges.mergePolicy;
+            if (mergePolicy != null) {
+                result.add(new Stats(merges.shardId, mergePolicy));
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @return the processors a merge may keep busy with crypto while the node is saturated
+     */
+    public static double cryptoCpuBudget(Settings indexSettings) {
+        // the setting only accepts positive values
+        return EliatraCloudLockPluginSettings.INDEX_MERGE_CRYPTO_CPU_PERCENT.getFrom(indexSettings) / 100d;
+    }
+
+    /**
+     * @return the CPU usage of the node between 0 and 1 as of the last sample, negative if unknown
+     */
+    double cpuLoad() {
+        final long now = System.nanoTime();
+
+        if (now - cpuSampleNanos >= CPU_SAMPLE_INTERVAL_NANOS) {
+            cpuSampleNanos = now;
+            final short percent = OsProbe.getInstance().getSystemCpuPercent();
+            cpuLoad = percent < 0 ? -1 : percent / 100d;
+        }
+
+        return cpuLoad;
+    }
+
+    private static class ShardMerges {
+        private final ShardId shardId;
+        private final double saturatedCpuLoad;
+        private final double cryptoCpuBudget;
+        private volatile CeffCryptoMergePolicy mergePolicy;
+
+        ShardMerges(ShardId shardId, double saturatedCpuLoad, double cryptoCpuBudget) {
+            this.shardId = shardId;
+            this.saturatedCpuLoad = saturatedCpuLoad;
+            this.cryptoCpuBudget = cryptoCpuBudget;
+        }
+    }
+
+    /**
+     * Crypto time of the merges of a shard since its merge policy was installed.
+     */
+    public static class Stats {
+        private final ShardId shardId;
+        private final long merges;
+        private final long mergeNanos;
+        private final long cryptoNanos;
+        private final long throttledNanos;
+        private final boolean saturated;
+        private final List<CeffCryptoMergePolicy.MergeCryptoStats> runningMerges;
+        private final List<CeffCryptoMergePolicy.MergeCryptoStats> recentMerges;
+
+        Stats(ShardId shardId, CeffCryptoMergePolicy mergePolicy) throws IOException {
+            this.shardId = shardId;
+            this.merges = mergePolicy.getMerges();
+            this.mergeNanos = mergePolicy.getMergeNanos();
+            this.cryptoNanos = mergePolicy.getCryptoNanos();
+            this.throttledNanos = mergePolicy.getThrottledNanos();
+            this.saturated = mergePolicy.isSaturated();
+            this.runningMerges = mergePolicy.getRunningMerges();
+            this.recentMerges = mergePolicy.getRecentMerges();
+        }
+
+        public ShardId getShardId() {
+            return shardId;
+        }
+
+        /**
+         * @return the number of finished merges
+         */
+        public long getMerges() {
+            return merges;
+        }
+
+        public long getMergeNanos() {
+            return mergeNanos;
+        }
+
+        public long getCryptoNanos() {
+            return cryptoNanos;
+        }
+
+        public long getThrottledNanos() {
+            return throttledNanos;
+        }
+
+        /**
+         * @return true if merges are throttled by their crypto time right now
+         */
+        public boolean isSaturated() {
+            return saturated;
+        }
+
+        public List<CeffCryptoMergePolicy.MergeCryptoStats> getRunningMerges() {
+            return runningMerges;
+        }
+
+        public List<CeffCryptoMergePolicy.MergeCryptoStats> getRecentMerges() {
+            return recentMerges;
+        }
+    }
+}
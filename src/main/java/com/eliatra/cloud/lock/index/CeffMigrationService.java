@@ -0,0 +1,331 @@
+/*
+ * Copyright 2024 by Eliatra - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://eliatra.com
+ *
+ */
+
+package com.eliatra.cloud.lock.index;
+
+import com.eliatra.cloud.lock.lucene.encryption.CeffCryptoMergePolicy;
+import com.eliatra.cloud.lock.lucene.encryption.CeffDirectory;
+import com.eliatra.cloud.lock.lucene.encryption.CeffMigrationMergePolicy;
+import com.eliatra.cloud.lock.plugin.EliatraCloudLockPluginSettings;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.index.IndexNotFoundException;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.LiveIndexWriterConfig;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.SegmentCommitInfo;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FilterDirectory;
+import org.apache.lucene.store.RateLimiter;
+import org.opensearch.action.admin.indices.flush.FlushRequest;
+import org.opensearch.action.admin.indices.forcemerge.ForceMergeRequest;
+import org.opensearch.common.settings.Settings;
+import org.opensearch.common.unit.TimeValue;
+import org.opensearch.core.common.unit.ByteSizeValue;
+import org.opensearch.core.index.shard.ShardId;
+import org.opensearch.index.shard.IndexEventListener;
+import org.opensearch.index.shard.IndexShard;
+import org.opensearch.index.shard.IndexShardState;
+import org.opensearch.index.store.Store;
+import org.opensearch.threadpool.Scheduler;
+import org.opensearch.threadpool.ThreadPool;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Migrates the segments of encrypted shards in the background to the current cipher and chunk lengths of their index
+ * and encrypts plain text files left over from mixed mode, see {@link CeffMigrationMergePolicy}.
+ *
+ * <p>The merge policy is installed on the index writer by the engine on its first commit. Shards with another engine
+ * than the one of this plugin, like the replicas of segment replication which copy the segments of their primary, are
+ * never migrated. Every index.cloud_lock_migration_interval each started shard is checked for outdated segments; if there are any and no
+ * segment is being migrated a merge is triggered like a force merge without a segment count does. Finished migrations
+ * are committed by the next check. The migrated segment is written at most at index.cloud_lock_migration_max_bytes_per_sec.
+ *
+ * <p>The progress of all shards of this node is reported by {@link #progress()}.
+ */
+public class CeffMigrationService implements IndexEventListener {
+
+    protected Logger logger = LogManager.getLogger(getClass());
+    private final ThreadPool threadPool;
+    private final Map<ShardId, ShardMigration> shards = new ConcurrentHashMap<>();
+
+    public CeffMigrationService(ThreadPool threadPool) {
+        this.threadPool = threadPool;
+    }
+
+    @Override
+    public void afterIndexShardCreated(IndexShard indexShard) {
+        final Settings settings = indexShard.indexSettings().getSettings();
+
+        if (EliatraCloudLockPluginSettings.INDEX_MIGRATION_ENABLED.getFrom(settings)) {
+            final ByteSizeValue maxBytesPerSec = EliatraCloudLockPluginSettings.INDEX_MIGRATION_MAX_BYTES_PER_SEC.getFrom(settings);
+            shards.put(indexShard.shardId(), new ShardMigration(indexShard, maxBytesPerSec));
+        }
+    }
+
+    @Override
+    public void afterIndexShardStarted(IndexShard indexShard) {
+        final ShardMigration migration = shards.get(indexShard.shardId());
+
+        if (migration != null) {
+            final TimeValue interval = EliatraCloudLockPluginSettings.INDEX_MIGRATION_INTERVAL.getFrom(indexShard.indexSettings().getSettings());
+            migration.task = threadPool.scheduleWithFixedDelay(() -> run(migration), interval, ThreadPool.Names.GENERIC);
+        }
+    }
+
+    @Override
+    public void beforeIndexShardClosed(ShardId shardId, IndexShard indexShard, Settings indexSettings) {
+        final ShardMigration migration = shards.get(shardId);
+
+        if (migration != null && migration.task != null) {
+            migration.task.cancel();
+        }
+    }
+
+    @Override
+    public void afterIndexShardClosed(ShardId shardId, IndexShard indexShard, Settings indexSettings) {
+        shards.remove(shardId);
+    }
+
+    /**
+     * Called when the engine of this plugin was created for the shard, only these shards are migrated.
+     */
+    public void engineCreated(ShardId shardId) {
+        final ShardMigration migration = shards.get(shardId);
+
+        if (migration != null) {
+            migration.engineCreated = true;
+        }
+    }
+
+    /**
+     * Called by the engine before every commit, wraps the merge policy of the writer once.
+     */
+    public void install(ShardId shardId, IndexWriter writer) {
+        final ShardMigration migration = shards.get(shardId);
+        final Directory directory = FilterDirectory.unwrap(writer.getDirectory());
+
+        if (migration == null || !(directory instanceof CeffDirectory)) {
+            return;
+        }
+
+        final LiveIndexWriterConfig config = writer.getConfig();
+        MergePolicy installed = config.getMergePolicy();
+
+        if (installed instanceof CeffCryptoMergePolicy) {
+            // installed around this one by CeffMergeService
+            installed = ((CeffCryptoMergePolicy) installed).unwrap();
+        }
+
+        if (!(installed instanceof CeffMigrationMergePolicy)) {
+            final CeffMigrationMergePolicy mergePolicy =
+                    new CeffMigrationMergePolicy(config.getMergePolicy(), (CeffDirectory) directory, migration.rateLimiter);
+            config.setMergePolicy(mergePolicy);
+            migration.mergePolicy = mergePolicy;
+            logger.debug("Installed migration merge policy for {}", shardId);
+        }
+    }
+
+    /**
+     * @return the progress of all shards of this node with enabled migration
+     */
+    public List<Progress> progress() {
+        final List<Progress> result = new ArrayList<>(shards.size());
+
+        for (final ShardMigration migration : shards.values()) {
+            final CeffMigrationMergePolicy mergePolicy = migration.mergePolicy;
+            result.add(migration.progress.withMigrating(mergePolicy != null && mergePolicy.isMigrating()));
+        }
+
+        return result;
+    }
+
+    private void run(ShardMigration migration) {
+        final IndexShard indexShard = migration.indexShard;
+
+        if (indexShard.state() != IndexShardState.STARTED || !migration.engineCreated) {
+            // another engine never installs the merge policy, flushing would not help
+            return;
+        }
+
+        final Store store = indexShard.store();
+
+        if (!store.tryIncRef()) {
+            return;
+        }
+
+        try {
+            if (migration.mergePolicy == null) {
+                // installed on the first commit
+                indexShard.flush(new FlushRequest().force(true).waitIfOngoing(true));
+
+                if (migration.mergePolicy == null) {
+                    return;
+                }
+            }
+
+            final CeffMigrationMergePolicy mergePolicy = migration.mergePolicy;
+
+            if (mergePolicy.isMigrating()) {
+                return;
+            }
+
+            if (mergePolicy.getMigratedSegments() != migration.committedSegments) {
+                // commit the migrated segments, the outdated ones can be deleted afterwards
+                migration.committedSegments = mergePolicy.getMigratedSegments();
+                migration.recorded = false;
+                indexShard.flush(new FlushRequest().force(false).waitIfOngoing(true));
+            }
+
+            final SegmentInfos segmentInfos;
+
+            try {
+                segmentInfos = SegmentInfos.readLatestCommit(store.directory());
+            } catch (IndexNotFoundException e) {
+                return;
+            }
+
+            int outdatedSegments = 0;
+            long outdatedBytes = 0;
+
+            for (final SegmentCommitInfo info : segmentInfos) {
+                if (mergePolicy.isOutdated(info)) {
+                    outdatedSegments++;
+                    outdatedBytes += info.sizeInBytes();
+                }
+            }
+
+            migration.progress = new Progress(indexShard.shardId(), segmentInfos.size(), outdatedSegments, outdatedBytes,
+                    mergePolicy.getMigratedSegments(), mergePolicy.getMigratedBytes(), null);
+
+            if (outdatedSegments > 0) {
+                // picks up the merge of the migration merge policy
+                indexShard.forceMerge(new ForceMergeRequest().maxNumSegments(ForceMergeRequest.Defaults.MAX_NUM_SEGMENTS).flush(false));
+            } else if (migration.committedSegments > 0 && !migration.recorded && !mergePolicy.getDirectory().isFullyEncrypted()) {
+                // the file format record of a commit still includes the files of the previous commit, the next one marks the
+                // index as fully encrypted once the plain text files are deleted
+                migration.recorded = true;
+                indexShard.flush(new FlushRequest().force(true).waitIfOngoing(true));
+            }
+        } catch (Exception e) {
+            logger.warn("Unable to migrate {}: {}", indexShard.shardId(), e, e);
+            final Progress progress = migration.progress;
+            migration.progress = new Progress(indexShard.shardId(), progress.segments, progress.outdatedSegments,
+                    progress.outdatedBytes, progress.migratedSegments, progress.migratedBytes, e.toString());
+        } finally {
+            store.decRef();
+        }
+    }
+
+    private static class ShardMigration {
+        private final IndexShard indexShard;
+        private final RateLimiter rateLimiter;
+        private volatile boolean engineCreated;
+        private volatile CeffMigrationMergePolicy mergePolicy;
+        private volatile Scheduler.Cancellable task;
+        private volatile long committedSegments;
+        private volatile boolean recorded;
+        private volatile Progress progress;
+
+        ShardMigration(IndexShard indexShard, ByteSizeValue maxBytesPerSec) {
+            this.indexShard = indexShard;
+            this.rateLimiter = new RateLimiter.SimpleRateLimiter(maxBytesPerSec.getBytes() / (1024d * 1024d));
+            this.progress = new Progress(indexShard.shardId(), 0, 0, 0, 0, 0, null);
+        }
+    }
+
+    /**
+     * Migration state of a shard as of its last check. Outdated segments and bytes refer to the last commit.
+     */
+    public static class Progress {
+        private final ShardId shardId;
+        private final int segments;
+        private final int outdatedSegments;
+        private final long outdatedBytes;
+        private final long migratedSegments;
+        private final long migratedBytes;
+        private final String error;
+        private final boolean migrating;
+
+        Progress(ShardId shardId, int segments, int outdatedSegments, long outdatedBytes, long migratedSegments, long migratedBytes,
+                String error) {
+            this.shardId = shardId;
+            this.segments = segments;
+            this.outdatedSegments = outdatedSegments;
+            this.outdatedBytes = outdatedBytes;
+            this.migratedSegments = migratedSegments;
+            this.migratedBytes = migratedBytes;
+            this.error = error;
+            this.migrating = false;
+        }
+
+        private Progress(Progress progress, boolean migrating) {
+            this.shardId = progress.shardId;
+            this.segments = progress.segments;
+            this.outdatedSegments = progress.outdatedSegments;
+            this.outdatedBytes = progress.outdatedBytes;
+            this.migratedSegments = progress.migratedSegments;
+            this.migratedBytes = progress.migratedBytes;
+            this.error = progress.error;
+            this.migrating = migrating;
+        }
+
+        Progress withMigrating(boolean migrating) {
+            return new Progress(this, migrating);
+        }
+
+        public ShardId getShardId() {
+            return shardId;
+        }
+
+        public int getSegments() {
+            return segments;
+        }
+
+        public int getOutdatedSegments() {
+            return outdatedSegments;
+        }
+
+        public long getOutdatedBytes() {
+            return outdatedBytes;
+        }
+
+        public long getMigratedSegments() {
+            return migratedSegments;
+        }
+
+        public long getMigratedBytes() {
+            return migratedBytes;
+        }
+
+        /**
+         * @return true if a segment is being migrated right now
+         */
+        public boolean isMigrating() {
+            return migrating;
+        }
+
+        /**
+         * @return the error of the last check, null if none
+         */
+        public String getError() {
+            return error;
+        }
+    }
+}
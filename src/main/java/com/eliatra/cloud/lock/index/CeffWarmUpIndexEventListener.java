@@ -0,0 +1,83 @@
+/*
+ * Copyright 2024 by Eliatra - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://eliatra.com
+ *
+ */
+
+package com.eliatra.cloud.lock.index;
+
+import com.eliatra.cloud.lock.lucene.encryption.CeffDirectory;
+import com.eliatra.cloud.lock.support.BaseDependencies;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.index.IndexNotFoundException;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FilterDirectory;
+import org.opensearch.index.IndexSettings;
+import org.opensearch.index.shard.IndexEventListener;
+import org.opensearch.index.shard.IndexShard;
+import org.opensearch.index.store.Store;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Opens and verifies all files of the last commit of an encrypted shard in parallel before the shard is recovered
+ * (and therefore before it is started). Otherwise every file is verified when it is opened the first time, typically
+ * by the first searches after a node restart.
+ */
+public class CeffWarmUpIndexEventListener implements IndexEventListener {
+
+    public static final String THREAD_POOL_NAME = "cloud_lock_warmup";
+
+    protected Logger logger = LogManager.getLogger(getClass());
+    private final BaseDependencies baseDependencies;
+
+    public CeffWarmUpIndexEventListener(BaseDependencies baseDependencies) {
+        this.baseDependencies = baseDependencies;
+    }
+
+    @Override
+    public void beforeIndexShardRecovery(IndexShard indexShard, IndexSettings indexSettings) {
+        final Store store = indexShard.store();
+
+        if (!store.tryIncRef()) {
+            return;
+        }
+
+        try {
+            final Directory directory = FilterDirectory.unwrap(store.directory());
+
+            if (!(directory instanceof CeffDirectory)) {
+                return;
+            }
+
+            final Collection<String> files;
+
+            try {
+                files = SegmentInfos.readLatestCommit(directory).files(true);
+            } catch (IndexNotFoundException e) {
+                // new shard or peer recovery without local files, nothing to warm up
+                return;
+            }
+
+            final long start = System.nanoTime();
+            final int verified = ((CeffDirectory) directory).warmUp(files, baseDependencies.getThreadPool().executor(THREAD_POOL_NAME));
+            logger.debug("Verified {} of {} files of {} in {} ms", verified, files.size(), indexShard.shardId(), (System.nanoTime() - start) / 1_000_000);
+        } catch (IOException e) {
+            // not fatal here, the files are verified again when they are opened
+            logger.warn("Unable to warm up {}: {}", indexShard.shardId(), e, e);
+        } finally {
+            store.decRef();
+        }
+    }
+}
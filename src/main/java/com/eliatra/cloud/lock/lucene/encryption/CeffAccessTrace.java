@@ -0,0 +1,320 @@
+/* 
+ * Copyright (C) 2021 by eliatra Ltd. - All Rights Reserved
+ * Unauthorized copying, usage or modification of this file in its source or binary form, 
+ * via any medium is strictly prohibited.
+ * Proprietary and confidential.
+ * 
+ * https://eliatra.com
+ */
+package com.eliatra.cloud.lock.lucene.encryption;
+
+
+import org.apache.lucene.store.IOContext;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Opt-in recorder of the chunks loaded by {@link CeffIndexInput}s. Inputs are sampled when they
+ * are opened (all clones and slices of a sampled input are traced), every chunk a traced input
+ * loads is recorded in a bounded ring buffer which overwrites the oldest entries.
+ *
+ * <p>The trace is meant for sizing caches and chunk lengths. Entries written concurrently with
+ * {@link #dump(OutputStream)} may be torn, this is accepted in favour of lock free recording.
+ */
+public final class CeffAccessTrace {
+
+  /** "CEFT" */
+  public static final int MAGIC = 0x43454654;
+
+  public static final int VERSION = 1;
+
+  /** Set if the input was opened with {@link IOContext#READONCE} */
+  public static final int CONTEXT_READ_ONCE_FLAG = 0x10;
+
+  private static volatile CeffAccessTrace instance;
+
+  private final int capacity;
+  private final int sampleOneIn;
+  private final AtomicLong next = new AtomicLong();
+  private final long[] timestamps;
+  private final long[] chunks;
+  private final long[] threads;
+  private final int[] files;
+  private final int[] chunkLengths;
+  private final short[] extensions;
+  private final byte[] contexts;
+  private final Map<String, Short> extensionIds = new ConcurrentHashMap<>();
+  private final List<String> extensionNames = Collections.synchronizedList(new ArrayList<>());
+
+  private CeffAccessTrace(int capacity, int sampleOneIn) {
+    this.capacity = capacity;
+    this.sampleOneIn = sampleOneIn;
+    this.timestamps = new long[capacity];
+    this.chunks = new long[capacity];
+    this.threads = new long[capacity];
+    this.files = new int[capacity];
+    this.chunkLengths = new int[capacity];
+    this.extensions = new short[capacity];
+    this.contexts = new byte[capacity];
+  }
+
+  /**
+   * Start a new trace, an existing trace is discarded.
+   *
+   * @param capacity Maximum number of entries, 0 disables tracing
+   * @param sampleOneIn Trace one of sampleOneIn opened inputs, 1 traces all inputs
+   */
+  public static void configure(int capacity, int sampleOneIn) {
+    if (capacity < 0 || sampleOneIn < 1) {
+      throw new IllegalArgumentException(
+          "capacity must be >= 0 and sampleOneIn >= 1 but was " + capacity + "/" + sampleOneIn);
+    }
+
+    instance = capacity == 0 ? null : new CeffAccessTrace(capacity, sampleOneIn);
+  }
+
+  /** @return true if tracing is enabled */
+  public static boolean isEnabled() {
+    return instance != null;
+  }
+
+  /**
+   * Decide if an opened input is traced.
+   *
+   * @param fileId Identifies the physical file, for example a hash of the path
+   * @param fileName Name of the file, only the extension is recorded
+   * @param context Context the input was opened with
+   * @param chunkLength Chunk length of the file
+   * @return null if the input is not traced
+   */
+  static FileTrace sample(int fileId, String fileName, IOContext context, int chunkLength) {
+    final CeffAccessTrace trace = instance;
+
+    if (trace == null
+        || (trace.sampleOneIn > 1 && ThreadLocalRandom.current().nextInt(trace.sampleOneIn) != 0)) {
+      return null;
+    }
+
+    final int dot = fileName.lastIndexOf('.');
+    final String extension = dot < 0 ? "" : fileName.substring(dot + 1);
+    final byte contextId =
+        (byte) (context.context.ordinal() | (context.readOnce ? CONTEXT_READ_ONCE_FLAG : 0));
+    return new FileTrace(trace, fileId, trace.extensionId(extension), contextId, chunkLength);
+  }
+
+  private short extensionId(String extension) {
+    return this.extensionIds.computeIfAbsent(
+        extension,
+        e -> {
+          synchronized (this.extensionNames) {
+            this.extensionNames.add(e);
+            return (short) (this.extensionNames.size() - 1);
+          }
+        });
+  }
+
+  private void record(FileTrace file, long chunk) {
+    final int i = (int) (this.next.getAndIncrement() % this.capacity);
+    this.timestamps[i] = System.nanoTime();
+    this.chunks[i] = chunk;
+    this.threads[i] = Thread.currentThread().getId();
+    this.files[i] = file.fileId;
+    this.chunkLengths[i] = file.chunkLength;
+    this.extensions[i] = file.extensionId;
+    this.contexts[i] = file.contextId;
+  }
+
+  /**
+   * Write the current trace, oldest entries first.
+   *
+   * @param out Stream to write to, not closed
+   * @return false if tracing is not enabled (nothing was written)
+   */
+  public static boolean dump(OutputStream out) throws IOException {
+    final CeffAccessTrace trace = instance;
+
+    if (trace == null) {
+      return false;
+    }
+
+    final long end = trace.next.get();
+    final long start = Math.max(0, end - trace.capacity);
+    final DataOutputStream dout = new DataOutputStream(out);
+    final List<String> names;
+
+    synchronized (trace.extensionNames) {
+      names = new ArrayList<>(trace.extensionNames);
+    }
+
+    dout.writeInt(MAGIC);
+    dout.writeInt(VERSION);
+    dout.writeShort(names.size());
+
+    for (final String name : names) {
+      dout.writeUTF(name);
+    }
+
+    dout.writeInt((int) (end - start));
+
+    for (long k = start; k < end; k++) {
+      final int i = (int) (k % trace.capacity);
+      dout.writeLong(trace.timestamps[i]);
+      dout.writeInt(trace.files[i]);
+      dout.writeShort(trace.extensions[i]);
+      dout.writeByte(trace.contexts[i]);
+      dout.writeLong(trace.threads[i]);
+      dout.writeInt(trace.chunkLengths[i]);
+      dout.writeLong(trace.chunks[i]);
+    }
+
+    dout.flush();
+    return true;
+  }
+
+  /**
+   * Read a trace written by {@link #dump(OutputStream)}.
+   *
+   * @param in Stream to read from, not closed
+   * @return the entries, oldest first
+   * @throws IOException if the stream does not contain a trace
+   */
+  public static List<Entry> read(InputStream in) throws IOException {
+    final DataInputStream din = new DataInputStream(in);
+
+    if (din.readInt() != MAGIC) {
+      throw new IOException("Not an access trace");
+    }
+
+    final int version = din.readInt();
+
+    if (version != VERSION) {
+      throw new IOException("Unsupported access trace version " + version);
+    }
+
+    final String[] names = new String[din.readShort()];
+
+    for (int k = 0; k < names.length; k++) {
+      names[k] = din.readUTF();
+    }
+
+    final int count = din.readInt();
+    final List<Entry> entries = new ArrayList<>(count);
+
+    for (int k = 0; k < count; k++) {
+      final long timestamp = din.readLong();
+      final int file = din.readInt();
+      final short extension = din.readShort();
+      final byte context = din.readByte();
+      final long thread = din.readLong();
+      final int chunkLength = din.readInt();
+      final long chunk = din.readLong();
+
+      if (extension < 0 || extension >= names.length) {
+        throw new EOFException("Corrupted access trace entry " + k);
+      }
+
+      entries.add(
+          new Entry(timestamp, file, names[extension], context, thread, chunkLength, chunk));
+    }
+
+    return entries;
+  }
+
+  /** Trace handle of a sampled input, shared with its clones and slices */
+  static final class FileTrace {
+
+    private final CeffAccessTrace trace;
+    private final int fileId;
+    private final short extensionId;
+    private final byte contextId;
+    private final int chunkLength;
+
+    private FileTrace(
+        CeffAccessTrace trace, int fileId, short extensionId, byte contextId, int chunkLength) {
+      this.trace = trace;
+      this.fileId = fileId;
+      this.extensionId = extensionId;
+      this.contextId = contextId;
+      this.chunkLength = chunkLength;
+    }
+
+    void record(long chunk) {
+      this.trace.record(this, chunk);
+    }
+  }
+
+  /** One recorded chunk load */
+  public static final class Entry {
+
+    private final long timestamp;
+    private final int file;
+    private final String extension;
+    private final byte context;
+    private final long thread;
+    private final int chunkLength;
+    private final long chunk;
+
+    Entry(
+        long timestamp,
+        int file,
+        String extension,
+        byte context,
+        long thread,
+        int chunkLength,
+        long chunk) {
+      this.timestamp = timestamp;
+      this.file = file;
+      this.extension = extension;
+      this.context = context;
+      this.thread = thread;
+      this.chunkLength = chunkLength;
+      this.chunk = chunk;
+    }
+
+    /** @return {@link System#nanoTime()} when the chunk was loaded */
+    public long getTimestamp() {
+      return this.timestamp;
+    }
+
+    /** @return identifies the physical file */
+    public int getFile() {
+      return this.file;
+    }
+
+    public String getExtension() {
+      return this.extension;
+    }
+
+    /**
+     * @return ordinal of {@link IOContext.Context}, or'ed with {@link #CONTEXT_READ_ONCE_FLAG}
+     */
+    public byte getContext() {
+      return this.context;
+    }
+
+    public long getThread() {
+      return this.thread;
+    }
+
+    public int getChunkLength() {
+      return this.chunkLength;
+    }
+
+    /** @return the absolute chunk number */
+    public long getChunk() {
+      return this.chunk;
+    }
+  }
+}
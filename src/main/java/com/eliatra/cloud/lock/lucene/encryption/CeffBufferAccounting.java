@@ -0,0 +1,170 @@
+/* 
+ * Copyright (C) 2021 by eliatra Ltd. - All Rights Reserved
+ * Unauthorized copying, usage or modification of this file in its source or binary form, 
+ * via any medium is strictly prohibited.
+ * Proprietary and confidential.
+ * 
+ * https://eliatra.com
+ */
+package com.eliatra.cloud.lock.lucene.encryption;
+
+
+import java.lang.ref.Cleaner;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Accounting of the heap buffers held by Ceff inputs (including clones and slices) and outputs.
+ * Clones are only accounted once they load a chunk, so that cloning never fails. Clones and
+ * slices are never closed, their reservations are released once they are garbage collected.
+ * Without an {@link Accountant} nothing is tracked.
+ */
+public final class CeffBufferAccounting {
+
+  /** Receives the reservations, typically backed by a circuit breaker */
+  public interface Accountant {
+
+    /**
+     * Reserve bytes.
+     *
+     * @param bytes Number of bytes to reserve
+     * @param label Description of the reservation
+     * @throws RuntimeException if the bytes can not be reserved
+     */
+    void reserve(long bytes, String label);
+
+    /**
+     * Release previously reserved bytes.
+     *
+     * @param bytes Number of bytes to release
+     */
+    void release(long bytes);
+  }
+
+  private static volatile Accountant accountant;
+  private static volatile Cleaner cleaner;
+
+  private CeffBufferAccounting() {
+    super();
+  }
+
+  /**
+   * Set the accountant for all inputs and outputs created from now on. Existing reservations
+   * are released to the accountant they were made with.
+   *
+   * @param accountant0 The accountant or null to disable accounting
+   */
+  public static void setAccountant(Accountant accountant0) {
+    accountant = accountant0;
+  }
+
+  /**
+   * Create a reservation for owner and reserve bytes.
+   *
+   * @throws RuntimeException if the bytes can not be reserved
+   */
+  static Reservation reserve(Object owner, long bytes, String label) {
+    final Accountant accountant0 = accountant;
+
+    if (accountant0 == null) {
+      return Reservation.NONE;
+    }
+
+    accountant0.reserve(bytes, label);
+    final Reservation reservation = new Reservation(accountant0, bytes);
+    reservation.cleanable = cleaner().register(owner, reservation.state);
+    return reservation;
+  }
+
+  private static Cleaner cleaner() {
+    Cleaner result = cleaner;
+
+    if (result == null) {
+      synchronized (CeffBufferAccounting.class) {
+        result = cleaner;
+        if (result == null) {
+          result =
+              AccessController.doPrivileged(
+                  (PrivilegedAction<Cleaner>)
+                      () ->
+                          Cleaner.create(
+                              r -> {
+                                final Thread t = new Thread(r, "ceff-buffer-cleaner");
+                                t.setDaemon(true);
+                                return t;
+                              }));
+          cleaner = result;
+        }
+      }
+    }
+
+    return result;
+  }
+
+  /** Bytes reserved for one input or output */
+  static final class Reservation {
+
+    static final Reservation NONE = new Reservation(null, 0);
+
+    private final State state;
+    private Cleaner.Cleanable cleanable;
+
+    private Reservation(Accountant accountant0, long bytes) {
+      this.state = new State(accountant0, bytes);
+    }
+
+    /**
+     * Reserve additional bytes, for example for a grown buffer.
+     *
+     * @return false if the bytes can not be reserved, the caller then has to do without
+     */
+    boolean tryReserve(long bytes, String label) {
+      try {
+        this.reserve(bytes, label);
+      } catch (final RuntimeException e) {
+        return false;
+      }
+
+      return true;
+    }
+
+    /**
+     * Reserve additional bytes the caller can not do without.
+     *
+     * @throws RuntimeException if the bytes can not be reserved
+     */
+    void reserve(long bytes, String label) {
+      if (this.state.accountant == null) {
+        return;
+      }
+
+      this.state.accountant.reserve(bytes, label);
+      this.state.reserved.addAndGet(bytes);
+    }
+
+    /** Release all bytes, later calls have no effect */
+    void release() {
+      if (this.cleanable != null) {
+        this.cleanable.clean();
+      }
+    }
+
+    /** Must not reference the owner, otherwise it never becomes phantom reachable */
+    private static final class State implements Runnable {
+
+      private final Accountant accountant;
+      private final AtomicLong reserved;
+
+      private State(Accountant accountant, long bytes) {
+        this.accountant = accountant;
+        this.reserved = new AtomicLong(bytes);
+      }
+
+      @Override
+      public void run() {
+        this.accountant.release(this.reserved.getAndSet(0));
+      }
+    }
+  }
+}
@@ -0,0 +1,91 @@
+/* 
+ * Copyright (C) 2021 by eliatra Ltd. - All Rights Reserved
+ * Unauthorized copying, usage or modification of this file in its source or binary form, 
+ * via any medium is strictly prohibited.
+ * Proprietary and confidential.
+ * 
+ * https://eliatra.com
+ */
+package com.eliatra.cloud.lock.lucene.encryption;
+
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.ByteArrayDataOutput;
+import org.apache.lucene.util.compress.LZ4;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * LZ4 compression of single chunks before they are encrypted. Cipher text can not be compressed
+ * by the file system or the storage layer, so this is the only place where compression still
+ * saves disk space and page cache. A chunk is only stored compressed if this saves at least an
+ * eighth of its length, otherwise decompressing it is not worth it.
+ *
+ * <p>Not thread safe, every writer (or slot of a pipelined writer) has its own instance.
+ */
+final class CeffChunkCompression {
+
+  /** Approximate heap used by the LZ4 hash table */
+  static final int HASH_TABLE_BYTES = 64 * 1024;
+
+  private final LZ4.FastCompressionHashTable hashTable = new LZ4.FastCompressionHashTable();
+  private final byte[] compressed;
+
+  CeffChunkCompression(int chunkLength) {
+    this.compressed = new byte[maxCompressedLength(chunkLength)];
+  }
+
+  /** @return the worst case length of length bytes compressed with LZ4 */
+  static int maxCompressedLength(int length) {
+    return length + length / 255 + 16;
+  }
+
+  /** @return the heap used by an instance for the given chunk length */
+  static long ramBytesUsed(int chunkLength) {
+    return maxCompressedLength(chunkLength) + (long) HASH_TABLE_BYTES;
+  }
+
+  /**
+   * Compress the remaining bytes of plainText, which must be backed by an array. Its position is
+   * not changed.
+   *
+   * @return the compressed bytes (valid until the next call), null if the chunk is stored as it is
+   */
+  ByteBuffer compress(ByteBuffer plainText) throws IOException {
+    final int length = plainText.remaining();
+    final ByteArrayDataOutput out = new ByteArrayDataOutput(this.compressed);
+    LZ4.compress(
+        plainText.array(),
+        plainText.arrayOffset() + plainText.position(),
+        length,
+        out,
+        this.hashTable);
+
+    if (out.getPosition() > length - length / 8) {
+      return null;
+    }
+
+    return ByteBuffer.wrap(this.compressed, 0, out.getPosition());
+  }
+
+  /**
+   * Decompress a chunk
+   *
+   * @param plainLength The plain text length of the chunk, dest must have room for it
+   * @throws IOException if the compressed data is invalid
+   */
+  static void decompress(byte[] compressed, int offset, int length, int plainLength, byte[] dest)
+      throws IOException {
+    final ByteArrayDataInput in = new ByteArrayDataInput(compressed, offset, length);
+    final int decompressed;
+    try {
+      decompressed = LZ4.decompress(in, plainLength, dest, 0);
+    } catch (final ArrayIndexOutOfBoundsException e) {
+      throw new IOException("Invalid compressed chunk", e);
+    }
+    if (decompressed != plainLength || !in.eof()) {
+      throw new IOException(
+          "Invalid compressed chunk: " + decompressed + " instead of " + plainLength + " bytes");
+    }
+  }
+}
@@ -0,0 +1,86 @@
+/* 
+ * Copyright (C) 2021 by eliatra Ltd. - All Rights Reserved
+ * Unauthorized copying, usage or modification of this file in its source or binary form, 
+ * via any medium is strictly prohibited.
+ * Proprietary and confidential.
+ * 
+ * https://eliatra.com
+ */
+package com.eliatra.cloud.lock.lucene.encryption;
+
+import org.apache.lucene.store.ByteBuffersDataInput;
+import org.apache.lucene.store.ByteBuffersIndexInput;
+import org.apache.lucene.store.IndexInput;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collections;
+
+/**
+ * Layout of tiny files (field infos, metadata files): HEADER, CIPHER(plain text + tag). The
+ * whole plain text is encrypted at once with nonce 0 and its length as AAD, so there is no
+ * chunk framing, no footer and no signature. The AEAD tag alone covers the integrity of the
+ * file, the header key derivation binds it to its salt.
+ */
+final class CeffCompactFile {
+
+  private CeffCompactFile() {
+    super();
+  }
+
+  /** @return the AAD of a compact file with the given plain text length */
+  static ByteBuffer aad(long plainTextLength) {
+    // little endian like all other AAD, see CeffIndexOutput
+    final ByteBuffer aad = ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    aad.putLong(plainTextLength);
+    aad.flip();
+    return aad;
+  }
+
+  /** @return the nonce of a compact file, the file key is unique per file */
+  static byte[] nonce(CeffMode mode) {
+    return new byte[mode.getNonceLength()];
+  }
+
+  /**
+   * Decrypt a compact file into memory
+   *
+   * @param in Positioned right after the header
+   * @param header The header of the file
+   * @param resourceDescription Description of the returned input
+   * @throws IOException if the file was tampered with or the delegate throws an IOException
+   */
+  static IndexInput open(IndexInput in, CeffHeader header, String resourceDescription)
+      throws IOException {
+    final CeffMode mode = header.getMode();
+    final long cipherLength = in.length() - header.length();
+
+    if (cipherLength < mode.getTagLength()
+        || cipherLength - mode.getTagLength() > CeffUtils.CHUNK_SIZE_MIN) {
+      throw new IOException(
+          new CeffCryptoException("Invalid compact file length: " + in.length(), mode));
+    }
+
+    final byte[] cipherText = new byte[(int) cipherLength];
+    in.readBytes(cipherText, 0, cipherText.length);
+
+    final byte[] plainText;
+    try {
+      plainText =
+          mode.decrypt(
+              ByteBuffer.wrap(cipherText),
+              aad(cipherLength - mode.getTagLength()),
+              header.getKey(),
+              nonce(mode));
+    } catch (final CeffCryptoException e) {
+      throw new IOException(e);
+    }
+
+    return new ByteBuffersIndexInput(
+        new ByteBuffersDataInput(
+            Collections.singletonList(
+                ByteBuffer.wrap(plainText).order(ByteOrder.LITTLE_ENDIAN))),
+        "Ceff compact " + resourceDescription);
+  }
+}
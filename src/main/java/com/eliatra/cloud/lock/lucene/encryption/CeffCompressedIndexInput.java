@@ -0,0 +1,446 @@
+/* 
+ * Copyright (C) 2021 by eliatra Ltd. - All Rights Reserved
+ * Unauthorized copying, usage or modification of this file in its source or binary form, 
+ * via any medium is strictly prohibited.
+ * Proprietary and confidential.
+ * 
+ * https://eliatra.com
+ */
+package com.eliatra.cloud.lock.lucene.encryption;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.store.IndexInput;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Reads files whose chunks were compressed before they were encrypted ({@link
+ * CeffUtils#FLAG_COMPRESSED}). Layout: HEADER, [AAD + CIPHER]*, TABLE, FOOTER.
+ *
+ * <ul>
+ *   <li>A chunk is compressed if {@link CeffUtils#COMPRESSED_CHUNK_BIT} is set in the chunk
+ *       number of its AAD, so the flag is authenticated along with the chunk. The nonce is the
+ *       chunk number without the bit.
+ *   <li>TABLE holds the physical length (AAD and cipher text) of every chunk as little endian
+ *       ints, so that a chunk can be found without reading the chunks before it.
+ *   <li>The signature in the FOOTER covers the AAD of all chunks in order followed by TABLE.
+ * </ul>
+ *
+ * <p>The plain text length of every chunk but the last is the chunk length, positions are
+ * mapped to chunks like for uncompressed files. Chunks are loaded when they are read, not when
+ * they are seeked to.
+ */
+final class CeffCompressedIndexInput extends IndexInput {
+
+  /** Shared by the input, its clones and slices */
+  private static final class FileState {
+
+    private final byte[] key;
+    private final CeffMode mode;
+    private final int chunkLength;
+    private final long plainLength;
+    /** physical start of every chunk, followed by the start of the table */
+    private final long[] offsets;
+
+    private FileState(
+        byte[] key, CeffMode mode, int chunkLength, long plainLength, long[] offsets) {
+      this.key = key;
+      this.mode = mode;
+      this.chunkLength = chunkLength;
+      this.plainLength = plainLength;
+      this.offsets = offsets;
+    }
+
+    private int chunkCount() {
+      return this.offsets.length - 1;
+    }
+
+    /** @return the plain text length of the chunk, only the last one may be shorter */
+    private int plainLength(int chunk) {
+      return (int) Math.min(this.chunkLength, this.plainLength - (long) chunk * this.chunkLength);
+    }
+  }
+
+  private final FileState file;
+  private IndexInput delegate;
+  private final boolean isClone;
+  /** plain text offset and length of a slice, 0 and the file length otherwise */
+  private final long sliceOffset;
+  private final long length;
+
+  private byte[] buffer;
+  private byte[] readBuffer;
+  private final ByteBuffer aadBuffer =
+      ByteBuffer.allocate(CeffUtils.AAD_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+  private CeffBufferAccounting.Reservation reservation;
+  /** the chunk in the buffer, -1 if none */
+  private int loadedChunk = -1;
+  private int bufferPosition;
+  /** end of the readable part of the buffer, capped at the end of a slice */
+  private int bufferLimit;
+  private long filePointer;
+
+  private CeffCompressedIndexInput(
+      String resourceDescription,
+      IndexInput delegate,
+      FileState file,
+      boolean isClone,
+      long sliceOffset,
+      long length) {
+    super(resourceDescription);
+    this.delegate = delegate;
+    this.file = file;
+    this.isClone = isClone;
+    this.sliceOffset = sliceOffset;
+    this.length = length;
+    this.allocateBuffers();
+  }
+
+  /**
+   * Open a compressed file
+   *
+   * @param delegate The physical file, positioned right after the header
+   * @param header The header of the file, must be compressed
+   * @param alreadyVerified true if the same file was already verified by another input, the
+   *     signature is then not validated again. The footer and the table are always
+   *     authenticated, every chunk when it is decrypted.
+   * @throws IOException also in case the file was tampered with
+   */
+  static CeffCompressedIndexInput open(
+      IndexInput delegate, CeffHeader header, boolean alreadyVerified) throws IOException {
+    assert header.isCompressed();
+    final CeffMode mode = header.getMode();
+    final long physicalLength = delegate.length();
+    final long footerStart = physicalLength - CeffUtils.footerLength(mode);
+
+    try {
+      if (footerStart < header.length()) {
+        throw new CeffCryptoException("Invalid compressed file length: " + physicalLength, mode);
+      }
+
+      delegate.seek(footerStart);
+      final long chunkLength = delegate.readLong();
+      final long lastChunk = delegate.readLong();
+      final long plainLength = delegate.readLong();
+
+      if (chunkLength < CeffUtils.CHUNK_SIZE_MIN
+          || chunkLength > CeffUtils.CHUNK_SIZE_MAX
+          || lastChunk < 0
+          || lastChunk >= Integer.MAX_VALUE / Integer.BYTES
+          || plainLength < lastChunk * chunkLength
+          || plainLength > (lastChunk + 1) * chunkLength) {
+        throw new CeffCryptoException("Invalid footer of compressed file", mode);
+      }
+
+      final ByteBuffer footerAad =
+          ByteBuffer.allocate(CeffUtils.AAD_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+      footerAad.putLong(chunkLength);
+      footerAad.putLong(lastChunk);
+      footerAad.putLong(plainLength);
+      footerAad.flip();
+
+      final byte[] sigCipher = new byte[CeffUtils.SIGNATURE_LENGTH + mode.getTagLength()];
+      delegate.readBytes(sigCipher, 0, sigCipher.length);
+      final byte[] signature =
+          mode.decrypt(
+              ByteBuffer.wrap(sigCipher),
+              footerAad,
+              header.getKey(),
+              CeffUtils.longToNonce(lastChunk + 1, mode.getNonceLength()));
+
+      // the table precedes the footer, every chunk has at least its aad and tag
+      final int chunkCount = (int) (lastChunk + 1);
+      final long tableStart = footerStart - (long) chunkCount * Integer.BYTES;
+      if (tableStart < header.length() + (long) chunkCount * CeffUtils.cryptoLength(mode)) {
+        throw new CeffCryptoException("Invalid compressed file length: " + physicalLength, mode);
+      }
+
+      final byte[] table = new byte[chunkCount * Integer.BYTES];
+      delegate.seek(tableStart);
+      delegate.readBytes(table, 0, table.length);
+
+      final ByteBuffer tableBuffer = ByteBuffer.wrap(table).order(ByteOrder.LITTLE_ENDIAN);
+      final long[] offsets = new long[chunkCount + 1];
+      offsets[0] = header.length();
+      for (int k = 0; k < chunkCount; k++) {
+        final int chunkPhysicalLength = tableBuffer.getInt();
+        if (chunkPhysicalLength < CeffUtils.cryptoLength(mode)
+            || chunkPhysicalLength > CeffUtils.cryptoLength(mode) + chunkLength) {
+          throw new CeffCryptoException("Invalid chunk table of compressed file", mode);
+        }
+        offsets[k + 1] = offsets[k] + chunkPhysicalLength;
+      }
+      if (offsets[chunkCount] != tableStart) {
+        throw new CeffCryptoException("Invalid chunk table of compressed file", mode);
+      }
+
+      // scan file and validate signature, the table is authenticated only by the signature
+      if (!alreadyVerified) {
+        final MessageDigest sha512md;
+        try {
+          sha512md = MessageDigest.getInstance(CeffUtils.SHA512_DIGEST_ALGO);
+        } catch (final NoSuchAlgorithmException e) {
+          // cannot happen
+          throw new RuntimeException(e);
+        }
+
+        final byte[] aad = new byte[CeffUtils.AAD_LENGTH];
+        final ByteBuffer aadBuffer = ByteBuffer.wrap(aad).order(ByteOrder.LITTLE_ENDIAN);
+        for (int k = 0; k < chunkCount; k++) {
+          delegate.seek(offsets[k]);
+          delegate.readBytes(aad, 0, aad.length);
+          sha512md.update(aad);
+
+          if ((aadBuffer.getLong(0) & ~CeffUtils.COMPRESSED_CHUNK_BIT) != k) {
+            throw new CeffCryptoException("verification failed: chunk number mismatch", mode);
+          }
+        }
+        sha512md.update(table);
+
+        if (!Arrays.equals(signature, sha512md.digest())) {
+          throw new CeffCryptoException("verification failed: signature mismatch", mode);
+        }
+      }
+
+      final FileState file =
+          new FileState(header.getKey(), mode, (int) chunkLength, plainLength, offsets);
+      return new CeffCompressedIndexInput(
+          "Ceff " + delegate.toString(), delegate, file, false, 0L, plainLength);
+    } catch (final CeffCryptoException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private void allocateBuffers() {
+    this.buffer = new byte[this.file.chunkLength];
+    this.readBuffer = new byte[this.file.chunkLength + CeffUtils.cryptoLength(this.file.mode)];
+    if (!this.isClone) {
+      // the offsets are accounted for with the input which read them
+      this.reservation =
+          CeffBufferAccounting.reserve(
+              this,
+              this.buffer.length
+                  + this.readBuffer.length
+                  + (long) this.file.offsets.length * Long.BYTES,
+              this.toString());
+    }
+  }
+
+  /** Clones and slices are only accounted once they load a chunk, clone() can not fail */
+  private void reserveBuffers() {
+    if (this.reservation == null) {
+      this.reservation =
+          CeffBufferAccounting.reserve(
+              this, this.buffer.length + this.readBuffer.length, this.toString());
+    }
+  }
+
+  /** @return the chunk length of the file */
+  int getChunkLength() {
+    return this.file.chunkLength;
+  }
+
+  /** @return the number of the last chunk of the file */
+  long getLastChunk() {
+    return this.file.chunkCount() - 1;
+  }
+
+  /** Decrypt and, if compressed, decompress the chunk into the buffer */
+  private void loadChunk(int chunk) throws IOException {
+    this.reserveBuffers();
+    final int physicalLength =
+        (int) (this.file.offsets[chunk + 1] - this.file.offsets[chunk]);
+    this.delegate.seek(this.file.offsets[chunk]);
+    this.delegate.readBytes(this.readBuffer, 0, physicalLength);
+
+    this.aadBuffer.clear();
+    this.aadBuffer.put(this.readBuffer, 0, CeffUtils.AAD_LENGTH);
+    this.aadBuffer.flip();
+    final long chunkNumber = this.aadBuffer.getLong(0);
+    final boolean compressed = (chunkNumber & CeffUtils.COMPRESSED_CHUNK_BIT) != 0;
+    final int plainLength = this.file.plainLength(chunk);
+    final CeffCryptoClock.Account account = CeffCryptoClock.current();
+    final long start = CeffCryptoClock.start(account);
+
+    try {
+      if ((chunkNumber & ~CeffUtils.COMPRESSED_CHUNK_BIT) != chunk) {
+        throw new CeffCryptoException("chunk number mismatch", this.file.mode);
+      }
+
+      final byte[] plainText =
+          this.file.mode.decrypt(
+              ByteBuffer.wrap(
+                      this.readBuffer,
+                      CeffUtils.AAD_LENGTH,
+                      physicalLength - CeffUtils.AAD_LENGTH)
+                  .asReadOnlyBuffer(),
+              this.aadBuffer,
+              this.file.key,
+              CeffUtils.longToNonce(chunk, this.file.mode.getNonceLength()));
+
+      // authenticated, a mismatch can only be caused by a bug of the writer
+      if (compressed) {
+        CeffChunkCompression.decompress(
+            plainText, 0, plainText.length, plainLength, this.buffer);
+      } else if (plainText.length != plainLength) {
+        throw new CeffCryptoException("chunk length mismatch", this.file.mode);
+      } else {
+        System.arraycopy(plainText, 0, this.buffer, 0, plainLength);
+      }
+    } catch (final CeffCryptoException e) {
+      this.loadedChunk = -1;
+      throw new IOException(e);
+    } finally {
+      CeffCryptoClock.stop(account, start);
+    }
+
+    this.loadedChunk = chunk;
+  }
+
+  /** Position the buffer for pos if it holds the chunk of pos, mark it as exhausted otherwise */
+  private void position(long pos) {
+    this.filePointer = pos;
+    final long absolute = this.sliceOffset + pos;
+    final long chunkStart = (long) this.loadedChunk * this.file.chunkLength;
+
+    if (this.loadedChunk >= 0
+        && absolute >= chunkStart
+        && absolute < chunkStart + this.file.plainLength(this.loadedChunk)) {
+      this.bufferPosition = (int) (absolute - chunkStart);
+      this.bufferLimit =
+          (int)
+              Math.min(
+                  this.file.plainLength(this.loadedChunk),
+                  this.sliceOffset + this.length - chunkStart);
+    } else {
+      this.bufferPosition = 0;
+      this.bufferLimit = 0;
+    }
+  }
+
+  /** Load the chunk of the file pointer */
+  private void refill() throws IOException {
+    if (this.filePointer >= this.length) {
+      throw new EOFException("read past EOF: " + this);
+    }
+    this.loadChunk((int) ((this.sliceOffset + this.filePointer) / this.file.chunkLength));
+    this.position(this.filePointer);
+  }
+
+  @Override
+  public byte readByte() throws IOException {
+    if (this.bufferPosition == this.bufferLimit) {
+      this.refill();
+    }
+    this.filePointer++;
+    return this.buffer[this.bufferPosition++];
+  }
+
+  @Override
+  public void readBytes(byte[] b, int offset, int len) throws IOException {
+    while (len > 0) {
+      if (this.bufferPosition == this.bufferLimit) {
+        this.refill();
+      }
+      final int n = Math.min(len, this.bufferLimit - this.bufferPosition);
+      System.arraycopy(this.buffer, this.bufferPosition, b, offset, n);
+      this.bufferPosition += n;
+      this.filePointer += n;
+      offset += n;
+      len -= n;
+    }
+  }
+
+  @Override
+  public void seek(long pos) throws IOException {
+    if (pos < 0) {
+      throw new EOFException("invalid position");
+    }
+    if (pos > this.length) {
+      throw new EOFException("read past EOF");
+    }
+    this.position(pos);
+  }
+
+  @Override
+  public IndexInput clone() {
+    // every clone has its own delegate and buffers, the loaded chunk is not decrypted again
+    final CeffCompressedIndexInput clone =
+        new CeffCompressedIndexInput(
+            this.toString(), this.delegate.clone(), this.file, true, this.sliceOffset, this.length);
+    if (this.loadedChunk >= 0) {
+      System.arraycopy(
+          this.buffer, 0, clone.buffer, 0, this.file.plainLength(this.loadedChunk));
+      clone.loadedChunk = this.loadedChunk;
+    }
+    clone.position(this.filePointer);
+    return clone;
+  }
+
+  @Override
+  public IndexInput slice(String sliceDescription, long offset, long length) throws IOException {
+    if (offset < 0 || length < 0 || offset + length > this.length) {
+      throw new IllegalArgumentException(
+          "slice() "
+              + sliceDescription
+              + " out of bounds: offset="
+              + offset
+              + ",length="
+              + length
+              + ",fileLength="
+              + this.length
+              + ": "
+              + this);
+    }
+    return new CeffCompressedIndexInput(
+        this.getFullSliceDescription(sliceDescription),
+        this.delegate.clone(),
+        this.file,
+        true,
+        this.sliceOffset + offset,
+        length);
+  }
+
+  /**
+   * Read the whole file, which authenticates every chunk, and return the checksum from its
+   * Lucene codec footer, see {@link CeffIndexInput#verifyAndRetrieveChecksum()}
+   */
+  long verifyAndRetrieveChecksum() throws IOException {
+    final IndexInput in = this.clone();
+    in.seek(0);
+    final byte[] scratch = new byte[(int) Math.min(this.length, this.file.chunkLength)];
+    long remaining = this.length;
+    while (remaining > 0) {
+      final int read = (int) Math.min(remaining, scratch.length);
+      in.readBytes(scratch, 0, read);
+      remaining -= read;
+    }
+    return CodecUtil.retrieveChecksum(in);
+  }
+
+  @Override
+  public long getFilePointer() {
+    return this.filePointer;
+  }
+
+  @Override
+  public long length() {
+    return this.length;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (this.reservation != null) {
+      this.reservation.release();
+    }
+    if (!this.isClone) {
+      this.delegate.close();
+    }
+  }
+}
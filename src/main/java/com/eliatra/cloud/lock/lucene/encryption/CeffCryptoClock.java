@@ -0,0 +1,69 @@
+/* 
+ * Copyright (C) 2021 by eliatra Ltd. - All Rights Reserved
+ * Unauthorized copying, usage or modification of this file in its source or binary form, 
+ * via any medium is strictly prohibited.
+ * Proprietary and confidential.
+ * 
+ * https://eliatra.com
+ */
+package com.eliatra.cloud.lock.lucene.encryption;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Accounts the time spent en-/decrypting and (de)compressing chunks to the work a thread is
+ * doing, typically a merge (see {@link CeffCryptoMergePolicy}). Crypto operations are pure CPU
+ * work, so their elapsed time is their CPU time unless the thread is descheduled.
+ *
+ * <p>An {@link Account} is bound to a thread. Inputs look it up per chunk, outputs when they are
+ * created, so chunks encrypted or decrypted on the {@link CeffCryptoPool} are accounted to the
+ * thread which submitted them. Nothing is measured on threads without an account.
+ */
+public final class CeffCryptoClock {
+
+  private static final ThreadLocal<Account> CURRENT = new ThreadLocal<>();
+
+  private CeffCryptoClock() {
+    super();
+  }
+
+  /** Account the crypto time of the current thread to account until {@link #unbind(Account)} */
+  public static void bind(Account account) {
+    CURRENT.set(account);
+  }
+
+  /** Stop accounting the current thread, does nothing if another account is bound to it */
+  public static void unbind(Account account) {
+    if (CURRENT.get() == account) {
+      CURRENT.remove();
+    }
+  }
+
+  /** @return the account of the current thread, null if none */
+  static Account current() {
+    return CURRENT.get();
+  }
+
+  /** @return the start time of a measurement for account, 0 if account is null */
+  static long start(Account account) {
+    return account != null ? System.nanoTime() : 0L;
+  }
+
+  /** Add the time since start to account, does nothing if account is null */
+  static void stop(Account account, long start) {
+    if (account != null) {
+      account.nanos.add(System.nanoTime() - start);
+    }
+  }
+
+  /** Crypto time of one unit of work, updated concurrently by the crypto pool */
+  public static final class Account {
+
+    private final LongAdder nanos = new LongAdder();
+
+    /** @return the accounted crypto time in nanoseconds */
+    public long getNanos() {
+      return this.nanos.sum();
+    }
+  }
+}
@@ -0,0 +1,421 @@
+/* 
+ * Copyright (C) 2021 by eliatra Ltd. - All Rights Reserved
+ * Unauthorized copying, usage or modification of this file in its source or binary form, 
+ * via any medium is strictly prohibited.
+ * Proprietary and confidential.
+ * 
+ * https://eliatra.com
+ */
+package com.eliatra.cloud.lock.lucene.encryption;
+
+import org.apache.lucene.index.CodecReader;
+import org.apache.lucene.index.FilterMergePolicy;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.MergeTrigger;
+import org.apache.lucene.index.SegmentCommitInfo;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.RateLimiter;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Accounts the crypto time of every merge (see {@link CeffCryptoClock}) and throttles merges by
+ * it while the node is CPU saturated. Lucene's merge scheduler only adapts the write rate of
+ * merges to the merge backlog, although merging encrypted segments costs a multiple of the CPU
+ * time per byte (every byte is decrypted and encrypted again).
+ *
+ * <p>Once the CPU load reaches the saturation threshold, the files of a merged segment are
+ * written at most at the rate at which its crypto time stays within the crypto CPU budget. The
+ * rate follows from the crypto time per written byte measured for the merge so far and is
+ * lifted as soon as the load drops below the threshold. Merges of the wrapped policy keep their
+ * own behavior; a segment which is already throttled (see {@link
+ * CeffDirectory#throttleSegment(String, RateLimiter)}) is throttled by both limiters.
+ */
+public final class CeffCryptoMergePolicy extends FilterMergePolicy {
+
+  /** Number of finished merges kept for {@link #getRecentMerges()} */
+  public static final int RECENT_MERGES = 16;
+
+  /** Written bytes between two checks of the rate of a merge which is not throttled */
+  private static final long UNTHROTTLED_PAUSE_CHECK_BYTES = 1024 * 1024;
+
+  private final CeffDirectory directory;
+  private final DoubleSupplier cpuLoad;
+  private final double saturatedCpuLoad;
+  private final double cryptoCpuBudget;
+  private final Set<CryptoMerge> running = ConcurrentHashMap.newKeySet();
+  private final Deque<MergeCryptoStats> recent = new ArrayDeque<>(RECENT_MERGES);
+  private final AtomicLong merges = new AtomicLong();
+  private final LongAdder mergeNanos = new LongAdder();
+  private final LongAdder cryptoNanos = new LongAdder();
+  private final LongAdder throttledNanos = new LongAdder();
+
+  /**
+   * @param in The policy which selects the merges
+   * @param directory The directory of the index, throttles the files of merged segments
+   * @param cpuLoad The CPU load of the node between 0 and 1, negative if unknown. Called
+   *     frequently while merges are throttled, should be cheap
+   * @param saturatedCpuLoad Merges are throttled at this CPU load (0 to 1), above 1 never
+   * @param cryptoCpuBudget Processors a merge may keep busy with crypto while the node is
+   *     saturated, for example 0.5 for half a processor
+   */
+  public CeffCryptoMergePolicy(
+      MergePolicy in,
+      CeffDirectory directory,
+      DoubleSupplier cpuLoad,
+      double saturatedCpuLoad,
+      double cryptoCpuBudget) {
+    super(in);
+    if (!(cryptoCpuBudget > 0)) {
+      throw new IllegalArgumentException(
+          "cryptoCpuBudget (" + cryptoCpuBudget + ") must be > 0");
+    }
+    this.directory = directory;
+    this.cpuLoad = cpuLoad;
+    this.saturatedCpuLoad = saturatedCpuLoad;
+    this.cryptoCpuBudget = cryptoCpuBudget;
+  }
+
+  @Override
+  public MergeSpecification findMerges(
+      MergeTrigger mergeTrigger, SegmentInfos segmentInfos, MergeContext mergeContext)
+      throws IOException {
+    return this.wrap(super.findMerges(mergeTrigger, segmentInfos, mergeContext));
+  }
+
+  @Override
+  public MergeSpecification findForcedMerges(
+      SegmentInfos segmentInfos,
+      int maxSegmentCount,
+      Map<SegmentCommitInfo, Boolean> segmentsToMerge,
+      MergeContext mergeContext)
+      throws IOException {
+    return this.wrap(
+        super.findForcedMerges(segmentInfos, maxSegmentCount, segmentsToMerge, mergeContext));
+  }
+
+  @Override
+  public MergeSpecification findForcedDeletesMerges(
+      SegmentInfos segmentInfos, MergeContext mergeContext) throws IOException {
+    return this.wrap(super.findForcedDeletesMerges(segmentInfos, mergeContext));
+  }
+
+  @Override
+  public MergeSpecification findFullFlushMerges(
+      MergeTrigger mergeTrigger, SegmentInfos segmentInfos, MergeContext mergeContext)
+      throws IOException {
+    return this.wrap(super.findFullFlushMerges(mergeTrigger, segmentInfos, mergeContext));
+  }
+
+  private MergeSpecification wrap(MergeSpecification spec) {
+    if (spec == null) {
+      return null;
+    }
+    final MergeSpecification wrapped = new MergeSpecification();
+    for (final OneMerge merge : spec.merges) {
+      wrapped.add(merge instanceof CryptoMerge ? merge : new CryptoMerge(merge));
+    }
+    return wrapped;
+  }
+
+  /** @return the running merges */
+  public List<MergeCryptoStats> getRunningMerges() throws IOException {
+    final List<MergeCryptoStats> result = new ArrayList<>(this.running.size());
+    for (final CryptoMerge merge : this.running) {
+      result.add(merge.stats(null));
+    }
+    return result;
+  }
+
+  /** @return the last {@link #RECENT_MERGES} finished merges, the latest first */
+  public List<MergeCryptoStats> getRecentMerges() {
+    synchronized (this.recent) {
+      return new ArrayList<>(this.recent);
+    }
+  }
+
+  /** @return number of merges finished since the policy was installed */
+  public long getMerges() {
+    return this.merges.get();
+  }
+
+  /** @return the summed up time of all finished merges */
+  public long getMergeNanos() {
+    return this.mergeNanos.sum();
+  }
+
+  /** @return the crypto time of all finished merges */
+  public long getCryptoNanos() {
+    return this.cryptoNanos.sum();
+  }
+
+  /** @return the time all finished merges were paused by the crypto throttle */
+  public long getThrottledNanos() {
+    return this.throttledNanos.sum();
+  }
+
+  /**
+   * @return true if merges are throttled right now, because the CPU load reached the threshold
+   */
+  public boolean isSaturated() {
+    return this.saturatedCpuLoad <= 1 && this.cpuLoad.getAsDouble() >= this.saturatedCpuLoad;
+  }
+
+  public CeffDirectory getDirectory() {
+    return this.directory;
+  }
+
+  /**
+   * Wraps a merge of the wrapped policy, which may have its own behavior. Accounts the crypto
+   * time of the merge thread and of the chunks it submits to the crypto pool.
+   */
+  private final class CryptoMerge extends OneMerge {
+
+    private final OneMerge in;
+    private final CeffCryptoClock.Account account = new CeffCryptoClock.Account();
+    private volatile long startNanos;
+    private volatile String segmentName;
+    private volatile CryptoThrottle throttle;
+
+    private CryptoMerge(OneMerge in) {
+      super(in.segments);
+      this.in = in;
+    }
+
+    @Override
+    public void mergeInit() throws IOException {
+      this.startNanos = System.nanoTime();
+      CeffCryptoMergePolicy.this.running.add(this);
+      CeffCryptoClock.bind(this.account);
+      this.in.mergeInit();
+    }
+
+    @Override
+    public void setMergeInfo(SegmentCommitInfo info) {
+      super.setMergeInfo(info);
+      this.in.setMergeInfo(info);
+      this.segmentName = info.info.name;
+      // a throttle of the wrapped merge is registered by now, keep it
+      this.throttle =
+          new CryptoThrottle(
+              this.account,
+              CeffCryptoMergePolicy.this.directory.getSegmentThrottle(this.segmentName));
+      CeffCryptoMergePolicy.this.directory.throttleSegment(this.segmentName, this.throttle);
+    }
+
+    @Override
+    public CodecReader wrapForMerge(CodecReader reader) throws IOException {
+      return this.in.wrapForMerge(reader);
+    }
+
+    @Override
+    public void mergeFinished(boolean success, boolean segmentDropped) throws IOException {
+      try {
+        this.in.mergeFinished(success, segmentDropped);
+      } finally {
+        CeffCryptoClock.unbind(this.account);
+        if (this.segmentName != null) {
+          CeffCryptoMergePolicy.this.directory.unthrottleSegment(this.segmentName);
+        }
+        if (CeffCryptoMergePolicy.this.running.remove(this)) {
+          this.finished(success);
+        }
+      }
+    }
+
+    private void finished(boolean success) throws IOException {
+      final MergeCryptoStats stats = this.stats(success ? this.getMergeInfo() : null);
+      final CeffCryptoMergePolicy policy = CeffCryptoMergePolicy.this;
+      policy.merges.incrementAndGet();
+      policy.mergeNanos.add(stats.getMergeNanos());
+      policy.cryptoNanos.add(stats.getCryptoNanos());
+      policy.throttledNanos.add(stats.getThrottledNanos());
+      synchronized (policy.recent) {
+        if (policy.recent.size() == RECENT_MERGES) {
+          policy.recent.removeLast();
+        }
+        policy.recent.addFirst(stats);
+      }
+    }
+
+    /**
+     * @param merged The merged segment of a successfully finished merge, null while the merge is
+     *     running
+     */
+    private MergeCryptoStats stats(SegmentCommitInfo merged) throws IOException {
+      final CryptoThrottle throttle0 = this.throttle;
+      final long writtenBytes =
+          merged != null
+              ? merged.sizeInBytes()
+              : (throttle0 != null ? throttle0.writtenBytes : 0L);
+      return new MergeCryptoStats(
+          this.segmentName,
+          this.segments.size(),
+          this.totalBytesSize(),
+          System.nanoTime() - this.startNanos,
+          this.account.getNanos(),
+          writtenBytes,
+          throttle0 != null ? throttle0.throttledNanos : 0L,
+          throttle0 != null ? throttle0.getMBPerSec() : 0d,
+          merged != null);
+    }
+  }
+
+  /**
+   * Limits the write rate of a merged segment while the node is saturated, to the rate at which
+   * the crypto time of the merge stays within the budget. Only called by the merge thread.
+   */
+  private final class CryptoThrottle extends RateLimiter {
+
+    private final CeffCryptoClock.Account account;
+    private final RateLimiter next;
+    private final RateLimiter.SimpleRateLimiter limiter = new RateLimiter.SimpleRateLimiter(1);
+    private volatile boolean throttling;
+    private volatile long writtenBytes;
+    private volatile long throttledNanos;
+
+    private CryptoThrottle(CeffCryptoClock.Account account, RateLimiter next) {
+      this.account = account;
+      this.next = next;
+    }
+
+    /** Ignored, the rate follows from the crypto time. A limit of the next limiter still applies */
+    @Override
+    public void setMBPerSec(double mbPerSec) {}
+
+    /** @return the current rate limit, 0 if not throttled */
+    @Override
+    public double getMBPerSec() {
+      return this.throttling ? this.limiter.getMBPerSec() : 0d;
+    }
+
+    @Override
+    public long pause(long bytes) throws IOException {
+      this.writtenBytes += bytes;
+      long paused = 0L;
+
+      if (CeffCryptoMergePolicy.this.isSaturated() && this.writtenBytes > 0) {
+        final double nanosPerByte = (double) this.account.getNanos() / this.writtenBytes;
+        if (nanosPerByte > 0) {
+          final double bytesPerSec =
+              CeffCryptoMergePolicy.this.cryptoCpuBudget * 1_000_000_000d / nanosPerByte;
+          this.limiter.setMBPerSec(bytesPerSec / (1024d * 1024d));
+          this.throttling = true;
+          paused += this.limiter.pause(bytes);
+        }
+      } else {
+        this.throttling = false;
+      }
+
+      if (this.next != null) {
+        paused += this.next.pause(bytes);
+      }
+      this.throttledNanos += paused;
+      return paused;
+    }
+
+    @Override
+    public long getMinPauseCheckBytes() {
+      long result =
+          this.throttling ? this.limiter.getMinPauseCheckBytes() : UNTHROTTLED_PAUSE_CHECK_BYTES;
+      if (this.next != null) {
+        result = Math.min(result, this.next.getMinPauseCheckBytes());
+      }
+      return result;
+    }
+  }
+
+  /** Crypto time and throttling of one merge */
+  public static final class MergeCryptoStats {
+    private final String segmentName;
+    private final int sourceSegments;
+    private final long sourceBytes;
+    private final long mergeNanos;
+    private final long cryptoNanos;
+    private final long writtenBytes;
+    private final long throttledNanos;
+    private final double mbPerSec;
+    private final boolean finished;
+
+    MergeCryptoStats(
+        String segmentName,
+        int sourceSegments,
+        long sourceBytes,
+        long mergeNanos,
+        long cryptoNanos,
+        long writtenBytes,
+        long throttledNanos,
+        double mbPerSec,
+        boolean finished) {
+      this.segmentName = segmentName;
+      this.sourceSegments = sourceSegments;
+      this.sourceBytes = sourceBytes;
+      this.mergeNanos = mergeNanos;
+      this.cryptoNanos = cryptoNanos;
+      this.writtenBytes = writtenBytes;
+      this.throttledNanos = throttledNanos;
+      this.mbPerSec = mbPerSec;
+      this.finished = finished;
+    }
+
+    /** @return the name of the merged segment, null if the merge did not start yet */
+    public String getSegmentName() {
+      return this.segmentName;
+    }
+
+    public int getSourceSegments() {
+      return this.sourceSegments;
+    }
+
+    /** @return the size of the merged segments */
+    public long getSourceBytes() {
+      return this.sourceBytes;
+    }
+
+    /** @return the elapsed time since the merge started */
+    public long getMergeNanos() {
+      return this.mergeNanos;
+    }
+
+    /**
+     * @return the time spent en-/decrypting and (de)compressing, on the merge thread and the
+     *     crypto pool, so it can exceed the elapsed time
+     */
+    public long getCryptoNanos() {
+      return this.cryptoNanos;
+    }
+
+    /**
+     * @return the size of the merged segment, of a running merge the bytes written so far as seen
+     *     by the throttle (updated every megabyte while not throttled)
+     */
+    public long getWrittenBytes() {
+      return this.writtenBytes;
+    }
+
+    /** @return the time the merge was paused, by the crypto throttle and the wrapped one */
+    public long getThrottledNanos() {
+      return this.throttledNanos;
+    }
+
+    /** @return the last rate limit of the merge, 0 if not throttled */
+    public double getMBPerSec() {
+      return this.mbPerSec;
+    }
+
+    /** @return true if the merge finished successfully, false while it is running */
+    public boolean isFinished() {
+      return this.finished;
+    }
+  }
+}
@@ -0,0 +1,75 @@
+/* 
+ * Copyright (C) 2021 by eliatra Ltd. - All Rights Reserved
+ * Unauthorized copying, usage or modification of this file in its source or binary form, 
+ * via any medium is strictly prohibited.
+ * Proprietary and confidential.
+ * 
+ * https://eliatra.com
+ */
+package com.eliatra.cloud.lock.lucene.encryption;
+
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Bounded fork-join pool shared by all Ceff inputs and outputs of a JVM. Used to en-/decrypt
+ * independent chunks in parallel. The pool is created lazily on first use.
+ */
+public final class CeffCryptoPool {
+
+  /** Half of the available processors, but at least 1 and at most 8 */
+  public static final int DEFAULT_PARALLELISM =
+      Math.max(1, Math.min(8, Runtime.getRuntime().availableProcessors() / 2));
+
+  private static volatile int parallelism = DEFAULT_PARALLELISM;
+  private static volatile ForkJoinPool pool;
+
+  private CeffCryptoPool() {
+    super();
+  }
+
+  /**
+   * Set the parallelism of the pool. An already created pool is shut down (running tasks
+   * complete) and replaced on next use.
+   *
+   * @param parallelism0 Number of worker threads, must be &gt;= 1
+   */
+  public static synchronized void setParallelism(int parallelism0) {
+    if (parallelism0 < 1) {
+      throw new IllegalArgumentException("parallelism must be >= 1 but was " + parallelism0);
+    }
+
+    parallelism = parallelism0;
+    final ForkJoinPool old = pool;
+    pool = null;
+
+    if (old != null) {
+      old.shutdown();
+    }
+  }
+
+  /** @return the configured parallelism */
+  public static int getParallelism() {
+    return parallelism;
+  }
+
+  static ForkJoinPool get() {
+    ForkJoinPool result = pool;
+
+    if (result == null) {
+      synchronized (CeffCryptoPool.class) {
+        result = pool;
+        if (result == null) {
+          final int parallelism0 = parallelism;
+          result =
+              AccessController.doPrivileged(
+                  (PrivilegedAction<ForkJoinPool>) () -> new ForkJoinPool(parallelism0));
+          pool = result;
+        }
+      }
+    }
+
+    return result;
+  }
+}
@@ -11,8 +11,12 @@ package com.eliatra.cloud.lock.lucene.encryption;
 import com.eliatra.cloud.lock.crypto.EncryptedSymmetricKey;
 import com.eliatra.cloud.lock.crypto.SymmetricKek;
 import com.eliatra.cloud.lock.crypto.TemporarySymmetricKey;
+import org.apache.lucene.codecs.CodecUtil;
 import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.FilterDirectory;
 import org.apache.lucene.store.FSLockFactory;
 import org.apache.lucene.store.IOContext;
 import org.apache.lucene.store.IndexInput;
@@ -20,12 +24,28 @@ import org.apache.lucene.store.IndexOutput;
 import org.apache.lucene.store.LockFactory;
 import org.apache.lucene.store.MMapDirectory;
 import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.store.RateLimitedIndexOutput;
+import org.apache.lucene.store.RateLimiter;
 import org.apache.lucene.util.Constants;
+import org.apache.lucene.util.IOUtils;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.function.Supplier;
 
 /**
@@ -37,15 +57,32 @@ public final class CeffDirectory extends FSDirectory {
 
 
   private static final String CEFF_KEY_FILE_NAME = "_encrypted_ceff_shard_key";
+  /** Prefix of the key files of other shards whose files may be hard linked into this shard */
+  private static final String CEFF_SHARED_KEY_FILE_PREFIX = CEFF_KEY_FILE_NAME + "_shared_";
 
   public static final int DEFAULT_CHUNK_LENGTH = 64 * 1024; // 64kb
 
   private final FSDirectory delegate;
-  private final int chunkLength;
+  private final CeffFilePolicy filePolicy;
 
   private final byte[] shardKey;
+  /** keys of the source shards of a shrink, split or clone, see {@link #shareShardKey} */
+  private final List<byte[]> sharedShardKeys;
+  /** shared keys of files which were written by another shard, keyed by file name */
+  private final Map<String, byte[]> fileShardKeys = new ConcurrentHashMap<>();
   private final CeffMode mode;
   private final boolean failOnPlaintext;
+  /** physical length of files whose chunk signature was already verified, keyed by file name */
+  private final Map<String, Long> verifiedFiles = new ConcurrentHashMap<>();
+  /** file keys are derived from the shard key, only the salt is stored in the header */
+  private final CeffKeyDerivation keyDerivation = new CeffKeyDerivation();
+  /** whether files are encrypted, so that opening them does not need to probe the magic */
+  private final CeffFileFormats fileFormats;
+  /** plain text lengths of encrypted files for {@link #fileLength(String)} */
+  private final CeffFooterCache footerCache =
+      new CeffFooterCache(CeffFooterCache.DEFAULT_CAPACITY);
+  /** rate limiters of segments whose files are written throttled, keyed by segment name */
+  private final Map<String, RateLimiter> throttledSegments = new ConcurrentHashMap<>();
 
   /**
    * Create a new encrypted directory. Uses a chunks length of 64kb.
@@ -96,13 +133,31 @@ public final class CeffDirectory extends FSDirectory {
   public CeffDirectory(
       FSDirectory delegate, LockFactory lockFactory, Supplier<SymmetricKek> kekSupplier, int chunkLength, CeffMode mode, boolean failOnPlaintext)
           throws IOException {
+    this(delegate, lockFactory, kekSupplier, CeffFilePolicy.uniform(chunkLength), mode, failOnPlaintext);
+  }
+
+  /**
+   * Create a new encrypted directory.
+   *
+   * @param delegate The wrapped implementation, typically {@link MMapDirectory} or {@link
+   *     NIOFSDirectory}
+   * @param lockFactory A {@link LockFactory}
+   * @param kekSupplier KeyPair supplier to encrypt/decrypt the generated symmetric directory key
+   * @param filePolicy Chooses whether and with which chunk length each written file is encrypted.
+   *     See {@link CeffFilePolicy}
+   * @param mode See {@link CeffMode}
+   * @throws IOException if the delegate throws an IOException or if there were issues with
+   *     en-/decryption
+   */
+  public CeffDirectory(
+      FSDirectory delegate, LockFactory lockFactory, Supplier<SymmetricKek> kekSupplier, CeffFilePolicy filePolicy, CeffMode mode, boolean failOnPlaintext)
+          throws IOException {
     super(delegate.getDirectory(), lockFactory);
     this.delegate = delegate;
     this.mode = mode;
     this.failOnPlaintext = failOnPlaintext;
     //this.mode.validateKey(key);
-    this.chunkLength = chunkLength;
-    CeffUtils.validateChunkLength(this.chunkLength);
+    this.filePolicy = filePolicy;
 
     if(delegate instanceof CeffDirectory) {
       throw new RuntimeException("delegate is ceff");
@@ -112,10 +167,11 @@ public final class CeffDirectory extends FSDirectory {
 
     try {
       if(Files.exists(getDirectory().getParent().resolve(CEFF_KEY_FILE_NAME))) {
-        _key = decryptDirectoryKey(kekSupplier.get());
+        _key = decryptDirectoryKey(kekSupplier.get(), getDirectory().getParent().resolve(CEFF_KEY_FILE_NAME));
       } else {
         _key = createNewDirectoryKey(kekSupplier.get());
       }
+      sharedShardKeys = readSharedShardKeys(kekSupplier.get());
     } catch (Exception e) {
       if(e instanceof GeneralSecurityException) {
         throw new IOException(new CeffCryptoException("Unable to decrypt key",e,mode));
@@ -123,6 +179,12 @@ public final class CeffDirectory extends FSDirectory {
       throw new IOException(e);
     }
     shardKey = _key;
+
+    this.fileFormats =
+        new CeffFileFormats(
+            delegate,
+            Files.isDirectory(getDirectory()) ? delegate.listAll() : new String[0],
+            shardKey);
   }
 
   private byte[] createNewDirectoryKey(SymmetricKek symmetricKek) throws Exception {
@@ -137,8 +199,8 @@ public final class CeffDirectory extends FSDirectory {
     return temporarySymmetricKey.getPlainKey();
   }
 
-  private byte[] decryptDirectoryKey(SymmetricKek symmetricKek) throws Exception {
-    final byte[] encryptedKey =  Files.readAllBytes(getDirectory().getParent().resolve(CEFF_KEY_FILE_NAME));
+  private static byte[] decryptDirectoryKey(SymmetricKek symmetricKek, Path keyFile) throws Exception {
+    final byte[] encryptedKey =  Files.readAllBytes(keyFile);
     EncryptedSymmetricKey encryptedSymmetricKey = EncryptedSymmetricKey.fromRawBytes(encryptedKey);
     assert encryptedSymmetricKey.getKeyType() == SymmetricKek.KeyType.PLAIN_AES;
     TemporarySymmetricKey temporarySymmetricKey = symmetricKek.decryptKey(encryptedSymmetricKey);
@@ -146,6 +208,93 @@ public final class CeffDirectory extends FSDirectory {
     return temporarySymmetricKey.getPlainKey();
   }
 
+  /** @return the keys of the shards which shared their key with this one, in file name order */
+  private List<byte[]> readSharedShardKeys(SymmetricKek symmetricKek) throws Exception {
+    final Path shardPath = this.getDirectory().getParent();
+    if (!Files.isDirectory(shardPath)) {
+      return Collections.emptyList();
+    }
+
+    final List<Path> keyFiles = new ArrayList<>();
+    try (DirectoryStream<Path> stream =
+        Files.newDirectoryStream(shardPath, CEFF_SHARED_KEY_FILE_PREFIX + "*")) {
+      for (final Path keyFile : stream) {
+        keyFiles.add(keyFile);
+      }
+    }
+    Collections.sort(keyFiles);
+
+    final List<byte[]> keys = new ArrayList<>(keyFiles.size());
+    for (final Path keyFile : keyFiles) {
+      keys.add(decryptDirectoryKey(symmetricKek, keyFile));
+    }
+    return Collections.unmodifiableList(keys);
+  }
+
+  /**
+   * Share the shard key of a source shard with a target shard (shrink, split or clone) before
+   * the directory of the target is created. Files which are hard linked or copied from the
+   * source shard into the target shard are then readable as they are: the header of a file
+   * does not tell which shard key it is bound to, a file which can not be opened with the key of
+   * the target shard is opened with each shared key. The key file is copied as it is, still
+   * encrypted with the key encryption key, which is the same for all shards.
+   *
+   * @param sourceShardPath The shard path (the parent of the index directory) of the source
+   * @param targetShardPath The shard path of the target
+   * @param sourceId Identifies the source shard, part of the name of the shared key file
+   * @return false if the source shard has no key
+   * @throws IOException if the key file can not be copied
+   */
+  public static boolean shareShardKey(Path sourceShardPath, Path targetShardPath, String sourceId)
+      throws IOException {
+    final Path sourceKeyFile = sourceShardPath.resolve(CEFF_KEY_FILE_NAME);
+    if (!Files.exists(sourceKeyFile)) {
+      return false;
+    }
+
+    final Path sharedKeyFile = targetShardPath.resolve(CEFF_SHARED_KEY_FILE_PREFIX + sourceId);
+    if (!Files.exists(sharedKeyFile)) {
+      Files.createDirectories(targetShardPath);
+      Files.write(
+          sharedKeyFile,
+          Files.readAllBytes(sourceKeyFile),
+          StandardOpenOption.CREATE_NEW,
+          StandardOpenOption.WRITE,
+          StandardOpenOption.SYNC,
+          StandardOpenOption.DSYNC);
+    }
+    return true;
+  }
+
+  /** @return true if files bound to the given shard key are readable by this directory */
+  private boolean hasShardKey(byte[] key) {
+    if (MessageDigest.isEqual(key, this.shardKey)) {
+      return true;
+    }
+    for (final byte[] sharedShardKey : this.sharedShardKeys) {
+      if (MessageDigest.isEqual(key, sharedShardKey)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the shard key the encrypted file is bound to, the file is opened once if it may have
+   *     been written by a shard which shared its key
+   */
+  private byte[] shardKey(String fileName) throws IOException {
+    if (this.sharedShardKeys.isEmpty()) {
+      return this.shardKey;
+    }
+
+    byte[] key = this.fileShardKeys.get(fileName);
+    if (key == null) {
+      this.openInput(fileName, IOContext.READONCE).close();
+      key = this.fileShardKeys.get(fileName);
+    }
+    return key != null ? key : this.shardKey;
+  }
 
   @Override
   public IndexInput openInput(String fileName, IOContext context) throws IOException {
@@ -157,42 +306,253 @@ public final class CeffDirectory extends FSDirectory {
       return tmpInput;
     }
 
-    if(isUnencrypted(fileName)){
+    if (CeffFilePolicy.isAlwaysPlaintext(fileName)) {
       return tmpInput;
     }
 
-    if(!failOnPlaintext) {
-
-      if (tmpInput.length() < CeffUtils.headerLength(mode)) {
-        return tmpInput;
-      }
-
-      // read plaintext files
-      if (tmpInput.readInt() != CeffUtils.CEFF_MAGIC) {
-        tmpInput.seek(0);
-        return tmpInput;
-      } else {
-        tmpInput.seek(0);
+    final Boolean encrypted = this.fileFormats.isEncrypted(fileName);
+    // plain text is never accepted for a file the policy encrypts in strict mode, not even if
+    // the record says so
+    final boolean strict = this.isStrict() && this.filePolicy.isEncrypted(fileName);
+
+    if (encrypted == null || (!encrypted && strict)) {
+      // files of extensions which the policy keeps in plain text may have been written
+      // encrypted under an older policy
+      if (!strict) {
+
+        // read plaintext files
+        if (tmpInput.length() < CeffUtils.headerLength(mode, CeffUtils.FLAG_DERIVED_KEY)
+            || tmpInput.readInt() != CeffUtils.CEFF_MAGIC) {
+          tmpInput.seek(0);
+          this.fileFormats.put(fileName, false);
+          return tmpInput;
+        } else {
+          tmpInput.seek(0);
+        }
       }
+    } else if (!encrypted) {
+      return tmpInput;
     }
 
+    final byte[] fileShardKey = this.fileShardKeys.get(fileName);
     try {
-      return new CeffIndexInput(tmpInput, this.shardKey);
+      return this.openEncrypted(
+          fileName, tmpInput, context, fileShardKey != null ? fileShardKey : this.shardKey);
     } catch (final IOException e) {
+      if (fileShardKey == null
+          && !this.sharedShardKeys.isEmpty()
+          && e.getCause() instanceof CeffCryptoException) {
+        // hard linked or copied from a shard which shared its key, try the shared keys
+        for (final byte[] sharedShardKey : this.sharedShardKeys) {
+          try {
+            tmpInput.seek(0);
+            final IndexInput input = this.openEncrypted(fileName, tmpInput, context, sharedShardKey);
+            this.fileShardKeys.put(fileName, sharedShardKey);
+            return input;
+          } catch (final IOException e1) {
+            if (!(e1.getCause() instanceof CeffCryptoException)) {
+              e.addSuppressed(e1);
+              break;
+            }
+          } catch (final RuntimeException e1) {
+            tmpInput.close();
+            throw e1;
+          }
+        }
+      }
+      tmpInput.close();
+      throw e;
+    } catch (final RuntimeException e) {
       tmpInput.close();
       throw e;
     }
   }
 
+  /**
+   * Open an encrypted file, does not close tmpInput if this fails
+   *
+   * @param tmpInput The physical file, positioned at the start
+   * @param key The shard key the file is bound to
+   * @throws IOException caused by a {@link CeffCryptoException} if the file was tampered with or
+   *     is bound to another shard key
+   */
+  private IndexInput openEncrypted(
+      String fileName, IndexInput tmpInput, IOContext context, byte[] key) throws IOException {
+    try {
+      final CeffHeader header = CeffHeader.read(tmpInput, key);
+
+      if (header.isCompact()) {
+        // tiny file, decrypted and authenticated at once
+        final IndexInput input = CeffCompactFile.open(tmpInput, header, tmpInput.toString());
+        this.footerCache.put(
+            fileName,
+            CeffFooterCache.Footer.compact(header.getMode(), tmpInput.length(), input.length()));
+        tmpInput.close();
+        return input;
+      }
+
+      // files are write once, a verified file can only change through this directory
+      final long physicalLength = tmpInput.length();
+      final Long verifiedLength = this.verifiedFiles.get(fileName);
+      final boolean alreadyVerified = verifiedLength != null && verifiedLength == physicalLength;
+
+      if (header.isCompressed()) {
+        final CeffCompressedIndexInput input =
+            CeffCompressedIndexInput.open(tmpInput, header, alreadyVerified);
+        this.verifiedFiles.put(fileName, physicalLength);
+        this.fileFormats.put(fileName, true);
+        this.footerCache.put(
+            fileName,
+            new CeffFooterCache.Footer(
+                header.getMode(),
+                physicalLength,
+                input.getChunkLength(),
+                input.getLastChunk(),
+                input.length()));
+        return input;
+      }
+
+      final CeffIndexInput input = new CeffIndexInput(tmpInput, header, context, alreadyVerified);
+      this.verifiedFiles.put(fileName, physicalLength);
+      this.fileFormats.put(fileName, true);
+      this.footerCache.put(
+          fileName,
+          new CeffFooterCache.Footer(
+              header.getMode(),
+              physicalLength,
+              input.getChunkLength(),
+              input.getLastChunk(),
+              input.length()));
+
+      if (CeffAccessTrace.isEnabled()) {
+        final CeffAccessTrace.FileTrace trace =
+            CeffAccessTrace.sample(
+                this.getDirectory().resolve(fileName).hashCode(),
+                fileName,
+                context,
+                input.getChunkLength());
+        if (trace != null) {
+          input.trace(trace);
+        }
+      }
+
+      return input;
+    } catch (final CeffCryptoException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Open and verify the given files in parallel so that later opens (typically by the first
+   * searches after a shard was started) do not need to scan and verify the files again. Every
+   * chunk of an encrypted file is authenticated in one pass, see {@link #verifyIntegrity(String)}.
+   * Returns when all files are verified.
+   *
+   * @param fileNames The files to verify, typically the files of the latest commit
+   * @param executor Executor on which the files are opened, bounds the parallelism
+   * @return number of encrypted files which were verified, compact files are verified whenever
+   *     they are opened and not counted
+   * @throws IOException if one or more files can not be verified, further failures are added as
+   *     suppressed exceptions
+   */
+  public int warmUp(Collection<String> fileNames, Executor executor) throws IOException {
+    final List<CompletableFuture<Boolean>> futures = new ArrayList<>(fileNames.size());
+
+    for (final String fileName : fileNames) {
+      futures.add(
+          CompletableFuture.supplyAsync(
+              () -> {
+                try (IndexInput in = this.openInput(fileName, IOContext.READONCE)) {
+                  if (in instanceof CeffIndexInput || in instanceof CeffCompressedIndexInput) {
+                    verifyIntegrity(in);
+                    return true;
+                  }
+                  return false;
+                } catch (final IOException e) {
+                  throw new UncheckedIOException(e);
+                }
+              },
+              executor));
+    }
+
+    IOException failure = null;
+    int verified = 0;
+
+    for (final CompletableFuture<Boolean> future : futures) {
+      try {
+        if (future.join()) {
+          verified++;
+        }
+      } catch (final CompletionException e) {
+        final IOException cause =
+            e.getCause() instanceof UncheckedIOException
+                ? ((UncheckedIOException) e.getCause()).getCause()
+                : new IOException(e.getCause());
+        if (failure == null) {
+          failure = cause;
+        } else {
+          failure.addSuppressed(cause);
+        }
+      }
+    }
+
+    if (failure != null) {
+      throw failure;
+    }
+
+    return verified;
+  }
+
+  /**
+   * Verify the integrity of a file and return the checksum stored in its Lucene codec footer.
+   * For encrypted files every chunk is authenticated (in parallel) instead of computing a CRC32
+   * over the whole plaintext, plaintext files are checksummed as usual.
+   *
+   * @param fileName The file to verify
+   * @return the checksum from the codec footer
+   * @throws IOException if the file is corrupted or tampered with
+   */
+  public long verifyIntegrity(String fileName) throws IOException {
+    try (IndexInput in = this.openInput(fileName, IOContext.READONCE)) {
+      return verifyIntegrity(in);
+    }
+  }
+
+  private static long verifyIntegrity(IndexInput in) throws IOException {
+    if (in instanceof CeffIndexInput) {
+      return ((CeffIndexInput) in).verifyAndRetrieveChecksum();
+    }
+    if (in instanceof CeffCompressedIndexInput) {
+      return ((CeffCompressedIndexInput) in).verifyAndRetrieveChecksum();
+    }
+    return CodecUtil.checksumEntireFile(in);
+  }
+
   @Override
   public IndexOutput createOutput(String fileName, IOContext context) throws IOException {
+    this.verifiedFiles.remove(fileName);
+    this.fileShardKeys.remove(fileName);
     final IndexOutput tmpOutput = this.delegate.createOutput(fileName, context);
     try {
       if(isUnencrypted(fileName)){
-        return tmpOutput;
+        this.fileFormats.put(fileName, false);
+        return this.throttled(fileName, tmpOutput);
       }
-      return new CeffIndexOutput(tmpOutput, this.chunkLength, this.shardKey, this.mode);
-    } catch (final IOException e) {
+      this.fileFormats.put(fileName, true);
+      final CeffIndexOutput output =
+          new CeffIndexOutput(
+              tmpOutput,
+              this.filePolicy.chunkLength(fileName),
+              this.shardKey,
+              this.mode,
+              isPipelined(context),
+              this.keyDerivation.nextSalt(),
+              false,
+              this.filePolicy.getCompactLength(),
+              this.filePolicy.isCompressed(fileName));
+      output.cacheFooter(this.footerCache);
+      return this.throttled(fileName, output);
+    } catch (final IOException | RuntimeException e) {
       tmpOutput.close();
       throw e;
     } catch (CeffCryptoException e) {
@@ -201,13 +561,31 @@ public final class CeffDirectory extends FSDirectory {
     }
   }
 
+  /**
+   * Temporary files (offline sorter runs, points and index sorting) never outlive the process.
+   * They are encrypted with a key which only exists in memory and have no signature, so reading
+   * them back does not scan the file. Every chunk is still authenticated.
+   */
   @Override
   public IndexOutput createTempOutput(String prefix, String suffix, IOContext context)
       throws IOException {
     final IndexOutput tmpOutput = this.delegate.createTempOutput(prefix, suffix, context);
     try {
-      return new CeffIndexOutput(tmpOutput, this.chunkLength, this.shardKey, this.mode);
-    } catch (final IOException e) {
+      this.fileFormats.put(tmpOutput.getName(), true);
+      final CeffIndexOutput output =
+          new CeffIndexOutput(
+              tmpOutput,
+              this.filePolicy.getDefaultChunkLength(),
+              this.shardKey,
+              this.mode,
+              isPipelined(context),
+              this.keyDerivation.nextSalt(),
+              true,
+              0,
+              false);
+      output.cacheFooter(this.footerCache);
+      return output;
+    } catch (final IOException | RuntimeException e) {
       tmpOutput.close();
       throw e;
     } catch (CeffCryptoException e) {
@@ -216,28 +594,312 @@ public final class CeffDirectory extends FSDirectory {
     }
   }
 
+  /**
+   * Copy a file from another directory. If the source is also a {@link CeffDirectory} the file
+   * is not decrypted and encrypted again: if the source shard shared its key with this one (see
+   * {@link #shareShardKey}) the file is copied as it is, otherwise the header is rewritten with
+   * the file key wrapped by the shard key of this directory, the chunks and the footer are copied
+   * as they are.
+   */
+  @Override
+  public void copyFrom(Directory from, String src, String dest, IOContext context)
+      throws IOException {
+    final Directory unwrapped = FilterDirectory.unwrap(from);
+
+    if (!(unwrapped instanceof CeffDirectory)
+        || ((CeffDirectory) unwrapped).isUnencrypted(src)
+        || this.isUnencrypted(dest)) {
+      super.copyFrom(from, src, dest, context);
+      return;
+    }
+
+    final CeffDirectory source = (CeffDirectory) unwrapped;
+    this.ensureOpen();
+    this.verifiedFiles.remove(dest);
+    this.fileShardKeys.remove(dest);
+
+    boolean success = false;
+    try (IndexInput in = source.delegate.openInput(src, context)) {
+      if (!this.copyCiphertext(source, src, in, dest, context)) {
+        super.copyFrom(from, src, dest, context);
+      }
+      success = true;
+    } finally {
+      if (!success) {
+        IOUtils.deleteFilesIgnoringExceptions(this.delegate, dest);
+      }
+    }
+  }
+
+  /**
+   * @return false if the source file is not encrypted (and nothing was written)
+   */
+  private boolean copyCiphertext(
+      CeffDirectory source, String src, IndexInput in, String dest, IOContext context)
+      throws IOException {
+    final long sourceLength = in.length();
+
+    if (sourceLength < CeffUtils.headerLength(source.mode, CeffUtils.FLAG_DERIVED_KEY)
+        || in.readInt() != CeffUtils.CEFF_MAGIC) {
+      return false;
+    }
+
+    in.seek(0);
+    final byte[] sourceShardKey = source.shardKey(src);
+    final CeffHeader header;
+    try {
+      header = CeffHeader.read(in, sourceShardKey);
+    } catch (final CeffCryptoException e) {
+      throw new IOException(e);
+    }
+
+    if (!header.isEphemeral() && this.hasShardKey(sourceShardKey)) {
+      // readable with a key of this directory, also compact and compressed files
+      in.seek(0);
+      try (IndexOutput out = this.delegate.createOutput(dest, context)) {
+        out.copyBytes(in, sourceLength);
+      }
+      if (!MessageDigest.isEqual(sourceShardKey, this.shardKey)) {
+        this.fileShardKeys.put(dest, sourceShardKey);
+      }
+      this.copied(source, src, sourceLength, dest, sourceLength);
+      return true;
+    }
+
+    if (header.isEphemeral() || header.isCompact()) {
+      // temporary files have no signature which could be verified after copying, compact files
+      // are cheap to copy anyway
+      return false;
+    }
+
+    final long physicalLength;
+    try (IndexOutput out = this.delegate.createOutput(dest, context)) {
+      // a derived file key can not be re-derived from another shard key, wrap it instead. The
+      // header keeps the flags and version, everything after it is copied as it is
+      CeffHeader.writeWrapped(
+          out,
+          header.getMode(),
+          header.getFlags() & (CeffUtils.FLAG_COMPRESSED | CeffUtils.FLAG_VERSIONED),
+          header.getVersion(),
+          header.getChunkLength(),
+          this.shardKey,
+          header.getKey());
+      out.copyBytes(in, sourceLength - in.getFilePointer());
+      physicalLength = out.getFilePointer();
+    } catch (final CeffCryptoException e) {
+      throw new IOException(e);
+    }
+
+    this.copied(source, src, sourceLength, dest, physicalLength);
+    return true;
+  }
+
+  /** Take over what the source knows about a file whose chunks were copied as they are */
+  private void copied(
+      CeffDirectory source, String src, long sourceLength, String dest, long physicalLength) {
+    // the chunks are unchanged, a file verified by the source does not need to be verified again
+    final Long verifiedLength = source.verifiedFiles.get(src);
+    if (verifiedLength != null && verifiedLength == sourceLength) {
+      this.verifiedFiles.put(dest, physicalLength);
+    }
+    this.fileFormats.put(dest, true);
+    final CeffFooterCache.Footer footer = source.footerCache.get(src, sourceLength);
+    if (footer != null) {
+      this.footerCache.put(
+          dest,
+          new CeffFooterCache.Footer(
+              footer.getMode(),
+              physicalLength,
+              footer.getChunkLength(),
+              footer.getLastChunk(),
+              footer.getPlainLength()));
+    }
+  }
+
+  @Override
+  public void deleteFile(String name) throws IOException {
+    this.verifiedFiles.remove(name);
+    this.fileShardKeys.remove(name);
+    this.fileFormats.remove(name);
+    this.footerCache.remove(name);
+    super.deleteFile(name);
+  }
+
+  /**
+   * @return the plain text length of the file. Comes from a cache of footer metadata, filled
+   *     when files are written or opened. For other files only the header and the unencrypted
+   *     footer AAD are read. The physical length is returned for plain text files and files
+   *     which are still being written.
+   */
+  @Override
+  public long fileLength(String name) throws IOException {
+    final long physicalLength = super.fileLength(name);
+
+    if (physicalLength == 0
+        || CeffFilePolicy.isAlwaysPlaintext(name)
+        || Boolean.FALSE.equals(this.fileFormats.isEncrypted(name))) {
+      return physicalLength;
+    }
+
+    final CeffFooterCache.Footer footer = this.footer(name, physicalLength);
+    return footer != null ? footer.getPlainLength() : physicalLength;
+  }
+
+  /**
+   * A file is outdated if rewriting it would change its format: the policy encrypts it but it is
+   * plain text (left over from mixed mode), or it was encrypted with another mode or (unless
+   * compact) another chunk length than this directory writes it now. Files which the policy
+   * keeps in plain text are never outdated. Like {@link #fileLength(String)} this only reads the
+   * header and the footer metadata.
+   *
+   * @return true if the file should be rewritten, see {@link CeffMigrationMergePolicy}
+   */
+  public boolean isOutdated(String name) throws IOException {
+    if (isUnencrypted(name)) {
+      return false;
+    }
+
+    final long physicalLength = super.fileLength(name);
+
+    if (physicalLength == 0) {
+      return false;
+    }
+
+    final CeffFooterCache.Footer footer =
+        Boolean.FALSE.equals(this.fileFormats.isEncrypted(name))
+            ? null
+            : this.footer(name, physicalLength);
+
+    if (footer == null) {
+      // plain text, a committed encrypted file always has a readable footer
+      return !Boolean.TRUE.equals(this.fileFormats.isEncrypted(name));
+    }
+
+    return footer.getMode().getModeByte() != this.mode.getModeByte()
+        || (footer.getChunkLength() != 0
+            && footer.getChunkLength() != this.filePolicy.chunkLength(name));
+  }
+
+  /** @return the footer metadata of the file, null if it is not encrypted or incomplete */
+  private CeffFooterCache.Footer footer(String name, long physicalLength) throws IOException {
+    CeffFooterCache.Footer footer = this.footerCache.get(name, physicalLength);
+
+    if (footer == null) {
+      try (IndexInput in = this.delegate.openInput(name, IOContext.READONCE)) {
+        footer = CeffFooterCache.read(in);
+      }
+      if (footer == null || footer.getPhysicalLength() != physicalLength) {
+        return null;
+      }
+      this.footerCache.put(name, footer);
+    }
+
+    return footer;
+  }
+
+  /**
+   * Write the files of a segment (typically the target of a migration merge) at most at the rate
+   * of the given limiter, until {@link #unthrottleSegment(String)} is called.
+   *
+   * @param segmentName The segment name, like _5
+   */
+  public void throttleSegment(String segmentName, RateLimiter rateLimiter) {
+    this.throttledSegments.put(segmentName, rateLimiter);
+  }
+
+  public void unthrottleSegment(String segmentName) {
+    this.throttledSegments.remove(segmentName);
+  }
+
+  /** @return the limiter the files of the segment are written with, null if not throttled */
+  public RateLimiter getSegmentThrottle(String segmentName) {
+    return this.throttledSegments.get(segmentName);
+  }
+
+  private IndexOutput throttled(String fileName, IndexOutput output) {
+    if (this.throttledSegments.isEmpty()) {
+      return output;
+    }
+    final RateLimiter rateLimiter =
+        this.throttledSegments.get(IndexFileNames.parseSegmentName(fileName));
+    return rateLimiter != null ? new RateLimitedIndexOutput(rateLimiter, output) : output;
+  }
+
+  /**
+   * Renaming the pending segments file to segments_N completes a commit, the formats of all files
+   * are persisted with it (see {@link #isFullyEncrypted()}).
+   */
+  @Override
+  public void rename(String source, String dest) throws IOException {
+    if (dest.startsWith(IndexFileNames.SEGMENTS + "_")) {
+      this.fileFormats.write(
+          this.delegate,
+          this.delegate.listAll(),
+          this.filePolicy,
+          SegmentInfos.generationFromSegmentsFileName(dest));
+    }
+
+    this.verifiedFiles.remove(dest);
+    super.rename(source, dest);
+    final Long verifiedLength = this.verifiedFiles.remove(source);
+    if (verifiedLength != null) {
+      this.verifiedFiles.put(dest, verifiedLength);
+    }
+    this.fileFormats.rename(source, dest);
+    this.footerCache.rename(source, dest);
+    final byte[] fileShardKey = this.fileShardKeys.remove(source);
+    if (fileShardKey != null) {
+      this.fileShardKeys.put(dest, fileShardKey);
+    } else {
+      this.fileShardKeys.remove(dest);
+    }
+  }
+
   @Override
   public synchronized void close() throws IOException {
     this.delegate.close();
     super.close();
   }
 
+  /** @return the chunk length of files without a specific one, see {@link CeffFilePolicy} */
   public int getChunkLength() {
-    return this.chunkLength;
+    return this.filePolicy.getDefaultChunkLength();
+  }
+
+  public CeffFilePolicy getFilePolicy() {
+    return this.filePolicy;
   }
 
   public CeffMode getMode() {
     return this.mode;
   }
 
+  /**
+   * An index is fully encrypted if the directory was created empty or the record of its latest
+   * commit states that all files which the policy encrypts are encrypted. Plain text files are
+   * not accepted for fully encrypted indices, regardless of failOnPlaintext.
+   *
+   * @return true if the index is known to be fully encrypted
+   */
+  public boolean isFullyEncrypted() {
+    return this.fileFormats.isFullyEncrypted();
+  }
+
+  private boolean isStrict() {
+    return this.failOnPlaintext || this.fileFormats.isFullyEncrypted();
+  }
+
   public FSDirectory getDelegate() {
     return this.delegate;
   }
 
+  /** Merges and flushes write large files sequentially, encrypt them in the background */
+  private static boolean isPipelined(IOContext context) {
+    return context.context == IOContext.Context.MERGE
+        || context.context == IOContext.Context.FLUSH;
+  }
+
   private boolean isUnencrypted(String fileName) {
-    //recovery.gzYQEWzvShazqZ1GrGVtSA.segments_2
-    return fileName.endsWith(".si")
-            || fileName.contains(IndexFileNames.PENDING_SEGMENTS+"_")
-            || fileName.contains(IndexFileNames.SEGMENTS+"_");
+    return !this.filePolicy.isEncrypted(fileName);
   }
 }
@@ -0,0 +1,207 @@
+/* 
+ * Copyright (C) 2021 by eliatra Ltd. - All Rights Reserved
+ * Unauthorized copying, usage or modification of this file in its source or binary form, 
+ * via any medium is strictly prohibited.
+ * Proprietary and confidential.
+ * 
+ * https://eliatra.com
+ */
+package com.eliatra.cloud.lock.lucene.encryption;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.ByteBuffersDataOutput;
+import org.apache.lucene.store.ChecksumIndexInput;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.IOUtils;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers per file whether it is encrypted, so that {@link CeffDirectory} does not need to
+ * probe the magic of files it wrote or opened before.
+ *
+ * <p>Filled when files are written and probed. With every commit the formats are persisted in a
+ * record next to the segments file (ceff_formats_N for segments_N), which is loaded again when
+ * the directory is opened. The record also states whether all files which the policy encrypts
+ * are encrypted, in that case plain text files are never accepted. The record is only an
+ * optimization, files are probed as before if it is missing or invalid.
+ *
+ * <p>The record is stored in plain text next to the index files, so its entries are
+ * authenticated with a MAC under a key derived from the shard key. A record which was written
+ * with another key or modified is ignored like a missing one.
+ */
+final class CeffFileFormats {
+
+  static final String RECORD_PREFIX = "ceff_formats_";
+
+  private static final String CODEC = "CeffFileFormats";
+  private static final int VERSION_START = 0;
+  /** the entries are authenticated, records of older versions are not trusted */
+  private static final int VERSION_MAC = 1;
+  private static final int VERSION_CURRENT = VERSION_MAC;
+
+  private final byte[] recordKey;
+  private final Map<String, Boolean> encrypted = new ConcurrentHashMap<>();
+  private volatile boolean fullyEncrypted;
+
+  /**
+   * Load the record of the latest commit of the directory. A directory without a commit is
+   * written by this directory only and is fully encrypted.
+   *
+   * @param shardKey The key the record is authenticated with (after key derivation)
+   */
+  CeffFileFormats(Directory directory, String[] files, byte[] shardKey) {
+    this.recordKey = CeffKeyDerivation.deriveRecordKey(shardKey);
+    final long generation = SegmentInfos.getLastCommitGeneration(files);
+
+    if (generation == -1) {
+      this.fullyEncrypted = true;
+      return;
+    }
+
+    final String recordName = recordName(generation);
+    for (final String file : files) {
+      if (file.equals(recordName)) {
+        this.load(directory, recordName);
+        return;
+      }
+    }
+  }
+
+  private void load(Directory directory, String recordName) {
+    final Map<String, Boolean> loaded = new ConcurrentHashMap<>();
+    boolean loadedFullyEncrypted = false;
+
+    try (ChecksumIndexInput in = directory.openChecksumInput(recordName, IOContext.READONCE)) {
+      CodecUtil.checkHeader(in, CODEC, VERSION_MAC, VERSION_CURRENT);
+      final byte[] entries = new byte[in.readVInt()];
+      in.readBytes(entries, 0, entries.length);
+      final byte[] mac = new byte[CeffKeyDerivation.MAC_LENGTH];
+      in.readBytes(mac, 0, mac.length);
+      CodecUtil.checkFooter(in);
+
+      if (!MessageDigest.isEqual(
+          mac, CeffKeyDerivation.mac(this.recordKey, entries, 0, entries.length))) {
+        // not written with this shard key or modified, files are probed instead
+        return;
+      }
+
+      final ByteArrayDataInput entriesIn = new ByteArrayDataInput(entries);
+      loadedFullyEncrypted = entriesIn.readByte() == 1;
+      final int count = entriesIn.readVInt();
+      for (int i = 0; i < count; i++) {
+        final String fileName = entriesIn.readString();
+        loaded.put(fileName, entriesIn.readByte() == 1);
+      }
+    } catch (final IOException e) {
+      // not fatal, files are probed instead
+      return;
+    }
+
+    this.encrypted.putAll(loaded);
+    this.fullyEncrypted = loadedFullyEncrypted;
+  }
+
+  static String recordName(long generation) {
+    return RECORD_PREFIX + Long.toString(generation, Character.MAX_RADIX);
+  }
+
+  /** @return true if the file is encrypted, false if not, null if the format is unknown */
+  Boolean isEncrypted(String fileName) {
+    return this.encrypted.get(fileName);
+  }
+
+  void put(String fileName, boolean encrypted0) {
+    this.encrypted.put(fileName, encrypted0);
+  }
+
+  void remove(String fileName) {
+    this.encrypted.remove(fileName);
+  }
+
+  void rename(String source, String dest) {
+    final Boolean encrypted0 = this.encrypted.remove(source);
+    if (encrypted0 != null) {
+      this.encrypted.put(dest, encrypted0);
+    } else {
+      this.encrypted.remove(dest);
+    }
+  }
+
+  /** @return true if all files which the policy encrypts are known to be encrypted */
+  boolean isFullyEncrypted() {
+    return this.fullyEncrypted;
+  }
+
+  /**
+   * Persist the formats for the commit with the given generation and delete the records of
+   * older commits. A directory becomes fully encrypted once all of its files which the policy
+   * encrypts are known to be encrypted.
+   *
+   * @param directory The directory to write the record to, files are not encrypted
+   * @param files The files of the directory
+   * @param policy The policy which decides which files need to be encrypted
+   * @param generation The generation of the commit
+   */
+  void write(Directory directory, String[] files, CeffFilePolicy policy, long generation)
+      throws IOException {
+    if (!this.fullyEncrypted) {
+      boolean allEncrypted = true;
+      for (final String file : files) {
+        // only index files are opened, other files (like the write lock) do not count
+        if (policy.isEncrypted(file)
+            && IndexFileNames.CODEC_FILE_PATTERN.matcher(file).matches()
+            && !Boolean.TRUE.equals(this.encrypted.get(file))) {
+          allEncrypted = false;
+          break;
+        }
+      }
+      this.fullyEncrypted = allEncrypted;
+    }
+
+    final String recordName = recordName(generation);
+    final Map<String, Boolean> snapshot = new HashMap<>(this.encrypted);
+    final ByteBuffersDataOutput entriesOut = new ByteBuffersDataOutput();
+    entriesOut.writeByte((byte) (this.fullyEncrypted ? 1 : 0));
+    entriesOut.writeVInt(snapshot.size());
+    for (final Map.Entry<String, Boolean> entry : snapshot.entrySet()) {
+      entriesOut.writeString(entry.getKey());
+      entriesOut.writeByte((byte) (entry.getValue() ? 1 : 0));
+    }
+    final byte[] entries = entriesOut.toArrayCopy();
+    boolean success = false;
+
+    try (IndexOutput out = directory.createOutput(recordName, IOContext.DEFAULT)) {
+      CodecUtil.writeHeader(out, CODEC, VERSION_CURRENT);
+      out.writeVInt(entries.length);
+      out.writeBytes(entries, 0, entries.length);
+      out.writeBytes(
+          CeffKeyDerivation.mac(this.recordKey, entries, 0, entries.length),
+          CeffKeyDerivation.MAC_LENGTH);
+      CodecUtil.writeFooter(out);
+      success = true;
+    } finally {
+      if (!success) {
+        IOUtils.deleteFilesIgnoringExceptions(directory, recordName);
+      }
+    }
+
+    directory.sync(Collections.singleton(recordName));
+
+    for (final String file : files) {
+      if (file.startsWith(RECORD_PREFIX) && !file.equals(recordName)) {
+        IOUtils.deleteFilesIgnoringExceptions(directory, file);
+      }
+    }
+  }
+}
@@ -0,0 +1,274 @@
+/* 
+ * Copyright (C) 2021 by eliatra Ltd. - All Rights Reserved
+ * Unauthorized copying, usage or modification of this file in its source or binary form, 
+ * via any medium is strictly prohibited.
+ * Proprietary and confidential.
+ * 
+ * https://eliatra.com
+ */
+package com.eliatra.cloud.lock.lucene.encryption;
+
+import org.apache.lucene.index.IndexFileNames;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides per file how a {@link CeffDirectory} writes it: whether it is encrypted at all and the
+ * chunk length, both chosen by the file extension, and up to which length files are written
+ * compact (encrypted at once, without chunks and signature) and whether chunks are compressed
+ * before they are encrypted. Large files which are mostly read sequentially (stored fields,
+ * doc values, vectors) benefit from larger chunks, small random reads (terms, postings) from
+ * smaller ones. The chunk length is recorded in the footer of every file, so readers do not
+ * depend on the policy.
+ */
+public final class CeffFilePolicy {
+
+  /** Chunk lengths of large, mostly sequentially read files */
+  public static final Map<String, Integer> DEFAULT_CHUNK_LENGTHS =
+      Map.of(
+          "fdt", 64 * 1024, // stored fields data
+          "dvd", 64 * 1024, // doc values data
+          "vec", 64 * 1024); // vector data
+
+  /** Files up to this length (field infos, metadata files) are written compact by default */
+  public static final int DEFAULT_COMPACT_LENGTH = 4 * 1024;
+
+  /** Compress the chunks of all encrypted files, see {@link #isCompressed(String)} */
+  public static final String ALL_EXTENSIONS = "*";
+
+  private final int defaultChunkLength;
+  private final Map<String, Integer> chunkLengths;
+  private final int compactLength;
+  private final Set<String> encryptedExtensions;
+  private final Set<String> plaintextExtensions;
+  private final Set<String> compressedExtensions;
+
+  /**
+   * @param defaultChunkLength Chunk length for all files without a specific one
+   * @param chunkLengths Chunk lengths by file extension (without the dot)
+   * @throws IllegalArgumentException if a chunk length is invalid, see {@link
+   *     CeffUtils#validateChunkLength(int)}
+   */
+  public CeffFilePolicy(int defaultChunkLength, Map<String, Integer> chunkLengths) {
+    this(defaultChunkLength, chunkLengths, DEFAULT_COMPACT_LENGTH);
+  }
+
+  /**
+   * @param defaultChunkLength Chunk length for all files without a specific one
+   * @param chunkLengths Chunk lengths by file extension (without the dot)
+   * @param compactLength Files up to this length are encrypted at once without chunk framing,
+   *     footer and signature. 0 disables compact files, at most {@link CeffUtils#CHUNK_SIZE_MIN}
+   * @throws IllegalArgumentException if a chunk length or the compact length is invalid
+   */
+  public CeffFilePolicy(
+      int defaultChunkLength, Map<String, Integer> chunkLengths, int compactLength) {
+    this(
+        defaultChunkLength,
+        chunkLengths,
+        compactLength,
+        Collections.emptySet(),
+        Collections.emptySet());
+  }
+
+  /**
+   * @param defaultChunkLength Chunk length for all files without a specific one
+   * @param chunkLengths Chunk lengths by file extension (without the dot)
+   * @param compactLength Files up to this length are encrypted at once, see {@link
+   *     #CeffFilePolicy(int, Map, int)}
+   * @param encryptedExtensions Only files with these extensions (without the dot) are encrypted,
+   *     empty to encrypt all files
+   * @param plaintextExtensions Files with these extensions (without the dot) are written in
+   *     plain text, takes precedence over encryptedExtensions
+   * @throws IllegalArgumentException if a chunk length or the compact length is invalid
+   */
+  public CeffFilePolicy(
+      int defaultChunkLength,
+      Map<String, Integer> chunkLengths,
+      int compactLength,
+      Set<String> encryptedExtensions,
+      Set<String> plaintextExtensions) {
+    this(
+        defaultChunkLength,
+        chunkLengths,
+        compactLength,
+        encryptedExtensions,
+        plaintextExtensions,
+        Collections.emptySet());
+  }
+
+  /**
+   * @param defaultChunkLength Chunk length for all files without a specific one
+   * @param chunkLengths Chunk lengths by file extension (without the dot)
+   * @param compactLength Files up to this length are encrypted at once, see {@link
+   *     #CeffFilePolicy(int, Map, int)}
+   * @param encryptedExtensions Only files with these extensions are encrypted, see {@link
+   *     #CeffFilePolicy(int, Map, int, Set, Set)}
+   * @param plaintextExtensions Files with these extensions are written in plain text
+   * @param compressedExtensions The chunks of encrypted files with these extensions (without the
+   *     dot, {@link #ALL_EXTENSIONS} for all files) are compressed before they are encrypted
+   * @throws IllegalArgumentException if a chunk length or the compact length is invalid
+   */
+  public CeffFilePolicy(
+      int defaultChunkLength,
+      Map<String, Integer> chunkLengths,
+      int compactLength,
+      Set<String> encryptedExtensions,
+      Set<String> plaintextExtensions,
+      Set<String> compressedExtensions) {
+    CeffUtils.validateChunkLength(defaultChunkLength);
+    for (final int chunkLength : chunkLengths.values()) {
+      CeffUtils.validateChunkLength(chunkLength);
+    }
+    if (compactLength < 0 || compactLength > CeffUtils.CHUNK_SIZE_MIN) {
+      throw new IllegalArgumentException(
+          "compactLength ("
+              + compactLength
+              + ") must be >= 0 and <= "
+              + CeffUtils.CHUNK_SIZE_MIN);
+    }
+    this.defaultChunkLength = defaultChunkLength;
+    this.chunkLengths = Collections.unmodifiableMap(new HashMap<>(chunkLengths));
+    this.compactLength = compactLength;
+    this.encryptedExtensions = Collections.unmodifiableSet(new HashSet<>(encryptedExtensions));
+    this.plaintextExtensions = Collections.unmodifiableSet(new HashSet<>(plaintextExtensions));
+    this.compressedExtensions = Collections.unmodifiableSet(new HashSet<>(compressedExtensions));
+  }
+
+  /** @return a policy which uses the same chunk length for all files */
+  public static CeffFilePolicy uniform(int chunkLength) {
+    return new CeffFilePolicy(chunkLength, Collections.emptyMap());
+  }
+
+  /**
+   * @return a policy which uses {@link #DEFAULT_CHUNK_LENGTHS} (overridden by chunkLengths) and
+   *     the given chunk length for all other files
+   */
+  public static CeffFilePolicy withDefaults(
+      int defaultChunkLength, Map<String, Integer> chunkLengths) {
+    return withDefaults(
+        defaultChunkLength, chunkLengths, Collections.emptySet(), Collections.emptySet());
+  }
+
+  /**
+   * @return a policy which uses {@link #DEFAULT_CHUNK_LENGTHS} (overridden by chunkLengths), the
+   *     given chunk length for all other files and encrypts files as given by the extension sets,
+   *     see {@link #CeffFilePolicy(int, Map, int, Set, Set)}
+   */
+  public static CeffFilePolicy withDefaults(
+      int defaultChunkLength,
+      Map<String, Integer> chunkLengths,
+      Set<String> encryptedExtensions,
+      Set<String> plaintextExtensions) {
+    return withDefaults(
+        defaultChunkLength,
+        chunkLengths,
+        encryptedExtensions,
+        plaintextExtensions,
+        Collections.emptySet());
+  }
+
+  /**
+   * @return a policy like {@link #withDefaults(int, Map, Set, Set)} which in addition compresses
+   *     the chunks of files with the given extensions, see {@link #isCompressed(String)}
+   */
+  public static CeffFilePolicy withDefaults(
+      int defaultChunkLength,
+      Map<String, Integer> chunkLengths,
+      Set<String> encryptedExtensions,
+      Set<String> plaintextExtensions,
+      Set<String> compressedExtensions) {
+    final Map<String, Integer> merged = new HashMap<>(DEFAULT_CHUNK_LENGTHS);
+    merged.putAll(chunkLengths);
+    return new CeffFilePolicy(
+        defaultChunkLength,
+        merged,
+        DEFAULT_COMPACT_LENGTH,
+        encryptedExtensions,
+        plaintextExtensions,
+        compressedExtensions);
+  }
+
+  /**
+   * Segment infos (.si), commit points (segments_N, pending_segments_N, also as part of recovery
+   * file names) and the file format records of {@link CeffDirectory} are always written in plain
+   * text, regardless of the policy.
+   *
+   * @return true if the file is never encrypted
+   */
+  public static boolean isAlwaysPlaintext(String fileName) {
+    // recovery.gzYQEWzvShazqZ1GrGVtSA.segments_2
+    return fileName.endsWith(".si")
+        || fileName.contains(IndexFileNames.PENDING_SEGMENTS + "_")
+        || fileName.contains(IndexFileNames.SEGMENTS + "_")
+        || fileName.startsWith(CeffFileFormats.RECORD_PREFIX);
+  }
+
+  /** @return true if the file is encrypted when written */
+  public boolean isEncrypted(String fileName) {
+    if (isAlwaysPlaintext(fileName)) {
+      return false;
+    }
+    final String extension = IndexFileNames.getExtension(fileName);
+    if (extension != null && this.plaintextExtensions.contains(extension)) {
+      return false;
+    }
+    return this.encryptedExtensions.isEmpty()
+        || (extension != null && this.encryptedExtensions.contains(extension));
+  }
+
+  /**
+   * Compression only pays off for files which Lucene does not compress itself (doc values,
+   * points, term dictionaries of low cardinality fields), stored fields are already compressed.
+   * Compact files are never compressed.
+   *
+   * @return true if the chunks of the file are compressed before they are encrypted
+   */
+  public boolean isCompressed(String fileName) {
+    if (this.compressedExtensions.isEmpty() || !this.isEncrypted(fileName)) {
+      return false;
+    }
+    final String extension = IndexFileNames.getExtension(fileName);
+    return this.compressedExtensions.contains(ALL_EXTENSIONS)
+        || (extension != null && this.compressedExtensions.contains(extension));
+  }
+
+  /** @return the chunk length for the given file */
+  public int chunkLength(String fileName) {
+    final String extension = IndexFileNames.getExtension(fileName);
+    if (extension == null) {
+      return this.defaultChunkLength;
+    }
+    return this.chunkLengths.getOrDefault(extension, this.defaultChunkLength);
+  }
+
+  public int getDefaultChunkLength() {
+    return this.defaultChunkLength;
+  }
+
+  public Map<String, Integer> getChunkLengths() {
+    return this.chunkLengths;
+  }
+
+  /** @return the extensions of encrypted files, empty if all files are encrypted */
+  public Set<String> getEncryptedExtensions() {
+    return this.encryptedExtensions;
+  }
+
+  public Set<String> getPlaintextExtensions() {
+    return this.plaintextExtensions;
+  }
+
+  /** @return the extensions of files whose chunks are compressed, empty if none */
+  public Set<String> getCompressedExtensions() {
+    return this.compressedExtensions;
+  }
+
+  /** @return the maximum plain text length of compact files, 0 if disabled */
+  public int getCompactLength() {
+    return this.compactLength;
+  }
+}
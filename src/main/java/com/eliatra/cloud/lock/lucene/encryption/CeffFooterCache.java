@@ -0,0 +1,232 @@
+/* 
+ * Copyright (C) 2021 by eliatra Ltd. - All Rights Reserved
+ * Unauthorized copying, usage or modification of this file in its source or binary form, 
+ * via any medium is strictly prohibited.
+ * Proprietary and confidential.
+ * 
+ * https://eliatra.com
+ */
+package com.eliatra.cloud.lock.lucene.encryption;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.store.IndexInput;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded (least recently used) cache of the footer metadata of encrypted files, so that {@link
+ * CeffDirectory#fileLength(String)} returns the plain text length without opening the file.
+ *
+ * <p>Filled when a file is written and when it is opened. For other files only the header and
+ * the unencrypted footer AAD are read, nothing is decrypted or scanned. Entries are only used
+ * while the physical length of the file is unchanged.
+ */
+final class CeffFooterCache {
+
+  static final int DEFAULT_CAPACITY = 10_000;
+
+  /** Mode of a file from its header, chunk length, last chunk and plain length from its footer */
+  static final class Footer {
+
+    private final CeffMode mode;
+    private final long physicalLength;
+    private final int chunkLength;
+    private final long lastChunk;
+    private final long plainLength;
+
+    Footer(CeffMode mode, long physicalLength, int chunkLength, long lastChunk, long plainLength) {
+      this.mode = mode;
+      this.physicalLength = physicalLength;
+      this.chunkLength = chunkLength;
+      this.lastChunk = lastChunk;
+      this.plainLength = plainLength;
+    }
+
+    /** A compact file has no chunks and no footer */
+    static Footer compact(CeffMode mode, long physicalLength, long plainLength) {
+      return new Footer(mode, physicalLength, 0, -1L, plainLength);
+    }
+
+    CeffMode getMode() {
+      return this.mode;
+    }
+
+    long getPhysicalLength() {
+      return this.physicalLength;
+    }
+
+    /** @return the chunk length, 0 for compact files */
+    int getChunkLength() {
+      return this.chunkLength;
+    }
+
+    /** @return the number of the last chunk, -1 for compact files */
+    long getLastChunk() {
+      return this.lastChunk;
+    }
+
+    long getPlainLength() {
+      return this.plainLength;
+    }
+  }
+
+  private final Map<String, Footer> footers;
+
+  CeffFooterCache(int capacity) {
+    this.footers =
+        new LinkedHashMap<String, Footer>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, Footer> eldest) {
+            return this.size() > capacity;
+          }
+        };
+  }
+
+  /** @return the footer of the file, null if unknown or the file changed since */
+  synchronized Footer get(String fileName, long physicalLength) {
+    final Footer footer = this.footers.get(fileName);
+    return footer != null && footer.physicalLength == physicalLength ? footer : null;
+  }
+
+  synchronized void put(String fileName, Footer footer) {
+    this.footers.put(fileName, footer);
+  }
+
+  synchronized void remove(String fileName) {
+    this.footers.remove(fileName);
+  }
+
+  synchronized void rename(String source, String dest) {
+    final Footer footer = this.footers.remove(source);
+    if (footer != null) {
+      this.footers.put(dest, footer);
+    } else {
+      this.footers.remove(dest);
+    }
+  }
+
+  /**
+   * Read the footer metadata of a file without decrypting or authenticating anything.
+   *
+   * @param in The physical file
+   * @return the footer, null if the file is not encrypted or incomplete (still being written)
+   */
+  static Footer read(IndexInput in) throws IOException {
+    final long physicalLength = in.length();
+
+    // magic, mode and flags
+    if (physicalLength < CeffUtils.MAGIC_LENGTH + 2 || in.readInt() != CeffUtils.CEFF_MAGIC) {
+      return null;
+    }
+
+    final byte modeByte = in.readByte();
+    final CeffMode mode;
+    try {
+      mode = CeffMode.getByModeByte((byte) (modeByte & ~CeffUtils.EXTENDED_HEADER_BIT));
+    } catch (final CeffCryptoException | IllegalArgumentException e) {
+      return null;
+    }
+    final int flags = (modeByte & CeffUtils.EXTENDED_HEADER_BIT) != 0 ? in.readByte() & 0xFF : 0;
+    final int headerLength = CeffUtils.headerLength(mode, flags);
+    // the aad table of version 2 files and the merkle tree of version 3 files precede the footer
+    final boolean versioned = (flags & CeffUtils.FLAG_VERSIONED) != 0;
+    int version = 1;
+    long headerChunkLength = 0L;
+
+    if (versioned) {
+      if (physicalLength < headerLength) {
+        return null;
+      }
+      version = in.readByte() & 0xFF;
+      if (version != CeffUtils.FORMAT_VERSION_2 && version != CeffUtils.FORMAT_VERSION_3) {
+        return null;
+      }
+      headerChunkLength = in.readInt();
+    }
+
+    if ((flags & CeffUtils.FLAG_COMPACT) != 0) {
+      final long plainLength = physicalLength - headerLength - mode.getTagLength();
+      return plainLength >= 0 ? Footer.compact(mode, physicalLength, plainLength) : null;
+    }
+
+    if (physicalLength < headerLength + CeffUtils.footerLength(mode)) {
+      return null;
+    }
+
+    in.seek(physicalLength - CeffUtils.footerLength(mode));
+    final long chunkLength = in.readLong();
+    final long lastChunk = in.readLong();
+    final long plainLength = in.readLong();
+
+    if ((flags & CeffUtils.FLAG_COMPRESSED) != 0) {
+      return readCompressed(in, mode, headerLength, chunkLength, lastChunk, plainLength);
+    }
+
+    // an incomplete file has no footer yet, the values would not match its length
+    if (chunkLength < CeffUtils.CHUNK_SIZE_MIN
+        || chunkLength > CeffUtils.CHUNK_SIZE_MAX
+        || (versioned && chunkLength != headerChunkLength)
+        || plainLength < 0
+        || lastChunk < 0
+        || physicalLength
+            != headerLength
+                + plainLength
+                + (lastChunk + 1) * CeffUtils.cryptoLength(mode)
+                + trailerLength(version, lastChunk + 1)
+                + CeffUtils.footerLength(mode)) {
+      return null;
+    }
+
+    return new Footer(mode, physicalLength, (int) chunkLength, lastChunk, plainLength);
+  }
+
+  /** @return the length of the aad table or the merkle tree between the chunks and the footer */
+  private static long trailerLength(int version, long chunks) {
+    switch (version) {
+      case CeffUtils.FORMAT_VERSION_2:
+        return chunks * CeffUtils.AAD_LENGTH;
+      case CeffUtils.FORMAT_VERSION_3:
+        return CeffMerkleTree.length(chunks);
+      default:
+        return 0L;
+    }
+  }
+
+  /**
+   * The length of compressed chunks is only known from the chunk table, see {@link
+   * CeffCompressedIndexInput}. A complete file is recognized by its bounds and the plain text
+   * footer magic written last.
+   */
+  private static Footer readCompressed(
+      IndexInput in,
+      CeffMode mode,
+      int headerLength,
+      long chunkLength,
+      long lastChunk,
+      long plainLength)
+      throws IOException {
+    final long physicalLength = in.length();
+
+    if (chunkLength < CeffUtils.CHUNK_SIZE_MIN
+        || chunkLength > CeffUtils.CHUNK_SIZE_MAX
+        || lastChunk < 0
+        || lastChunk >= Integer.MAX_VALUE / Integer.BYTES
+        || plainLength < lastChunk * chunkLength
+        || plainLength > (lastChunk + 1) * chunkLength
+        || physicalLength
+            < headerLength
+                + (lastChunk + 1) * (CeffUtils.cryptoLength(mode) + Integer.BYTES)
+                + CeffUtils.footerLength(mode)) {
+      return null;
+    }
+
+    in.seek(physicalLength - 16);
+    if (CodecUtil.readBEInt(in) != CodecUtil.FOOTER_MAGIC) {
+      return null;
+    }
+
+    return new Footer(mode, physicalLength, (int) chunkLength, lastChunk, plainLength);
+  }
+}
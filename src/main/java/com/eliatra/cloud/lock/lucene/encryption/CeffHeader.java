@@ -0,0 +1,245 @@
+/* 
+ * Copyright (C) 2021 by eliatra Ltd. - All Rights Reserved
+ * Unauthorized copying, usage or modification of this file in its source or binary form, 
+ * via any medium is strictly prohibited.
+ * Proprietary and confidential.
+ * 
+ * https://eliatra.com
+ */
+package com.eliatra.cloud.lock.lucene.encryption;
+
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The header of a Ceff file and the key of the file it protects. Two layouts exist:
+ *
+ * <ul>
+ *   <li>wrapped: MAGIC, MODE, NONCE, ENCRYPTED_FILE_KEY. The random file key is encrypted with
+ *       the shard key.
+ *   <li>extended: MAGIC, MODE | {@link CeffUtils#EXTENDED_HEADER_BIT}, FLAGS, [SALT]. With
+ *       {@link CeffUtils#FLAG_DERIVED_KEY} the file key is derived from the shard key and the
+ *       salt, see {@link CeffKeyDerivation}. With {@link CeffUtils#FLAG_EPHEMERAL} in addition
+ *       it is derived from {@link CeffKeyDerivation#EPHEMERAL_KEY} instead of the shard key.
+ *       With {@link CeffUtils#FLAG_COMPACT} the header is followed by a {@link CeffCompactFile},
+ *       with {@link CeffUtils#FLAG_COMPRESSED} by compressed chunks, see {@link
+ *       CeffCompressedIndexInput}.
+ *   <li>version 2 and 3: MAGIC, MODE | {@link CeffUtils#EXTENDED_HEADER_BIT}, FLAGS, VERSION,
+ *       CHUNK_LENGTH, SALT. FLAGS are {@link CeffUtils#FLAG_DERIVED_KEY} and {@link
+ *       CeffUtils#FLAG_VERSIONED}. The chunks are followed by a table of their AADs (version 2)
+ *       or by a {@link CeffMerkleTree} (version 3), see {@link CeffIndexInput}.
+ *   <li>extended with a wrapped key: like the extended or versioned layout with {@link
+ *       CeffUtils#FLAG_WRAPPED_KEY} instead of {@link CeffUtils#FLAG_DERIVED_KEY}, NONCE and
+ *       ENCRYPTED_FILE_KEY take the place of the SALT. Written when a compressed or versioned file
+ *       is copied to a shard with another key, the rest of the file is copied as it is.
+ * </ul>
+ */
+final class CeffHeader {
+
+  private final CeffMode mode;
+  private final int flags;
+  private final int version;
+  private final int chunkLength;
+  private final byte[] key;
+
+  private CeffHeader(CeffMode mode, int flags, int version, int chunkLength, byte[] key) {
+    this.mode = mode;
+    this.flags = flags;
+    this.version = version;
+    this.chunkLength = chunkLength;
+    this.key = key;
+  }
+
+  /**
+   * Read the header at the current position and decrypt or derive the file key
+   *
+   * @param in Positioned at the start of the file
+   * @param shardKey The key the file key was wrapped with or derived from
+   * @throws IOException if the delegate throws an IOException
+   * @throws CeffCryptoException if the file key can not be decrypted
+   * @throws IllegalArgumentException if this is not a Ceff file or the mode is unknown
+   */
+  static CeffHeader read(DataInput in, byte[] shardKey) throws IOException, CeffCryptoException {
+    CeffUtils.validateMagicHeaderBytes(in.readInt());
+
+    final byte modeByte = in.readByte();
+
+    if ((modeByte & CeffUtils.EXTENDED_HEADER_BIT) == 0) {
+      final CeffMode mode = CeffMode.getByModeByte(modeByte);
+      mode.validateKey(shardKey);
+      return new CeffHeader(mode, 0, 1, 0, readWrappedKey(in, mode, shardKey));
+    }
+
+    final CeffMode mode =
+        CeffMode.getByModeByte((byte) (modeByte & ~CeffUtils.EXTENDED_HEADER_BIT));
+    mode.validateKey(shardKey);
+    final int flags = in.readByte() & 0xFF;
+
+    if (flags != CeffUtils.FLAG_DERIVED_KEY
+        && flags != (CeffUtils.FLAG_DERIVED_KEY | CeffUtils.FLAG_EPHEMERAL)
+        && flags != (CeffUtils.FLAG_DERIVED_KEY | CeffUtils.FLAG_COMPACT)
+        && flags != (CeffUtils.FLAG_DERIVED_KEY | CeffUtils.FLAG_COMPRESSED)
+        && flags != (CeffUtils.FLAG_DERIVED_KEY | CeffUtils.FLAG_VERSIONED)
+        && flags != (CeffUtils.FLAG_WRAPPED_KEY | CeffUtils.FLAG_COMPRESSED)
+        && flags != (CeffUtils.FLAG_WRAPPED_KEY | CeffUtils.FLAG_VERSIONED)) {
+      throw new CeffCryptoException("Unsupported header flags: " + flags, mode);
+    }
+
+    int version = 1;
+    int chunkLength = 0;
+    if ((flags & CeffUtils.FLAG_VERSIONED) != 0) {
+      version = in.readByte() & 0xFF;
+      if (version != CeffUtils.FORMAT_VERSION_2 && version != CeffUtils.FORMAT_VERSION_3) {
+        throw new CeffCryptoException("Unsupported format version: " + version, mode);
+      }
+      chunkLength = in.readInt();
+      try {
+        CeffUtils.validateChunkLength(chunkLength);
+      } catch (final IllegalArgumentException e) {
+        throw new CeffCryptoException("Invalid chunk length in header: " + chunkLength, e, mode);
+      }
+    }
+
+    if ((flags & CeffUtils.FLAG_WRAPPED_KEY) != 0) {
+      return new CeffHeader(mode, flags, version, chunkLength, readWrappedKey(in, mode, shardKey));
+    }
+
+    final byte[] salt = new byte[CeffKeyDerivation.SALT_LENGTH];
+    in.readBytes(salt, 0, salt.length);
+    final byte[] keyMaterial =
+        (flags & CeffUtils.FLAG_EPHEMERAL) != 0 ? CeffKeyDerivation.EPHEMERAL_KEY : shardKey;
+    return new CeffHeader(
+        mode, flags, version, chunkLength, CeffKeyDerivation.deriveKey(keyMaterial, salt, mode));
+  }
+
+  private static byte[] readWrappedKey(DataInput in, CeffMode mode, byte[] shardKey)
+      throws IOException, CeffCryptoException {
+    final byte[] nonce = new byte[mode.getNonceLength()];
+    final byte[] encryptedKey = new byte[32 + mode.getTagLength()];
+    in.readBytes(nonce, 0, nonce.length);
+    in.readBytes(encryptedKey, 0, encryptedKey.length);
+    return mode.decrypt(ByteBuffer.wrap(encryptedKey), null, shardKey, nonce);
+  }
+
+  /**
+   * Write a header with a random file key encrypted by the shard key
+   *
+   * @return the header length
+   */
+  static int writeWrapped(DataOutput out, CeffMode mode, byte[] shardKey, byte[] fileKey)
+      throws IOException, CeffCryptoException {
+    return writeWrapped(out, mode, 0, 1, 0, shardKey, fileKey);
+  }
+
+  /**
+   * Write a header with a file key encrypted by the shard key
+   *
+   * @param flags 0 or one of {@link CeffUtils#FLAG_COMPRESSED} and {@link
+   *     CeffUtils#FLAG_VERSIONED}, {@link CeffUtils#FLAG_WRAPPED_KEY} is added unless 0
+   * @param version The format version and
+   * @param chunkLength the chunk length, both only written with {@link CeffUtils#FLAG_VERSIONED}
+   * @return the header length
+   */
+  static int writeWrapped(
+      DataOutput out,
+      CeffMode mode,
+      int flags,
+      int version,
+      int chunkLength,
+      byte[] shardKey,
+      byte[] fileKey)
+      throws IOException, CeffCryptoException {
+    assert flags == 0 || flags == CeffUtils.FLAG_COMPRESSED || flags == CeffUtils.FLAG_VERSIONED;
+    out.writeInt(CeffUtils.CEFF_MAGIC);
+    if (flags == 0) {
+      out.writeByte(mode.getModeByte());
+    } else {
+      flags |= CeffUtils.FLAG_WRAPPED_KEY;
+      out.writeByte((byte) (mode.getModeByte() | CeffUtils.EXTENDED_HEADER_BIT));
+      out.writeByte((byte) flags);
+      if ((flags & CeffUtils.FLAG_VERSIONED) != 0) {
+        out.writeByte((byte) version);
+        out.writeInt(chunkLength);
+      }
+    }
+    final byte[] nonce = mode.randomNonce();
+    final byte[] encryptedKey = mode.encrypt(ByteBuffer.wrap(fileKey), null, shardKey, nonce);
+    out.writeBytes(nonce, nonce.length);
+    out.writeBytes(encryptedKey, encryptedKey.length);
+    return CeffUtils.headerLength(mode, flags);
+  }
+
+  /**
+   * Write a header for a file key derived from the salt and the shard key (or the ephemeral key)
+   *
+   * @param flags {@link CeffUtils#FLAG_DERIVED_KEY} and optionally {@link
+   *     CeffUtils#FLAG_EPHEMERAL}, {@link CeffUtils#FLAG_COMPACT}, {@link
+   *     CeffUtils#FLAG_COMPRESSED} or {@link CeffUtils#FLAG_VERSIONED}
+   * @param version The format version and
+   * @param chunkLength the chunk length, both only written with {@link CeffUtils#FLAG_VERSIONED}
+   * @return the header length
+   */
+  static int writeDerived(
+      DataOutput out, CeffMode mode, byte[] salt, int flags, int version, int chunkLength)
+      throws IOException {
+    assert salt.length == CeffKeyDerivation.SALT_LENGTH;
+    assert (flags & CeffUtils.FLAG_DERIVED_KEY) != 0;
+    out.writeInt(CeffUtils.CEFF_MAGIC);
+    out.writeByte((byte) (mode.getModeByte() | CeffUtils.EXTENDED_HEADER_BIT));
+    out.writeByte((byte) flags);
+    if ((flags & CeffUtils.FLAG_VERSIONED) != 0) {
+      out.writeByte((byte) version);
+      out.writeInt(chunkLength);
+    }
+    out.writeBytes(salt, salt.length);
+    return CeffUtils.headerLength(mode, flags);
+  }
+
+  CeffMode getMode() {
+    return this.mode;
+  }
+
+  int getFlags() {
+    return this.flags;
+  }
+
+  /** @return true if the file is temporary and has no signature over its chunks */
+  boolean isEphemeral() {
+    return (this.flags & CeffUtils.FLAG_EPHEMERAL) != 0;
+  }
+
+  /** @return true if the header is followed by a {@link CeffCompactFile} */
+  boolean isCompact() {
+    return (this.flags & CeffUtils.FLAG_COMPACT) != 0;
+  }
+
+  /** @return true if the chunks of the file may be compressed */
+  boolean isCompressed() {
+    return (this.flags & CeffUtils.FLAG_COMPRESSED) != 0;
+  }
+
+  /** @return the format version, 1 unless {@link CeffUtils#FLAG_VERSIONED} is set */
+  int getVersion() {
+    return this.version;
+  }
+
+  /**
+   * @return the chunk length of a version 2 or 3 file, 0 for older files (it is in the footer)
+   */
+  int getChunkLength() {
+    return this.chunkLength;
+  }
+
+  /** @return the decrypted or derived file key */
+  byte[] getKey() {
+    return this.key;
+  }
+
+  /** @return the length of this header in bytes */
+  int length() {
+    return CeffUtils.headerLength(this.mode, this.flags);
+  }
+}
@@ -8,6 +8,8 @@
  */
 package com.eliatra.cloud.lock.lucene.encryption;
 
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.store.IOContext;
 import org.apache.lucene.store.IndexInput;
 import org.apache.lucene.util.ArrayUtil;
 
@@ -18,6 +20,8 @@ import java.nio.ByteOrder;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * A {@link IndexInput} implementation which wraps an underlying IndexInput and decrypt all read
@@ -27,6 +31,18 @@ public final class CeffIndexInput extends IndexInput {
 
   private static final IndexInput EMPTY_INDEX_INPUT = new EmptyIndexInput();
 
+  /** Minimum number of whole chunks a single read must span to decrypt them in parallel */
+  static final int PARALLEL_DECRYPT_MIN_CHUNKS = 4;
+
+  /** Maximum number of chunks decrypted in one parallel batch */
+  static final int PARALLEL_DECRYPT_MAX_CHUNKS = 64;
+
+  /** Upper bound for the ciphertext buffer of a parallel batch in bytes */
+  static final int PARALLEL_DECRYPT_MAX_BATCH_BYTES = 8 * 1024 * 1024;
+
+  /** Number of chunk aads read at once from the table of a version 2 file */
+  private static final int AAD_TABLE_BLOCK_CHUNKS = 1024;
+
   private IndexInput delegate;
   /** same value also for slices */
   private IndexInput physicalDelegate;
@@ -35,6 +51,18 @@ public final class CeffIndexInput extends IndexInput {
   private ByteBuffer buffer;
   private byte[] singleByteBuffer = new byte[1];
   private byte[] readBuffer;
+  /** ciphertext of a parallel batch, allocated lazily and never shared with clones */
+  private byte[] parallelReadBuffer;
+  /** plaintext of chunks decrypted ahead, allocated lazily and never shared with clones */
+  private byte[] readAheadBuffer;
+  /** heap used by the buffers of this input, every clone and slice has its own */
+  private CeffBufferAccounting.Reservation reservation;
+  /** null unless this input was sampled by {@link CeffAccessTrace}, shared with clones and slices */
+  private CeffAccessTrace.FileTrace trace;
+  private long readAheadFirstChunk = -1L;
+  private int readAheadChunks = 0;
+  /** same value also for clones, always false for slices */
+  private final boolean readAhead;
   private ByteBuffer aadBuffer = ByteBuffer.allocate(CeffUtils.AAD_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
   private long absoluteStartChunk = -1L;
   private final long length;
@@ -54,6 +82,18 @@ public final class CeffIndexInput extends IndexInput {
   private boolean isClone = false;
   /** same value also for slices */
   private final CeffMode mode;
+  /** same value also for slices */
+  private final int headerLength;
+  /**
+   * length of everything after the last chunk (aad table or merkle tree and footer), same value
+   * also for slices
+   */
+  private final long trailerLength;
+  /** null unless the file is of format version 3, same instance also for clones and slices */
+  private final CeffMerkleTree merkleTree;
+  /** reads the nodes of the merkle tree, created lazily and never shared with clones */
+  private IndexInput merkleInput;
+  private MessageDigest merkleDigest;
 
   /**
    * Sole constructor
@@ -64,12 +104,84 @@ public final class CeffIndexInput extends IndexInput {
    * @throws IllegalArgumentException when chunkSize or key is invalid
    */
   public CeffIndexInput(IndexInput delegate, byte[] key) throws IOException {
-    this(delegate, key, delegate, 0, 0, 0, 0, 0, null, false);
+    this(delegate, key, IOContext.DEFAULT);
+  }
+
+  /**
+   * Create a new input. Inputs opened with a {@link IOContext#READONCE} context are expected to
+   * be read sequentially (checksum verification, recovery, snapshots) and decrypt the following
+   * chunks ahead in parallel.
+   *
+   * @param delegate The wrapped input
+   * @param key en-/decryption key
+   * @param context The context the input was opened with
+   * @throws IOException also in case the file was tampered with
+   * @throws IllegalArgumentException when chunkSize or key is invalid
+   */
+  public CeffIndexInput(IndexInput delegate, byte[] key, IOContext context) throws IOException {
+    this(delegate, key, context, false);
+  }
+
+  /**
+   * Create a new input.
+   *
+   * @param delegate The wrapped input
+   * @param key en-/decryption key
+   * @param context The context the input was opened with
+   * @param alreadyVerified true if the same file was already verified by another input, the
+   *     signature over all chunks is then not validated again. The footer is always
+   *     authenticated and every chunk is still authenticated when it is decrypted.
+   * @throws IOException also in case the file was tampered with
+   * @throws IllegalArgumentException when chunkSize or key is invalid
+   */
+  public CeffIndexInput(
+      IndexInput delegate, byte[] key, IOContext context, boolean alreadyVerified)
+      throws IOException {
+    this(delegate, key, null, context, alreadyVerified);
+  }
+
+  /**
+   * Create a new input for a file whose header was already read
+   *
+   * @param delegate The wrapped input, positioned right after the header
+   * @param header The header of the file, must not be compact
+   */
+  CeffIndexInput(
+      IndexInput delegate, CeffHeader header, IOContext context, boolean alreadyVerified)
+      throws IOException {
+    this(delegate, null, header, context, alreadyVerified);
+  }
+
+  private CeffIndexInput(
+      IndexInput delegate,
+      byte[] key,
+      CeffHeader header,
+      IOContext context,
+      boolean alreadyVerified)
+      throws IOException {
+    this(
+        delegate,
+        key,
+        header,
+        delegate,
+        0,
+        0,
+        0,
+        0,
+        0,
+        null,
+        0,
+        0L,
+        null,
+        false,
+        context.readOnce,
+        alreadyVerified);
   }
 
   private CeffIndexInput(
       final IndexInput delegate,
       final byte[] key0,
+      final CeffHeader header0,
       final IndexInput physicalDelegate0,
       final long sliceOffset0,
       final long sliceLength0,
@@ -77,12 +189,18 @@ public final class CeffIndexInput extends IndexInput {
       final long absoluteChunkCount0,
       final long plainFileLength0,
       final CeffMode mode0,
-      final boolean slice0)
+      final int headerLength0,
+      final long trailerLength0,
+      final CeffMerkleTree merkleTree0,
+      final boolean slice0,
+      final boolean readAhead0,
+      final boolean alreadyVerified)
       throws IOException {
     super("Ceff " + delegate.toString());
     this.delegate = delegate;
     this.physicalDelegate = physicalDelegate0;
     this.sliceOffset = sliceOffset0;
+    this.readAhead = readAhead0 && !slice0;
 
     if (slice0) {
       // slice (or slice of slice)
@@ -94,6 +212,9 @@ public final class CeffIndexInput extends IndexInput {
       this.plainFileLength = plainFileLength0;
       this.absoluteChunkCount = absoluteChunkCount0;
       this.mode = mode0;
+      this.headerLength = headerLength0;
+      this.trailerLength = trailerLength0;
+      this.merkleTree = merkleTree0;
       this.key = key0;
 
     } else {
@@ -104,29 +225,45 @@ public final class CeffIndexInput extends IndexInput {
       assert sliceOffset0 == 0;
       assert this.physicalDelegate.length() > 0:this.physicalDelegate+" is empty";
 
-      final int magic = this.physicalDelegate.readInt();
-
-      CeffUtils.validateMagicHeaderBytes(magic);
-
-      final byte ceffmode = this.physicalDelegate.readByte();
       try {
-        this.mode = CeffMode.getByModeByte(ceffmode);
-        this.mode.validateKey(key0);
+        final CeffHeader header =
+            header0 != null ? header0 : CeffHeader.read(this.physicalDelegate, key0);
+        if (header.isCompact()) {
+          throw new IllegalArgumentException("compact files are not chunked");
+        }
+        this.mode = header.getMode();
+        this.headerLength = header.length();
+        this.key = header.getKey();
         this.slice = false;
 
-        byte[] nonce = null;
-        nonce = new byte[mode.getNonceLength()];
-        final byte[] ekey = new byte[32+mode.getTagLength()];
-        this.physicalDelegate.readBytes(nonce,0,mode.getNonceLength());
-        this.physicalDelegate.readBytes(ekey,0,32+mode.getTagLength());
-        this.key = mode.decrypt(ByteBuffer.wrap(ekey), null, key0, nonce);
-
-        // seek to footer
-        this.physicalDelegate.seek(
-            this.physicalDelegate.length() - CeffUtils.footerLength(this.mode));
+        final long physicalLength = this.physicalDelegate.length();
+        final long footerStart = physicalLength - CeffUtils.footerLength(this.mode);
+        final boolean merkle = header.getVersion() >= CeffUtils.FORMAT_VERSION_3;
+        // the chunks of a version 3 file are verified against the merkle tree when they are
+        // loaded, only the root is verified here
+        final boolean verify = !alreadyVerified && !header.isEphemeral() && !merkle;
+        long tableChunks = 0L;
+
+        if (header.getVersion() == CeffUtils.FORMAT_VERSION_2) {
+          // the aad table directly precedes the footer, its length follows from the chunk
+          // length in the header. Table and footer are read in one go
+          tableChunks =
+              CeffUtils.calculateNumberOfChunksV2(
+                  physicalLength, header.getChunkLength(), this.mode, this.headerLength);
+          if (tableChunks <= 0L) {
+            throw new CeffCryptoException("verification failed: file too short", this.mode);
+          }
+        }
 
+        final long tableStart = footerStart - tableChunks * CeffUtils.AAD_LENGTH;
+        final MessageDigest sha512md = verify ? newSha512() : null;
 
-        //this.physicalDelegate.readBytes(nonce, 0, nonce.length);
+        if (tableChunks > 0L && verify) {
+          this.physicalDelegate.seek(tableStart);
+          this.readAadTable(tableChunks, sha512md);
+        } else {
+          this.physicalDelegate.seek(footerStart);
+        }
 
         this.chunkLength = this.castSafe(this.physicalDelegate.readLong());
 
@@ -136,6 +273,37 @@ public final class CeffIndexInput extends IndexInput {
         this.length = this.plainFileLength;
         this.absoluteChunkCount = lastChunk + 1;
 
+        if (header.getVersion() >= CeffUtils.FORMAT_VERSION_2
+            && this.chunkLength != header.getChunkLength()) {
+          throw new CeffCryptoException(
+              "verification failed: footer does not match the header", this.mode);
+        }
+
+        final long treeStart;
+        if (merkle) {
+          // the footer is authenticated below, the length of the file must match it
+          final long lastChunkLength = this.plainFileLength - lastChunk * this.chunkLength;
+          if (lastChunk < 0L || lastChunkLength < 0L || lastChunkLength > this.chunkLength) {
+            throw new CeffCryptoException(
+                "verification failed: footer does not match the file length", this.mode);
+          }
+          treeStart = footerStart - CeffMerkleTree.length(this.absoluteChunkCount);
+          if (treeStart
+              != this.headerLength
+                  + this.plainFileLength
+                  + this.absoluteChunkCount * CeffUtils.cryptoLength(this.mode)) {
+            throw new CeffCryptoException(
+                "verification failed: footer does not match the file length", this.mode);
+          }
+        } else {
+          if (tableChunks > 0L && this.absoluteChunkCount != tableChunks) {
+            throw new CeffCryptoException(
+                "verification failed: footer does not match the header", this.mode);
+          }
+          treeStart = tableStart;
+        }
+        this.trailerLength = physicalLength - treeStart;
+
         this.aadBuffer.clear();
         this.aadBuffer.putLong(this.chunkLength);
         this.aadBuffer.putLong(lastChunk);
@@ -147,49 +315,33 @@ public final class CeffIndexInput extends IndexInput {
             sigCipher, 0, CeffUtils.SIGNATURE_LENGTH + this.mode.getTagLength());
         // decrypt signature and validate aad
 
-        nonce = CeffUtils.longToNonce(this.absoluteChunkCount, mode.getNonceLength());
+        final byte[] nonce = CeffUtils.longToNonce(this.absoluteChunkCount, mode.getNonceLength());
 
         final byte[] plainTextSignature =
             this.mode.decrypt(ByteBuffer.wrap(sigCipher), this.aadBuffer, this.key, nonce);
 
-        // scan file and validate signature
-        MessageDigest sha512md;
-        try {
-          sha512md = MessageDigest.getInstance(CeffUtils.SHA512_DIGEST_ALGO);
-        } catch (final NoSuchAlgorithmException e) {
-          // cannot happen
-          throw new RuntimeException(e);
+        if (merkle) {
+          // the signature is the root of the merkle tree
+          this.merkleTree =
+              CeffMerkleTree.open(
+                  this.physicalDelegate,
+                  this.mode,
+                  this.absoluteChunkCount,
+                  treeStart,
+                  plainTextSignature);
+        } else {
+          this.merkleTree = null;
         }
 
-        for (long k = 0; k < this.absoluteChunkCount; k++) {
-          // seek to the start of the chunk
-          this.physicalDelegate.seek(
-                  CeffUtils.headerLength(mode)
-                  //+ this.mode.getNonceLength()
-                  + (k
-                      * (CeffUtils.AAD_LENGTH
-                          + this.chunkLength
-                          + this.mode.getTagLength()
-                          //+ this.mode.getNonceLength()
-                  )));
-          final long chunk = this.physicalDelegate.readLong();
-          final long chunkIdMsb = this.physicalDelegate.readLong();
-          final long chunkIdLsb = this.physicalDelegate.readLong();
-
-          this.aadBuffer.clear();
-          this.aadBuffer.putLong(chunk);
-          this.aadBuffer.putLong(chunkIdMsb);
-          this.aadBuffer.putLong(chunkIdLsb);
-          this.aadBuffer.flip();
-          sha512md.update(this.aadBuffer);
-
-          if (chunk != k) {
-            throw new CeffCryptoException("verification failed: chunk number mismatch", this.mode);
+        // scan file and validate signature, ephemeral files have no signature
+        if (verify) {
+          if (tableChunks == 0L) {
+            this.scanChunkAads(sha512md);
           }
-        }
 
-        if (!Arrays.equals(plainTextSignature, sha512md.digest())) {
-          throw new CeffCryptoException("verification failed: signature mismatch", this.mode);
+          if (!Arrays.equals(plainTextSignature, sha512md.digest())) {
+            throw new CeffCryptoException("verification failed: signature mismatch", this.mode);
+          }
         }
 
       } catch (final CeffCryptoException e) {
@@ -198,22 +350,88 @@ public final class CeffIndexInput extends IndexInput {
         throw e;
       }
 
+      // without the aad table or merkle tree the layout is the one of version 1
       assert this.absoluteChunkCount
           == CeffUtils.calculateNumberOfChunks(
-              this.physicalDelegate.length(), this.chunkLength, this.mode);
+              this.physicalDelegate.length() - this.trailerLength + CeffUtils.footerLength(this.mode),
+              this.chunkLength,
+              this.mode,
+              this.headerLength);
       assert this.plainFileLength
           == CeffUtils.calculatePlainFileLength(
-              this.physicalDelegate.length(), this.chunkLength, this.mode);
+              this.physicalDelegate.length() - this.trailerLength + CeffUtils.footerLength(this.mode),
+              this.chunkLength,
+              this.mode,
+              this.headerLength);
 
       // seek to the start of the first chunk
-      this.physicalDelegate.seek(CeffUtils.headerLength(mode));
+      this.physicalDelegate.seek(this.headerLength);
     }
 
+    this.reservation = CeffBufferAccounting.reserve(this, this.bufferLength(), this.toString());
     this.buffer = ByteBuffer.allocate(this.chunkLength).order(ByteOrder.LITTLE_ENDIAN);
     this.readBuffer = new byte[this.chunkLength + CeffUtils.cryptoLength(this.mode)];
     this.decryptChunk(); // decrypt first chunk
   }
 
+  private static MessageDigest newSha512() {
+    try {
+      return MessageDigest.getInstance(CeffUtils.SHA512_DIGEST_ALGO);
+    } catch (final NoSuchAlgorithmException e) {
+      // cannot happen
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Read the aad table of a version 2 file at the current position and add it to the digest.
+   * One sequential read instead of one read per chunk, see {@link #scanChunkAads(MessageDigest)}.
+   */
+  private void readAadTable(long chunks, MessageDigest sha512md)
+      throws IOException, CeffCryptoException {
+    final byte[] block =
+        new byte
+            [(int) Math.min(chunks, AAD_TABLE_BLOCK_CHUNKS)
+                * CeffUtils.AAD_LENGTH];
+    final ByteBuffer entries = ByteBuffer.wrap(block).order(ByteOrder.LITTLE_ENDIAN);
+
+    for (long k = 0; k < chunks; ) {
+      final int blockChunks = (int) Math.min(chunks - k, AAD_TABLE_BLOCK_CHUNKS);
+      this.physicalDelegate.readBytes(block, 0, blockChunks * CeffUtils.AAD_LENGTH);
+      sha512md.update(block, 0, blockChunks * CeffUtils.AAD_LENGTH);
+
+      for (int i = 0; i < blockChunks; i++, k++) {
+        if (entries.getLong(i * CeffUtils.AAD_LENGTH) != k) {
+          throw new CeffCryptoException("verification failed: chunk number mismatch", this.mode);
+        }
+      }
+    }
+  }
+
+  /** Read the aad of every chunk of a version 1 file and add it to the digest */
+  private void scanChunkAads(MessageDigest sha512md) throws IOException, CeffCryptoException {
+    for (long k = 0; k < this.absoluteChunkCount; k++) {
+      // seek to the start of the chunk
+      this.physicalDelegate.seek(
+          this.headerLength
+              + (k * (CeffUtils.AAD_LENGTH + this.chunkLength + this.mode.getTagLength())));
+      final long chunk = this.physicalDelegate.readLong();
+      final long chunkIdMsb = this.physicalDelegate.readLong();
+      final long chunkIdLsb = this.physicalDelegate.readLong();
+
+      this.aadBuffer.clear();
+      this.aadBuffer.putLong(chunk);
+      this.aadBuffer.putLong(chunkIdMsb);
+      this.aadBuffer.putLong(chunkIdLsb);
+      this.aadBuffer.flip();
+      sha512md.update(this.aadBuffer);
+
+      if (chunk != k) {
+        throw new CeffCryptoException("verification failed: chunk number mismatch", this.mode);
+      }
+    }
+  }
+
   @Override
   public IndexInput clone() {
     final CeffIndexInput clone = (CeffIndexInput) super.clone();
@@ -235,6 +453,14 @@ public final class CeffIndexInput extends IndexInput {
     clone.singleByteBuffer =
         ArrayUtil.copyOfSubArray(this.singleByteBuffer, 0, this.singleByteBuffer.length);
     clone.readBuffer = ArrayUtil.copyOfSubArray(this.readBuffer, 0, this.readBuffer.length);
+    clone.parallelReadBuffer = null;
+    clone.readAheadBuffer = null;
+    clone.readAheadFirstChunk = -1L;
+    clone.readAheadChunks = 0;
+    clone.merkleInput = null;
+    clone.merkleDigest = null;
+    // accounted once the clone loads a chunk, see reservation()
+    clone.reservation = null;
 
     return clone;
   }
@@ -295,7 +521,7 @@ public final class CeffIndexInput extends IndexInput {
       if (absoluteChunkNum != this.currentAbsoluteChunkNum) {
         // seek physically to the start of the chunk
         this.delegate.seek(
-                CeffUtils.headerLength(mode)
+                this.headerLength
                 + ((absoluteChunkNum) * (this.chunkLength + CeffUtils.cryptoLength(this.mode))));
         this.decryptChunk();
       } else {
@@ -342,7 +568,7 @@ public final class CeffIndexInput extends IndexInput {
     // locate the offset in the encrypted file. This must be the beginning of a chunk.
     // we need to add the header length and for every chunk the crypto overhead
     final long newOffset =
-            CeffUtils.headerLength(mode)
+            this.headerLength
             + ((startChunk) * (this.chunkLength + CeffUtils.cryptoLength(this.mode)));
     long newLength;
     if (endChunk + 1L == this.absoluteChunkCount) {
@@ -362,17 +588,51 @@ public final class CeffIndexInput extends IndexInput {
     final String sliceDescription0 =
         this.slice ? "[slice-of-slice " + sliceDescription + "]" : sliceDescription;
 
-    return new CeffIndexInput(
-        this.physicalDelegate.slice(sliceDescription0, newOffset, newLength),
-        this.key,
-        this.physicalDelegate,
-        effectiveOffset,
-        length,
-        this.chunkLength,
-        this.absoluteChunkCount,
-        this.plainFileLength,
-        this.mode,
-        true);
+    final CeffIndexInput slice =
+        new CeffIndexInput(
+            this.physicalDelegate.slice(sliceDescription0, newOffset, newLength),
+            this.key,
+            null,
+            this.physicalDelegate,
+            effectiveOffset,
+            length,
+            this.chunkLength,
+            this.absoluteChunkCount,
+            this.plainFileLength,
+            this.mode,
+            this.headerLength,
+            this.trailerLength,
+            this.merkleTree,
+            true,
+            false,
+            true);
+
+    if (this.trace != null) {
+      slice.trace(this.trace);
+    }
+
+    return slice;
+  }
+
+  /** @return the chunk length of the file */
+  int getChunkLength() {
+    return this.chunkLength;
+  }
+
+  /** @return the number of the last chunk of the file */
+  long getLastChunk() {
+    return this.absoluteChunkCount - 1;
+  }
+
+  /**
+   * Record all chunks loaded by this input (and its clones and slices created from now on).
+   *
+   * @param trace0 The trace handle
+   */
+  void trace(CeffAccessTrace.FileTrace trace0) {
+    this.trace = trace0;
+    // the first chunk was already loaded when the input was created
+    this.trace.record(this.currentAbsoluteChunkNum);
   }
 
   @Override
@@ -386,6 +646,27 @@ public final class CeffIndexInput extends IndexInput {
 
     while (read < length) {
 
+      if ((length - read) >= PARALLEL_DECRYPT_MIN_CHUNKS * (long) this.chunkLength) {
+        // drain the current chunk so that the batch starts at a chunk boundary
+        final int remaining = this.buffer.remaining();
+        if (remaining > 0) {
+          this.buffer.get(b, offset + read, remaining);
+          if (!this.slice) {
+            this.filePointer += remaining;
+          }
+          read += remaining;
+        }
+
+        final int parallelRead = this.readChunksParallel(b, offset + read, length - read);
+        if (parallelRead > 0) {
+          if (!this.slice) {
+            this.filePointer += parallelRead;
+          }
+          read += parallelRead;
+          continue;
+        }
+      }
+
       final int maxReadlen = Math.min(this.buffer.capacity(), (length - read));
 
       if (!this.buffer.hasRemaining()) {
@@ -424,9 +705,348 @@ public final class CeffIndexInput extends IndexInput {
     }
   }
 
+  /**
+   * Read and decrypt whole chunks following the current chunk in parallel directly into b. Only
+   * chunks which are entirely covered by the request are handled here, the last chunk of the file
+   * (which might be short and is followed by the footer) is always decrypted by {@link
+   * #decryptChunk()}.
+   *
+   * @return the number of plaintext bytes read, 0 if the request is too small for a parallel batch
+   */
+  private int readChunksParallel(byte[] b, int offset, int length) throws IOException {
+    final int physicalChunkLength = this.chunkLength + CeffUtils.cryptoLength(this.mode);
+    final long firstChunk = this.currentAbsoluteChunkNum + 1;
+    final long maxChunks =
+        Math.min(
+            Math.min(length / this.chunkLength, PARALLEL_DECRYPT_MAX_CHUNKS),
+            PARALLEL_DECRYPT_MAX_BATCH_BYTES / physicalChunkLength);
+    final int chunks = (int) Math.min(maxChunks, (this.absoluteChunkCount - 1) - firstChunk);
+
+    if (chunks < PARALLEL_DECRYPT_MIN_CHUNKS) {
+      return 0;
+    }
+
+    final int cipherLength = chunks * physicalChunkLength;
+
+    if (!this.ensureParallelReadBuffer(cipherLength)) {
+      return 0;
+    }
+
+    // the delegate is always positioned at the start of the chunk following the current chunk
+    this.delegate.readBytes(this.parallelReadBuffer, 0, cipherLength);
+    this.verifyChunks(physicalChunkLength, firstChunk, chunks);
+    this.decryptParallel(physicalChunkLength, firstChunk, chunks, b, offset);
+
+    if (this.trace != null) {
+      for (long chunk = firstChunk; chunk < firstChunk + chunks; chunk++) {
+        this.trace.record(chunk);
+      }
+    }
+
+    // keep the last chunk of the batch as current chunk so that seek() and the delegate position
+    // stay consistent
+    final long lastChunk = firstChunk + chunks - 1;
+    this.buffer.clear();
+    this.buffer.put(b, offset + ((chunks - 1) * this.chunkLength), this.chunkLength);
+    this.buffer.flip();
+    this.buffer.position(this.buffer.limit());
+    this.currentAbsoluteChunkNum = lastChunk;
+
+    return chunks * this.chunkLength;
+  }
+
+  /** @return false if the buffer can not grow because the buffer accounting refused it */
+  private boolean ensureParallelReadBuffer(int length) {
+    final int current = this.parallelReadBuffer == null ? 0 : this.parallelReadBuffer.length;
+
+    if (current < length) {
+      if (!this.reservation().tryReserve(length - current, this.toString())) {
+        return false;
+      }
+      this.parallelReadBuffer = new byte[length];
+    }
+
+    return true;
+  }
+
+  /** @return false if the buffer can not grow because the buffer accounting refused it */
+  private boolean ensureReadAheadBuffer(int length) {
+    final int current = this.readAheadBuffer == null ? 0 : this.readAheadBuffer.length;
+
+    if (current < length) {
+      if (!this.reservation().tryReserve(length - current, this.toString())) {
+        return false;
+      }
+      this.readAheadBuffer = new byte[length];
+    }
+
+    return true;
+  }
+
+  /**
+   * Clones are taken for almost every query and most of them never leave the chunk they were
+   * cloned at, so a clone is only accounted once it loads a chunk. clone() can not fail.
+   *
+   * @return the reservation of this input
+   */
+  private CeffBufferAccounting.Reservation reservation() {
+    if (this.reservation == null) {
+      this.reservation = CeffBufferAccounting.reserve(this, this.bufferLength(), this.toString());
+    }
+    return this.reservation;
+  }
+
+  /** @return the length of the buffers which are always allocated */
+  private long bufferLength() {
+    return 2L * this.chunkLength + CeffUtils.cryptoLength(this.mode) + CeffUtils.AAD_LENGTH;
+  }
+
+  /**
+   * Decrypt the chunks in {@link #parallelReadBuffer} on the {@link CeffCryptoPool} into
+   * plainText. Returns when all chunks are decrypted.
+   */
+  private void decryptParallel(
+      int physicalChunkLength, long firstChunk, int chunks, byte[] plainText, int plainTextOffset)
+      throws IOException {
+    final AtomicReference<Exception> failure = new AtomicReference<>();
+    CeffCryptoPool.get()
+        .invoke(
+            new ParallelDecryptTask(
+                this.parallelReadBuffer,
+                physicalChunkLength,
+                firstChunk,
+                0,
+                chunks,
+                plainText,
+                plainTextOffset,
+                failure,
+                CeffCryptoClock.current()));
+
+    if (failure.get() != null) {
+      if (failure.get() instanceof IOException) {
+        throw (IOException) failure.get();
+      }
+      throw new IOException(failure.get());
+    }
+  }
+
+  /**
+   * Load the chunk at the current delegate position into the buffer from the read-ahead buffer.
+   * If the chunk was not decrypted ahead the following chunks are decrypted in parallel first.
+   *
+   * @return false if the input is not read sequentially or there are not enough chunks left for
+   *     reading ahead (the chunk must then be decrypted as usual)
+   */
+  private boolean readAheadChunk() throws IOException {
+    final int physicalChunkLength = this.chunkLength + CeffUtils.cryptoLength(this.mode);
+    final long start = this.delegate.getFilePointer();
+    final long chunk = (start - this.headerLength) / physicalChunkLength;
+
+    if (chunk < this.readAheadFirstChunk
+        || chunk >= this.readAheadFirstChunk + this.readAheadChunks) {
+      if (chunk == 0 || chunk != this.currentAbsoluteChunkNum + 1) {
+        // only read ahead once the input is actually read sequentially, READONCE inputs
+        // often only read the header and the footer
+        return false;
+      }
+
+      final long maxChunks =
+          Math.min(
+              Math.min(
+                  Math.max(PARALLEL_DECRYPT_MIN_CHUNKS, 2L * CeffCryptoPool.getParallelism()),
+                  PARALLEL_DECRYPT_MAX_CHUNKS),
+              PARALLEL_DECRYPT_MAX_BATCH_BYTES / physicalChunkLength);
+      // the last chunk might be short and is followed by the footer, never read it ahead
+      final int chunks = (int) Math.min(maxChunks, (this.absoluteChunkCount - 1) - chunk);
+
+      if (chunks < PARALLEL_DECRYPT_MIN_CHUNKS) {
+        return false;
+      }
+
+      final int cipherLength = chunks * physicalChunkLength;
+
+      if (!this.ensureParallelReadBuffer(cipherLength)
+          || !this.ensureReadAheadBuffer(chunks * this.chunkLength)) {
+        return false;
+      }
+
+      this.readAheadChunks = 0;
+      this.delegate.readBytes(this.parallelReadBuffer, 0, cipherLength);
+      this.verifyChunks(physicalChunkLength, chunk, chunks);
+      this.decryptParallel(physicalChunkLength, chunk, chunks, this.readAheadBuffer, 0);
+      this.readAheadFirstChunk = chunk;
+      this.readAheadChunks = chunks;
+    }
+
+    this.buffer.put(
+        this.readAheadBuffer,
+        this.castSafe((chunk - this.readAheadFirstChunk) * this.chunkLength),
+        this.chunkLength);
+    // keep the delegate positioned at the start of the following chunk
+    this.delegate.seek(start + physicalChunkLength);
+    this.currentAbsoluteChunkNum = chunk;
+    return true;
+  }
+
+  /**
+   * Verify the integrity of the whole file in one pass. The signature over all chunks was already
+   * verified when this input was opened (the chunks of a version 3 file are verified against the
+   * merkle tree as they are read), here every chunk is decrypted and its AEAD tag is verified, in
+   * parallel where possible. Because every chunk of the plaintext is authenticated,
+   * the checksum stored in the Lucene codec footer can be trusted and is returned without
+   * computing a CRC32 over the plaintext.
+   *
+   * @return the checksum stored in the Lucene codec footer of the plaintext
+   * @throws IOException if a chunk can not be authenticated or the plaintext has no valid codec
+   *     footer
+   */
+  public long verifyAndRetrieveChecksum() throws IOException {
+    if (this.slice) {
+      throw new IllegalStateException("Only the whole file can be verified, not a slice");
+    }
+
+    final IndexInput in = this.clone();
+    in.seek(0);
+
+    final long batchLength =
+        Math.max(
+            PARALLEL_DECRYPT_MIN_CHUNKS * (long) this.chunkLength,
+            Math.min(
+                PARALLEL_DECRYPT_MAX_CHUNKS * (long) this.chunkLength,
+                PARALLEL_DECRYPT_MAX_BATCH_BYTES));
+    final byte[] scratch = new byte[this.castSafe(Math.min(this.length, batchLength))];
+
+    long remaining = this.length;
+    while (remaining > 0) {
+      final int read = (int) Math.min(remaining, scratch.length);
+      in.readBytes(scratch, 0, read);
+      remaining -= read;
+    }
+
+    return CodecUtil.retrieveChecksum(in);
+  }
+
+  private final class ParallelDecryptTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final byte[] cipherText;
+    private final int physicalChunkLength;
+    private final long firstChunk;
+    private final int from;
+    private final int to;
+    private final byte[] plainText;
+    private final int plainTextOffset;
+    private final AtomicReference<Exception> failure;
+    private final transient CeffCryptoClock.Account account;
+
+    ParallelDecryptTask(
+        byte[] cipherText,
+        int physicalChunkLength,
+        long firstChunk,
+        int from,
+        int to,
+        byte[] plainText,
+        int plainTextOffset,
+        AtomicReference<Exception> failure,
+        CeffCryptoClock.Account account) {
+      this.cipherText = cipherText;
+      this.physicalChunkLength = physicalChunkLength;
+      this.firstChunk = firstChunk;
+      this.from = from;
+      this.to = to;
+      this.plainText = plainText;
+      this.plainTextOffset = plainTextOffset;
+      this.failure = failure;
+      this.account = account;
+    }
+
+    @Override
+    protected void compute() {
+      if (this.to - this.from > 1) {
+        final int mid = (this.from + this.to) >>> 1;
+        invokeAll(
+            new ParallelDecryptTask(
+                this.cipherText,
+                this.physicalChunkLength,
+                this.firstChunk,
+                this.from,
+                mid,
+                this.plainText,
+                this.plainTextOffset,
+                this.failure,
+                this.account),
+            new ParallelDecryptTask(
+                this.cipherText,
+                this.physicalChunkLength,
+                this.firstChunk,
+                mid,
+                this.to,
+                this.plainText,
+                this.plainTextOffset,
+                this.failure,
+                this.account));
+        return;
+      }
+
+      if (this.failure.get() != null) {
+        return;
+      }
+
+      try {
+        final int base = this.from * this.physicalChunkLength;
+        final long expectedChunk = this.firstChunk + this.from;
+        final ByteBuffer aad =
+            ByteBuffer.wrap(this.cipherText, base, CeffUtils.AAD_LENGTH)
+                .slice()
+                .order(ByteOrder.LITTLE_ENDIAN);
+        final long chunk = aad.getLong(0);
+
+        if (chunk != expectedChunk) {
+          throw new CeffCryptoException(
+              "verification failed: chunk number mismatch", CeffIndexInput.this.mode);
+        }
+
+        final long start = CeffCryptoClock.start(this.account);
+        final byte[] plain =
+            CeffIndexInput.this.mode.decrypt(
+                ByteBuffer.wrap(
+                        this.cipherText,
+                        base + CeffUtils.AAD_LENGTH,
+                        this.physicalChunkLength - CeffUtils.AAD_LENGTH)
+                    .asReadOnlyBuffer(),
+                aad,
+                CeffIndexInput.this.key,
+                CeffUtils.longToNonce(chunk, CeffIndexInput.this.mode.getNonceLength()));
+        CeffCryptoClock.stop(this.account, start);
+
+        if (plain.length != CeffIndexInput.this.chunkLength) {
+          throw new CeffCryptoException(
+              "verification failed: chunk length mismatch", CeffIndexInput.this.mode);
+        }
+
+        System.arraycopy(
+            plain,
+            0,
+            this.plainText,
+            this.plainTextOffset + (this.from * CeffIndexInput.this.chunkLength),
+            plain.length);
+      } catch (final Exception e) {
+        this.failure.compareAndSet(null, e);
+      }
+    }
+  }
+
   private void decryptChunk() throws IOException {
 
+    this.reservation();
     this.buffer.clear();
+
+    if (this.readAhead && this.readAheadChunk()) {
+      this.chunkLoaded(this.currentAbsoluteChunkNum);
+      return;
+    }
+
     final long remaining = this.delegate.length() - this.delegate.getFilePointer();
 
     assert remaining != 0 : "remaining == 0";
@@ -437,10 +1057,10 @@ public final class CeffIndexInput extends IndexInput {
       read = Math.min(this.readBuffer.length, this.castSafe(remaining));
     } else {
 
-      if ((remaining - (CeffUtils.footerLength(this.mode) + CeffUtils.cryptoLength(this.mode)))
+      if ((remaining - (this.trailerLength + CeffUtils.cryptoLength(this.mode)))
           < this.chunkLength) {
         // last chunk, typically less then chunklength in length
-        read = this.castSafe(remaining) - CeffUtils.footerLength(this.mode);
+        read = this.castSafe(remaining - this.trailerLength);
       }
     }
 
@@ -448,6 +1068,15 @@ public final class CeffIndexInput extends IndexInput {
       throw new EOFException("read past EOF");
     }
 
+    // the chunk number in the aad must match the position of the chunk, a chunk moved within
+    // the file would otherwise be authenticated
+    final long physicalChunkLength = this.chunkLength + CeffUtils.cryptoLength(this.mode);
+    final long expectedChunk =
+        this.slice
+            ? this.sliceOffset / this.chunkLength
+                + this.delegate.getFilePointer() / physicalChunkLength
+            : (this.delegate.getFilePointer() - this.headerLength) / physicalChunkLength;
+
     this.delegate.readBytes(this.readBuffer, 0, read);
 
     this.aadBuffer.clear();
@@ -455,11 +1084,18 @@ public final class CeffIndexInput extends IndexInput {
     this.aadBuffer.flip();
 
     final long chunk = this.aadBuffer.getLong();
+    if (chunk != expectedChunk) {
+      throw new IOException(
+          new CeffCryptoException("verification failed: chunk number mismatch", this.mode));
+    }
+    this.verifyChunk(chunk, this.readBuffer, 0, read);
     this.currentAbsoluteChunkNum = chunk;
     this.aadBuffer.rewind();
 
     byte[] plainText = null;
     byte[] nonce = CeffUtils.longToNonce(chunk, mode.getNonceLength());
+    final CeffCryptoClock.Account account = CeffCryptoClock.current();
+    final long start = CeffCryptoClock.start(account);
     try {
       plainText =
           this.mode.decrypt(
@@ -472,37 +1108,82 @@ public final class CeffIndexInput extends IndexInput {
               this.key,
                   nonce);
               //ArrayUtil.copyOfSubArray(this.readBuffer, 0, this.mode.getNonceLength()));
-
-      if (this.absoluteStartChunk < 0L) {
-        this.absoluteStartChunk = chunk;
-      }
-
-      if (!this.slice) {
-        // physical mode
-        // if chunk == 0 then this means fp=0 which should happen at the beginning of a physical
-        // input
-        this.filePointer = chunk * this.chunkLength;
-      }
+      CeffCryptoClock.stop(account, start);
 
       this.buffer.put(plainText);
-      this.buffer.flip();
+      this.chunkLoaded(chunk);
+    } catch (final CeffCryptoException e) {
+      throw new IOException(e);
+    }
+  }
 
-      if (this.slice) {
+  /**
+   * Verify the aad and tag of a chunk against the merkle tree of a version 3 file, reads the path
+   * of the chunk only if it was not verified before. Does nothing for older files.
+   *
+   * @param physicalChunk The physical chunk at offset
+   */
+  private void verifyChunk(long chunk, byte[] physicalChunk, int offset, int length)
+      throws IOException {
+    if (this.merkleTree == null) {
+      return;
+    }
 
-        if (chunk > this.absoluteStartChunk) {
-          this.buffer.position(0);
-        }
+    if (this.merkleInput == null) {
+      // the delegate stays positioned at the chunks
+      this.merkleInput = this.physicalDelegate.clone();
+      this.merkleDigest = newSha512();
+    }
 
-        if (chunk == this.absoluteStartChunk) {
-          this.buffer.position(
-              this.castSafe((this.sliceOffset - this.absoluteStartChunk * this.chunkLength)));
-        }
-      }
+    try {
+      this.merkleTree.verify(
+          this.merkleInput, this.merkleDigest, chunk, physicalChunk, offset, length);
     } catch (final CeffCryptoException e) {
       throw new IOException(e);
     }
   }
 
+  /** Verify the full chunks in {@link #parallelReadBuffer}, see {@link #verifyChunk} */
+  private void verifyChunks(int physicalChunkLength, long firstChunk, int chunks)
+      throws IOException {
+    for (int i = 0; i < chunks && this.merkleTree != null; i++) {
+      this.verifyChunk(
+          firstChunk + i, this.parallelReadBuffer, i * physicalChunkLength, physicalChunkLength);
+    }
+  }
+
+  /** Called after the plaintext of chunk was put into the buffer */
+  private void chunkLoaded(long chunk) {
+    if (this.trace != null) {
+      this.trace.record(chunk);
+    }
+
+    if (this.absoluteStartChunk < 0L) {
+      this.absoluteStartChunk = chunk;
+    }
+
+    if (!this.slice) {
+      // physical mode
+      // if chunk == 0 then this means fp=0 which should happen at the beginning of a physical
+      // input
+      this.filePointer = chunk * this.chunkLength;
+    }
+
+    this.buffer.flip();
+
+    if (this.slice) {
+
+      if (chunk > this.absoluteStartChunk) {
+        this.buffer.position(0);
+      }
+
+      if (chunk == this.absoluteStartChunk) {
+        this.buffer.position(
+            this.castSafe((this.sliceOffset - this.absoluteStartChunk * this.chunkLength)));
+      }
+    }
+  }
+
   @Override
   public byte readByte() throws IOException {
     this.readBytes(this.singleByteBuffer, 0, 1);
@@ -511,6 +1192,10 @@ public final class CeffIndexInput extends IndexInput {
 
   @Override
   public void close() throws IOException {
+    if (this.reservation != null) {
+      this.reservation.release();
+    }
+
     if (!this.isClone) {
       assert this.delegate == this.physicalDelegate;
       this.delegate.close();
@@ -10,13 +10,16 @@ package com.eliatra.cloud.lock.lucene.encryption;
 
 import org.apache.lucene.codecs.CodecUtil;
 import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.ThreadInterruptedException;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.zip.CRC32;
 
 /**
@@ -25,24 +28,82 @@ import java.util.zip.CRC32;
  */
 public final class CeffIndexOutput extends IndexOutput {
 
+  /** Initial length of the plain text buffer, grows up to the chunk length */
+  static final int INITIAL_BUFFER_LENGTH = 1024;
+
+  /** Number of chunk aads written at once to the table of a version 2 file */
+  static final int AAD_TABLE_BLOCK_CHUNKS = 1024;
+
   private final IndexOutput delegate;
   private final int chunkLength;
   private final byte[] key;
 
-  private final ByteBuffer buffer;
-  private final byte[] singleByteBuffer = new byte[1];
+  /** the chunk currently filled, in pipelined mode the plain text buffer of a slot */
+  private ByteBuffer buffer;
   private final CRC32 crc32 = new CRC32();
+  /** Position in the buffer up to which the plain text is already covered by crc32 */
+  private int crcPosition;
   private final ByteBuffer aadBuffer = ByteBuffer.allocate(CeffUtils.AAD_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
   private final ByteBuffer signatureAadBuffer = ByteBuffer.allocate(CeffUtils.AAD_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+  /** null for ephemeral files and files with a {@link CeffMerkleTree} */
   private final MessageDigest sha512md;
+  /** receives the cipher text of a chunk (or of the signature) before it is written */
+  private ByteBuffer cipherBuffer;
+  private final byte[] nonce;
+  private final CeffBufferAccounting.Reservation reservation;
+  /** null unless full chunks are encrypted in the background, see {@link #submitChunk()} */
+  private final Slot[] slots;
+  /** the slot currently filled, the following slots are in flight (oldest first) */
+  private int currentSlot = 0;
+
+  /**
+   * Random per file, the chunk id of a chunk is (chunkIdMsb, chunkIdLsb + chunk). Only the
+   * uniqueness of the chunk ids matters (they are part of the signed AAD), so there is no need
+   * to draw random bytes for every chunk from the shared SecureRandom.
+   */
+  private final long chunkIdMsb;
+
+  private final long chunkIdLsb;
 
   private long filePointer = 0L;
   private long chunk = 0L;
 
+  /** null if the file key is wrapped, the header is then written by the constructor */
+  private final byte[] salt;
+  private final int headerFlags;
+  private boolean headerWritten = false;
+  private final int compactLength;
+  /** null unless set by {@link #cacheFooter(CeffFooterCache)} */
+  private CeffFooterCache footerCache;
+  /** chunks are compressed before they are encrypted, see {@link CeffChunkCompression} */
+  private final boolean compressed;
+  /** created with the first chunk which is encrypted synchronously */
+  private CeffChunkCompression compression;
+  /** physical length (AAD and cipher text) of every written chunk of a compressed file */
+  private int[] chunkTable;
+  private int chunkTableSize;
+  /**
+   * format version 3: a {@link CeffMerkleTree} over the aads and tags of all chunks is written
+   * before the footer, its root takes the place of the signature
+   */
+  private final boolean merkleTree;
+  /** AEAD tags of all written chunks of a file with a merkle tree, in order */
+  private byte[] chunkTags;
+  private int chunkTagsLength;
+  /**
+   * format version 2: the aads of all chunks are written again as a table before the footer and
+   * the signature is computed over the table instead of chunk by chunk
+   */
+  private final boolean aadTable;
+  /** format version of versioned files, see {@link CeffUtils#FLAG_VERSIONED} */
+  private final int formatVersion;
+  /** crypto time of the thread which created the output, also of chunks encrypted on the pool */
+  private final CeffCryptoClock.Account cryptoAccount = CeffCryptoClock.current();
+
   private final CeffMode mode;
 
   /**
-   * Sole constructor
+   * Create an output which encrypts synchronously
    *
    * @param delegate The wrapped output
    * @param chunkLength Length of a chunk in bytes. See {@link CeffMode}
@@ -53,42 +114,249 @@ public final class CeffIndexOutput extends IndexOutput {
    */
   public CeffIndexOutput(IndexOutput delegate, int chunkLength, byte[] key0, CeffMode mode)
           throws IOException, CeffCryptoException {
+    this(delegate, chunkLength, key0, mode, false);
+  }
+
+  /**
+   * Create a new output
+   *
+   * @param delegate The wrapped output
+   * @param chunkLength Length of a chunk in bytes. See {@link CeffMode}
+   * @param mode See {@link CeffMode}
+   * @param pipelined if true full chunks are encrypted on the {@link CeffCryptoPool} while the
+   *     next chunk is filled. They are written in order, the number of chunks in flight is
+   *     bounded. Meant for large sequential writes like merges and flushes.
+   * @throws IOException if the delegate throws an IOException
+   * @throws IllegalArgumentException when chunkSize or key is invalid
+   */
+  public CeffIndexOutput(
+      IndexOutput delegate, int chunkLength, byte[] key0, CeffMode mode, boolean pipelined)
+          throws IOException, CeffCryptoException {
+    this(delegate, chunkLength, key0, mode, pipelined, null, false, 0, false);
+  }
+
+  /**
+   * Create a new output
+   *
+   * @param delegate The wrapped output
+   * @param chunkLength Length of a chunk in bytes. See {@link CeffMode}
+   * @param mode See {@link CeffMode}
+   * @param pipelined see {@link #CeffIndexOutput(IndexOutput, int, byte[], CeffMode, boolean)}
+   * @param salt if not null the file key is derived from key0 and this salt (which must be
+   *     unique for key0) and only the salt is stored in the header. Otherwise a random file key
+   *     is encrypted with key0.
+   * @param ephemeral if true (requires a salt) the file key is derived from a key which only
+   *     exists in this process instead of key0 and no signature over all chunks is computed.
+   *     The chunks and the footer are still authenticated. For temporary files only.
+   * @param compactLength files up to this length (requires a salt, at most {@link
+   *     CeffUtils#CHUNK_SIZE_MIN}) are written as {@link CeffCompactFile}, 0 disables it
+   * @param compressed if true (requires a salt, not for ephemeral files) chunks are compressed
+   *     before they are encrypted where this saves space, see {@link CeffCompressedIndexInput}
+   * @throws IOException if the delegate throws an IOException
+   * @throws IllegalArgumentException when chunkSize or key is invalid
+   */
+  CeffIndexOutput(
+      IndexOutput delegate,
+      int chunkLength,
+      byte[] key0,
+      CeffMode mode,
+      boolean pipelined,
+      byte[] salt,
+      boolean ephemeral,
+      int compactLength,
+      boolean compressed)
+          throws IOException, CeffCryptoException {
+    this(delegate, chunkLength, key0, mode, pipelined, salt, ephemeral, compactLength, compressed,
+        CeffUtils.FORMAT_VERSION_3);
+  }
+
+  /**
+   * Create a new output
+   *
+   * @param formatVersion Format version of chunked files with a salt ({@link
+   *     CeffUtils#FORMAT_VERSION_3}), {@link CeffUtils#FORMAT_VERSION_2} only to test that older
+   *     files stay readable
+   * @see #CeffIndexOutput(IndexOutput, int, byte[], CeffMode, boolean, byte[], boolean, int,
+   *     boolean)
+   */
+  CeffIndexOutput(
+      IndexOutput delegate,
+      int chunkLength,
+      byte[] key0,
+      CeffMode mode,
+      boolean pipelined,
+      byte[] salt,
+      boolean ephemeral,
+      int compactLength,
+      boolean compressed,
+      int formatVersion)
+          throws IOException, CeffCryptoException {
     super("Ceff " + delegate.toString(), delegate.getName());
+    assert formatVersion == CeffUtils.FORMAT_VERSION_2 || formatVersion == CeffUtils.FORMAT_VERSION_3;
     this.delegate = delegate;
     this.chunkLength = chunkLength;
     this.mode = mode;
-    this.key = this.mode.randomKey(); // we need this when we use non-random chunk no. based nonces
+    this.compressed = compressed && salt != null && !ephemeral;
+    this.chunkTable = this.compressed ? new int[8] : null;
     this.mode.validateKey(key0);
+    // we need a key per file because the nonces are chunk numbers
+    if (ephemeral) {
+      assert salt != null;
+      this.key = CeffKeyDerivation.deriveKey(CeffKeyDerivation.EPHEMERAL_KEY, salt, mode);
+    } else {
+      this.key = salt != null ? CeffKeyDerivation.deriveKey(key0, salt, mode) : this.mode.randomKey();
+    }
 
     CeffUtils.validateChunkLength(this.chunkLength);
 
+    // ephemeral files have no signature and compressed ones their own table before the footer
+    final boolean versioned = salt != null && !ephemeral && !this.compressed;
+    this.formatVersion = formatVersion;
+    this.merkleTree = versioned && formatVersion == CeffUtils.FORMAT_VERSION_3;
+    this.aadTable = versioned && formatVersion == CeffUtils.FORMAT_VERSION_2;
+    this.chunkTags = this.merkleTree ? new byte[8 * mode.getTagLength()] : null;
+
     try {
-      this.sha512md = MessageDigest.getInstance(CeffUtils.SHA512_DIGEST_ALGO);
+      this.sha512md =
+          ephemeral || this.merkleTree
+              ? null
+              : MessageDigest.getInstance(CeffUtils.SHA512_DIGEST_ALGO);
     } catch (final NoSuchAlgorithmException e) {
       // can not happen
       throw new RuntimeException(e);
     }
-    this.buffer = ByteBuffer.allocate(this.chunkLength).order(ByteOrder.LITTLE_ENDIAN);
+    // most files are small, the buffers grow up to the chunk length when needed
+    final int initialLength = Math.min(this.chunkLength, INITIAL_BUFFER_LENGTH);
+    this.reservation =
+        CeffBufferAccounting.reserve(
+            this, initialLength + this.cipherLength(initialLength), this.toString());
+    this.slots = pipelined ? this.allocateSlots(initialLength) : null;
+    this.buffer =
+        this.slots != null
+            ? this.slots[0].plainText
+            : ByteBuffer.allocate(initialLength).order(ByteOrder.LITTLE_ENDIAN);
+    this.cipherBuffer = ByteBuffer.allocate(this.cipherLength(initialLength));
+    this.nonce = new byte[this.mode.getNonceLength()];
+
+    // a salt is unique as well, reuse it instead of drawing random bytes
+    final byte[] chunkIdPrefix = salt != null ? salt : new byte[16];
+    if (salt == null) {
+      CeffMode.SECURE_RANDOM.nextBytes(chunkIdPrefix);
+    }
+    final ByteBuffer chunkIdPrefixBuffer = ByteBuffer.wrap(chunkIdPrefix);
+    this.chunkIdMsb = chunkIdPrefixBuffer.getLong();
+    this.chunkIdLsb = chunkIdPrefixBuffer.getLong();
+
+    // the header of a derived key is written with the first chunk, the file might be compact
+    this.salt = salt;
+    this.headerFlags =
+        CeffUtils.FLAG_DERIVED_KEY
+            | (ephemeral ? CeffUtils.FLAG_EPHEMERAL : 0)
+            | (this.compressed ? CeffUtils.FLAG_COMPRESSED : 0)
+            | (versioned ? CeffUtils.FLAG_VERSIONED : 0);
+    assert compactLength <= CeffUtils.CHUNK_SIZE_MIN;
+    this.compactLength = salt != null && !ephemeral ? Math.min(compactLength, this.chunkLength) : 0;
+
+    if (salt == null) {
+      CeffHeader.writeWrapped(delegate, mode, key0, this.key);
+    }
+  }
 
-    delegate.writeInt(CeffUtils.CEFF_MAGIC); // write magic bytes
-    delegate.writeByte(mode.getModeByte()); // write mode byte
+  /** Write the header of a derived key unless already done */
+  private void writeHeader(int flags) throws IOException {
+    if (this.salt != null && !this.headerWritten) {
+      CeffHeader.writeDerived(
+          this.delegate, this.mode, this.salt, flags, this.formatVersion, this.chunkLength);
+      this.headerWritten = true;
+    }
+  }
 
-    byte[] nonce = this.mode.randomNonce();
-    byte[] cipherKey = this.mode.encrypt(ByteBuffer.wrap(this.key), null, key0, nonce);
-    delegate.writeBytes(nonce, nonce.length);
-    delegate.writeBytes(cipherKey, cipherKey.length);
+  /** Encrypt the whole file at once, see {@link CeffCompactFile} */
+  private void writeCompact() throws IOException, CeffCryptoException {
+    this.writeHeader(CeffUtils.FLAG_DERIVED_KEY | CeffUtils.FLAG_COMPACT);
+    this.buffer.flip();
+    this.ensureCipherBufferCapacity();
+    this.cipherBuffer.clear();
+    this.mode.encrypt(
+        this.buffer,
+        CeffCompactFile.aad(this.filePointer),
+        this.key,
+        CeffCompactFile.nonce(this.mode),
+        this.cipherBuffer);
+    this.delegate.writeBytes(this.cipherBuffer.array(), 0, this.cipherBuffer.position());
+  }
+
+  /**
+   * Allocate the slots for pipelined encryption, one more than the pool can encrypt in parallel
+   * plus the one currently filled.
+   *
+   * @param bufferLength Length of the buffer reserved in the constructor, the slots replace it
+   * @return null if the buffer accounting refused the slots (then encrypt synchronously)
+   */
+  private Slot[] allocateSlots(int bufferLength) {
+    final int count = CeffCryptoPool.getParallelism() + 2;
+    final long slotLength =
+        2L * this.chunkLength
+            + this.mode.getTagLength()
+            + (this.compressed ? CeffChunkCompression.ramBytesUsed(this.chunkLength) : 0);
+
+    if (!this.reservation.tryReserve(count * slotLength - bufferLength, this.toString())) {
+      return null;
+    }
+
+    final Slot[] result = new Slot[count];
+
+    for (int k = 0; k < count; k++) {
+      result[k] = new Slot(this.chunkLength, this.mode);
+    }
+
+    return result;
   }
 
   @Override
   public void close() throws IOException {
     try {
-      // encrypt last chunk
-      this.encryptChunk(true);
+      if (this.slots != null) {
+        // write all chunks in flight (oldest first)
+        for (int k = 1; k < this.slots.length; k++) {
+          this.writeSlot(this.slots[(this.currentSlot + k) % this.slots.length]);
+        }
+      }
+
+      final CeffFooterCache.Footer footer;
+      if (this.chunk == 0 && this.filePointer <= this.compactLength) {
+        this.writeCompact();
+        footer =
+            CeffFooterCache.Footer.compact(
+                this.mode, this.delegate.getFilePointer(), this.filePointer);
+      } else {
+        // encrypt last chunk
+        this.encryptChunk(true);
+        footer =
+            new CeffFooterCache.Footer(
+                this.mode,
+                this.delegate.getFilePointer(),
+                this.chunkLength,
+                this.chunk - 1,
+                this.filePointer);
+      }
+
+      if (this.footerCache != null) {
+        this.footerCache.put(this.delegate.getName(), footer);
+      }
+    } catch (final CeffCryptoException e) {
+      throw new IOException(e);
     } finally {
+      this.reservation.release();
       this.delegate.close();
     }
   }
 
+  /** Put the footer metadata of the file into the cache once it is written completely */
+  void cacheFooter(CeffFooterCache footerCache0) {
+    this.footerCache = footerCache0;
+  }
+
   @Override
   public long getFilePointer() {
     // need to return the plain text oriented file pointer position
@@ -98,13 +366,55 @@ public final class CeffIndexOutput extends IndexOutput {
   @Override
   public long getChecksum() throws IOException {
     // need to return the plain text checksum
+    this.updateChecksum();
     return this.crc32.getValue();
   }
 
   @Override
   public void writeByte(byte b) throws IOException {
-    this.singleByteBuffer[0] = b;
-    this.writeBytes(this.singleByteBuffer, 0, 1);
+    // a full chunk is only encrypted once more data follows, the last chunk is never empty
+    if (this.buffer.position() == this.chunkLength) {
+      this.encryptChunk(false);
+    }
+    this.ensureBufferCapacity(1);
+    this.buffer.put(b);
+    this.filePointer++;
+  }
+
+  // the buffer is little endian like Lucene's DataOutput, so primitives which fit into the
+  // current chunk are put directly, others are split byte by byte over two chunks
+
+  @Override
+  public void writeShort(short i) throws IOException {
+    if (this.chunkLength - this.buffer.position() >= Short.BYTES) {
+      this.ensureBufferCapacity(Short.BYTES);
+      this.buffer.putShort(i);
+      this.filePointer += Short.BYTES;
+    } else {
+      super.writeShort(i);
+    }
+  }
+
+  @Override
+  public void writeInt(int i) throws IOException {
+    if (this.chunkLength - this.buffer.position() >= Integer.BYTES) {
+      this.ensureBufferCapacity(Integer.BYTES);
+      this.buffer.putInt(i);
+      this.filePointer += Integer.BYTES;
+    } else {
+      super.writeInt(i);
+    }
+  }
+
+  @Override
+  public void writeLong(long i) throws IOException {
+    if (this.chunkLength - this.buffer.position() >= Long.BYTES) {
+      this.ensureBufferCapacity(Long.BYTES);
+      this.buffer.putLong(i);
+      this.filePointer += Long.BYTES;
+    } else {
+      super.writeLong(i);
+    }
   }
 
   @Override
@@ -118,40 +428,77 @@ public final class CeffIndexOutput extends IndexOutput {
 
     while (written < length) {
 
-      final int maxWrite = Math.min(this.buffer.capacity(), (length - written));
-
-      if (this.buffer.remaining() >= maxWrite) {
-        this.buffer.put(b, offset + written, maxWrite);
-      } else if (!this.buffer.hasRemaining()) {
-        this.encryptChunk(false);
-        assert this.buffer.position() == 0;
-        assert this.buffer.hasRemaining();
-        this.buffer.put(b, offset + written, maxWrite);
-      } else {
-        final int remaining = this.buffer.remaining();
-        this.buffer.put(b, offset + written, remaining);
+      // a full chunk is only encrypted once more data follows, the last chunk is never empty
+      if (this.buffer.position() == this.chunkLength) {
         this.encryptChunk(false);
         assert this.buffer.position() == 0;
-        assert this.buffer.hasRemaining();
-        this.buffer.put(b, offset + remaining + written, maxWrite - remaining);
-        assert this.buffer.position() == maxWrite - remaining;
       }
 
+      final int maxWrite = Math.min(this.chunkLength - this.buffer.position(), (length - written));
+      this.ensureBufferCapacity(maxWrite);
+      this.buffer.put(b, offset + written, maxWrite);
       written += maxWrite;
     }
 
     assert written == length;
 
-    this.crc32.update(b, offset, length);
     this.filePointer += length;
   }
 
+  /** Add the plain text written since the last update to the checksum */
+  private void updateChecksum() {
+    final int position = this.buffer.position();
+    if (position > this.crcPosition) {
+      this.crc32.update(this.buffer.array(), this.crcPosition, position - this.crcPosition);
+      this.crcPosition = position;
+    }
+  }
+
+  /** Grow the buffer (at most to the chunk length) so that it can take length more bytes */
+  private void ensureBufferCapacity(int length) {
+    if (this.buffer.remaining() >= length) {
+      return;
+    }
+
+    final int capacity =
+        Math.min(
+            this.chunkLength,
+            Math.max(this.buffer.position() + length, 2 * this.buffer.capacity()));
+    this.reservation.reserve(capacity - this.buffer.capacity(), this.toString());
+    final ByteBuffer grown = ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+    this.buffer.flip();
+    grown.put(this.buffer);
+    this.buffer = grown;
+  }
+
+  /** Grow the cipher buffer along with the buffer */
+  private void ensureCipherBufferCapacity() {
+    final int cipherLength = this.cipherLength(this.buffer.capacity());
+    if (this.cipherBuffer.capacity() < cipherLength) {
+      this.reservation.reserve(cipherLength - this.cipherBuffer.capacity(), this.toString());
+      this.cipherBuffer = ByteBuffer.allocate(cipherLength);
+    }
+  }
+
+  /** @return the length of a cipher buffer for plain texts up to length bytes */
+  private int cipherLength(int length) {
+    return Math.max(length, CeffUtils.SIGNATURE_LENGTH) + this.mode.getTagLength();
+  }
+
   private void encryptChunk(boolean lastChunk) throws IOException {
 
+    // the checksum is updated once per chunk, the buffer is cleared or replaced below
+    this.updateChecksum();
+    this.crcPosition = 0;
+
+    if (!lastChunk && this.slots != null) {
+      this.submitChunk();
+      return;
+    }
+
     try {
       this.buffer.flip();
-      final byte[] cipherText = this.encryptData(lastChunk);
-      this.delegate.writeBytes(cipherText, 0, cipherText.length);
+      this.encryptData(lastChunk);
       this.buffer.clear();
 
       this.chunk++;
@@ -160,22 +507,229 @@ public final class CeffIndexOutput extends IndexOutput {
     }
   }
 
-  private byte[] encryptData(boolean lastChunk) throws CeffCryptoException {
-    final UUID chunkId = UUID.randomUUID();
-    final byte[] nonce = CeffUtils.longToNonce(this.chunk, this.mode.getNonceLength());
+  /**
+   * Submit the full chunk in the current slot for encryption and continue with the next slot.
+   * If the next slot is still in flight (it is the oldest one) wait for it and write it first.
+   */
+  private void submitChunk() throws IOException {
+    final Slot slot = this.slots[this.currentSlot];
+
+    slot.plainText.flip();
+    CeffUtils.longToNonce(this.chunk, slot.nonce);
+    final long chunk0 = this.chunk;
+
+    slot.task =
+        CeffCryptoPool.get()
+            .submit(
+                () -> {
+                  final long start = CeffCryptoClock.start(this.cryptoAccount);
+                  // whether the chunk is compressed is part of its aad, compress it first
+                  final ByteBuffer compressedText =
+                      this.compressed
+                          ? slot.compression(this.chunkLength).compress(slot.plainText)
+                          : null;
+                  this.putAad(slot.aad, chunk0, compressedText != null);
+                  slot.cipherText.clear();
+                  // pass the little endian aad buffer itself, the JDK ChaCha20-Poly1305
+                  // implementation does not authenticate a big endian view the same way
+                  this.mode.encrypt(
+                      compressedText != null ? compressedText : slot.plainText,
+                      slot.aad,
+                      this.key,
+                      slot.nonce,
+                      slot.cipherText);
+                  CeffCryptoClock.stop(this.cryptoAccount, start);
+                  return null;
+                });
+    this.chunk++;
+
+    this.currentSlot = (this.currentSlot + 1) % this.slots.length;
+    final Slot next = this.slots[this.currentSlot];
+    this.writeSlot(next);
+    next.plainText.clear();
+    this.buffer = next.plainText;
+  }
+
+  /** Wait until the slot is encrypted and write it, does nothing if the slot is not in flight */
+  private void writeSlot(Slot slot) throws IOException {
+    if (slot.task == null) {
+      return;
+    }
+
+    this.writeHeader(this.headerFlags);
+
+    try {
+      slot.task.get();
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ThreadInterruptedException(e);
+    } catch (final ExecutionException e) {
+      throw new IOException(e.getCause());
+    } finally {
+      slot.task = null;
+    }
+
+    // the signature covers the aad of all chunks in order
+    if (this.sha512md != null && !this.aadTable) {
+      this.sha512md.update(slot.aad.array(), 0, CeffUtils.AAD_LENGTH);
+    }
+    this.delegate.writeBytes(slot.aad.array(), 0, CeffUtils.AAD_LENGTH);
+    this.delegate.writeBytes(slot.cipherText.array(), 0, slot.cipherText.position());
+    this.chunkWritten(CeffUtils.AAD_LENGTH + slot.cipherText.position());
+    this.tagWritten(slot.cipherText);
+  }
+
+  /** Put the aad of a chunk and flip the buffer */
+  private void putAad(ByteBuffer aad, long chunk0, boolean compressedChunk) {
+    aad.clear();
+    aad.putLong(compressedChunk ? chunk0 | CeffUtils.COMPRESSED_CHUNK_BIT : chunk0);
+    aad.putLong(this.chunkIdMsb);
+    aad.putLong(this.chunkIdLsb + chunk0);
+    aad.flip();
+  }
+
+  /** Record the physical length of the next chunk of a compressed file, written in order */
+  private void chunkWritten(int physicalLength) {
+    if (this.chunkTable == null) {
+      return;
+    }
+    if (this.chunkTableSize == this.chunkTable.length) {
+      final int[] grown = ArrayUtil.grow(this.chunkTable, this.chunkTableSize + 1);
+      this.reservation.reserve(
+          (long) (grown.length - this.chunkTable.length) * Integer.BYTES, this.toString());
+      this.chunkTable = grown;
+    }
+    this.chunkTable[this.chunkTableSize++] = physicalLength;
+  }
+
+  /** Record the AEAD tag at the end of the cipher text of the next chunk, written in order */
+  private void tagWritten(ByteBuffer cipherText) {
+    if (this.chunkTags == null) {
+      return;
+    }
+    final int tagLength = this.mode.getTagLength();
+    if (this.chunkTagsLength + tagLength > this.chunkTags.length) {
+      final byte[] grown = ArrayUtil.grow(this.chunkTags, this.chunkTagsLength + tagLength);
+      this.reservation.reserve(grown.length - this.chunkTags.length, this.toString());
+      this.chunkTags = grown;
+    }
+    System.arraycopy(
+        cipherText.array(),
+        cipherText.position() - tagLength,
+        this.chunkTags,
+        this.chunkTagsLength,
+        tagLength);
+    this.chunkTagsLength += tagLength;
+  }
 
-    this.aadBuffer.clear();
-    this.aadBuffer.putLong(this.chunk);
-    this.aadBuffer.putLong(chunkId.getMostSignificantBits());
-    this.aadBuffer.putLong(chunkId.getLeastSignificantBits());
-    this.aadBuffer.flip();
-    this.sha512md.update(this.aadBuffer);
-    this.aadBuffer.rewind();
+  /**
+   * Write the physical chunk lengths of a compressed file (little endian ints) before the footer,
+   * covered by the signature
+   */
+  private void writeChunkTable() throws IOException {
+    final ByteBuffer table =
+        ByteBuffer.allocate(this.chunkTableSize * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    for (int k = 0; k < this.chunkTableSize; k++) {
+      table.putInt(this.chunkTable[k]);
+    }
+    if (this.sha512md != null) {
+      this.sha512md.update(table.array());
+    }
+    this.delegate.writeBytes(table.array(), 0, table.position());
+  }
 
-    final byte[] cipherText = this.mode.encrypt(this.buffer, this.aadBuffer, this.key, nonce);
+  /**
+   * Write the aads of all chunks (including the last one) in order before the footer, covered by
+   * the signature. They are regenerated, the aad of a chunk only depends on its number.
+   */
+  private void writeAadTable() throws IOException {
+    final int blockChunks = (int) Math.min(this.chunk + 1, AAD_TABLE_BLOCK_CHUNKS);
+    final ByteBuffer block =
+        ByteBuffer.allocate(blockChunks * CeffUtils.AAD_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+    for (long k = 0; k <= this.chunk; k++) {
+      block.putLong(k);
+      block.putLong(this.chunkIdMsb);
+      block.putLong(this.chunkIdLsb + k);
+      if (!block.hasRemaining() || k == this.chunk) {
+        this.sha512md.update(block.array(), 0, block.position());
+        this.delegate.writeBytes(block.array(), 0, block.position());
+        block.clear();
+      }
+    }
+  }
+
+  /**
+   * Write the nodes of the hash tree over the aads and tags of all chunks (including the last
+   * one) before the footer. The aads are regenerated, the aad of a chunk only depends on its
+   * number. The tags were recorded when the chunks were written.
+   *
+   * @return the root of the tree
+   */
+  private byte[] writeMerkleTree() throws IOException {
+    final CeffMerkleTree.Builder tree = new CeffMerkleTree.Builder();
+    final int tagLength = this.mode.getTagLength();
+    assert this.chunkTagsLength == (this.chunk + 1) * tagLength;
+    for (long k = 0; k <= this.chunk; k++) {
+      this.putAad(this.aadBuffer, k, false);
+      tree.add(this.aadBuffer, this.chunkTags, (int) k * tagLength, tagLength, this.delegate);
+    }
+    return tree.root();
+  }
+
+  /** @return the compression of chunks which are encrypted synchronously */
+  private CeffChunkCompression compression() {
+    if (this.compression == null) {
+      this.reservation.reserve(
+          CeffChunkCompression.ramBytesUsed(this.chunkLength), this.toString());
+      this.compression = new CeffChunkCompression(this.chunkLength);
+    }
+    return this.compression;
+  }
+
+  /** Encrypt the buffer and write AAD and cipher text (and the footer for the last chunk) */
+  private void encryptData(boolean lastChunk) throws CeffCryptoException, IOException {
+    this.writeHeader(this.headerFlags);
+    CeffUtils.longToNonce(this.chunk, this.nonce);
+
+    final long start = CeffCryptoClock.start(this.cryptoAccount);
+    final ByteBuffer compressedText =
+        this.compressed ? this.compression().compress(this.buffer) : null;
+    this.putAad(this.aadBuffer, this.chunk, compressedText != null);
+    if (this.sha512md != null && !this.aadTable) {
+      this.sha512md.update(this.aadBuffer);
+      this.aadBuffer.rewind();
+    }
+
+    this.ensureCipherBufferCapacity();
+    this.cipherBuffer.clear();
+    this.mode.encrypt(
+        compressedText != null ? compressedText : this.buffer,
+        this.aadBuffer,
+        this.key,
+        this.nonce,
+        this.cipherBuffer);
+    CeffCryptoClock.stop(this.cryptoAccount, start);
+
+    this.delegate.writeBytes(this.aadBuffer.array(), 0, CeffUtils.AAD_LENGTH);
+    this.delegate.writeBytes(this.cipherBuffer.array(), 0, this.cipherBuffer.position());
+    this.chunkWritten(CeffUtils.AAD_LENGTH + this.cipherBuffer.position());
+    this.tagWritten(this.cipherBuffer);
 
-    this.aadBuffer.rewind();
     if (lastChunk) {
+      if (this.chunkTable != null) {
+        this.writeChunkTable();
+      }
+      if (this.aadTable) {
+        this.writeAadTable();
+      }
+      // ephemeral files are never scanned, the footer is still authenticated
+      final byte[] signature;
+      if (this.merkleTree) {
+        signature = this.writeMerkleTree();
+      } else {
+        signature =
+            this.sha512md != null ? this.sha512md.digest() : new byte[CeffUtils.SIGNATURE_LENGTH];
+      }
 
       this.signatureAadBuffer.clear();
       this.signatureAadBuffer.putLong(this.chunkLength);
@@ -183,27 +737,45 @@ public final class CeffIndexOutput extends IndexOutput {
       this.signatureAadBuffer.putLong(this.filePointer);
       this.signatureAadBuffer.flip();
 
-      final byte[] signatureNonce = CeffUtils.longToNonce((this.chunk+1), this.mode.getNonceLength());
-      final byte[] signature = this.sha512md.digest();
-      final byte[] signatureCipherText =
-          this.mode.encrypt(
-              ByteBuffer.wrap(signature), this.signatureAadBuffer, this.key, signatureNonce);
-      this.signatureAadBuffer.rewind();
+      CeffUtils.longToNonce((this.chunk+1), this.nonce);
+      this.cipherBuffer.clear();
+      this.mode.encrypt(
+          ByteBuffer.wrap(signature), this.signatureAadBuffer, this.key, this.nonce, this.cipherBuffer);
+
+      this.delegate.writeBytes(this.signatureAadBuffer.array(), 0, CeffUtils.AAD_LENGTH);
+      this.delegate.writeBytes(this.cipherBuffer.array(), 0, this.cipherBuffer.position());
 
       ByteBuffer plainTextFooterCrc = ByteBuffer.allocate(16).order(ByteOrder.BIG_ENDIAN);
       plainTextFooterCrc.putInt(CodecUtil.FOOTER_MAGIC); //4byte
       plainTextFooterCrc.putInt(0); //4byte
       plainTextFooterCrc.putLong(this.crc32.getValue()); //8byte
-      plainTextFooterCrc.flip();
-
-      return CeffUtils.concatArrays(
-          CeffUtils.toArray(this.aadBuffer),
-          cipherText,
-          CeffUtils.toArray(this.signatureAadBuffer),
-          signatureCipherText,
-              CeffUtils.toArray(plainTextFooterCrc));
-    } else {
-      return CeffUtils.concatArrays(CeffUtils.toArray(this.aadBuffer), cipherText);
+      this.delegate.writeBytes(plainTextFooterCrc.array(), 0, plainTextFooterCrc.position());
+    }
+  }
+
+  /** Buffers of a chunk which is encrypted in the background */
+  private static final class Slot {
+
+    private final ByteBuffer plainText;
+    private final ByteBuffer cipherText;
+    private final ByteBuffer aad =
+        ByteBuffer.allocate(CeffUtils.AAD_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+    private final byte[] nonce;
+    private Future<?> task;
+    /** created by the first task of a compressed file, accounted for with the slot */
+    private CeffChunkCompression compression;
+
+    private Slot(int chunkLength, CeffMode mode) {
+      this.plainText = ByteBuffer.allocate(chunkLength).order(ByteOrder.LITTLE_ENDIAN);
+      this.cipherText = ByteBuffer.allocate(chunkLength + mode.getTagLength());
+      this.nonce = new byte[mode.getNonceLength()];
+    }
+
+    private CeffChunkCompression compression(int chunkLength) {
+      if (this.compression == null) {
+        this.compression = new CeffChunkCompression(chunkLength);
+      }
+      return this.compression;
     }
   }
 }
@@ -0,0 +1,126 @@
+/* 
+ * Copyright (C) 2021 by eliatra Ltd. - All Rights Reserved
+ * Unauthorized copying, usage or modification of this file in its source or binary form, 
+ * via any medium is strictly prohibited.
+ * Proprietary and confidential.
+ * 
+ * https://eliatra.com
+ */
+package com.eliatra.cloud.lock.lucene.encryption;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Derives per-file keys from the shard key and a per-file salt with HKDF-SHA256 (RFC 5869), so
+ * that a file header only needs to store the salt instead of a wrapped random key.
+ *
+ * <p>Salts are unique per instance without drawing random bytes for every file: a counter is
+ * combined with a random value which is drawn once.
+ */
+final class CeffKeyDerivation {
+
+  static final int SALT_LENGTH = 16;
+
+  private static final String HMAC_ALGO = "HmacSHA256";
+  private static final byte[] INFO = "ceff file key".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] RECORD_INFO =
+      "ceff formats record".getBytes(StandardCharsets.US_ASCII);
+  /** Length of a record MAC, see {@link #mac(byte[], byte[], int, int)} */
+  static final int MAC_LENGTH = 32;
+  private static final ThreadLocal<Mac> MAC =
+      ThreadLocal.withInitial(
+          () -> {
+            try {
+              return Mac.getInstance(HMAC_ALGO);
+            } catch (final GeneralSecurityException e) {
+              // can not happen, HmacSHA256 is always supported
+              throw new RuntimeException(e);
+            }
+          });
+
+  /** Never leaves the process, files with keys derived from it are unreadable after a restart */
+  static final byte[] EPHEMERAL_KEY = new byte[32];
+
+  static {
+    CeffMode.SECURE_RANDOM.nextBytes(EPHEMERAL_KEY);
+  }
+
+  private final long saltRandom = CeffMode.SECURE_RANDOM.nextLong();
+  private final AtomicLong saltCounter = new AtomicLong();
+
+  /**
+   * @return a salt which was not returned before by this instance. The counter comes first, so
+   *     chunk ids based on the salt (see {@link CeffIndexOutput}) do not overlap between files.
+   */
+  byte[] nextSalt() {
+    return ByteBuffer.allocate(SALT_LENGTH)
+        .putLong(this.saltCounter.getAndIncrement())
+        .putLong(this.saltRandom)
+        .array();
+  }
+
+  /**
+   * @param shardKey The 32 byte input key material
+   * @param salt The per-file salt
+   * @param mode The mode of the file, bound to the derived key
+   * @return a 32 byte key
+   * @throws CeffCryptoException if the shard key is invalid
+   */
+  static byte[] deriveKey(byte[] shardKey, byte[] salt, CeffMode mode) throws CeffCryptoException {
+    final Mac mac = MAC.get();
+    try {
+      // extract
+      mac.init(new SecretKeySpec(salt, HMAC_ALGO));
+      final byte[] prk = mac.doFinal(shardKey);
+
+      // expand, one block of SHA-256 is exactly the key length
+      mac.init(new SecretKeySpec(prk, HMAC_ALGO));
+      mac.update(INFO);
+      mac.update(mode.getModeByte());
+      mac.update((byte) 1);
+      return mac.doFinal();
+    } catch (final GeneralSecurityException e) {
+      throw new CeffCryptoException("Unable to derive file key", e, mode);
+    }
+  }
+
+  /**
+   * @param shardKey The 32 byte input key material
+   * @return a 32 byte key to authenticate the records of a shard with (see {@link
+   *     CeffFileFormats}), never used to encrypt files
+   */
+  static byte[] deriveRecordKey(byte[] shardKey) {
+    final Mac mac = MAC.get();
+    try {
+      // extract without a salt, RFC 5869 uses a block of zeros instead
+      mac.init(new SecretKeySpec(new byte[MAC_LENGTH], HMAC_ALGO));
+      final byte[] prk = mac.doFinal(shardKey);
+
+      mac.init(new SecretKeySpec(prk, HMAC_ALGO));
+      mac.update(RECORD_INFO);
+      mac.update((byte) 1);
+      return mac.doFinal();
+    } catch (final GeneralSecurityException e) {
+      // can not happen, the keys are never empty
+      throw new RuntimeException(e);
+    }
+  }
+
+  /** @return the HMAC-SHA256 of the bytes under a key from {@link #deriveRecordKey(byte[])} */
+  static byte[] mac(byte[] recordKey, byte[] bytes, int offset, int length) {
+    final Mac mac = MAC.get();
+    try {
+      mac.init(new SecretKeySpec(recordKey, HMAC_ALGO));
+      mac.update(bytes, offset, length);
+      return mac.doFinal();
+    } catch (final GeneralSecurityException e) {
+      // can not happen, the keys are never empty
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -0,0 +1,246 @@
+/* 
+ * Copyright (C) 2021 by eliatra Ltd. - All Rights Reserved
+ * Unauthorized copying, usage or modification of this file in its source or binary form, 
+ * via any medium is strictly prohibited.
+ * Proprietary and confidential.
+ * 
+ * https://eliatra.com
+ */
+package com.eliatra.cloud.lock.lucene.encryption;
+
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.store.IndexInput;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Hash tree over the chunks of a file of {@link CeffUtils#FORMAT_VERSION_3}, so that a chunk can
+ * be verified on its own instead of all chunks at once.
+ *
+ * <p>The leaves are the SHA-512 of the AAD and the AEAD tag of every chunk. The AAD only depends
+ * on the position of the chunk, the tag commits the root to the cipher text as well. Every power of two in the number of chunks
+ * forms a perfect binary tree (a peak) over the next chunks, largest first. The nodes of all
+ * peaks are stored in post order between the last chunk and the footer, so the writer emits
+ * them as the leaves are added and only keeps one pending node per height. The root is the hash
+ * over all peaks and takes the place of the signature in the footer.
+ *
+ * <p>Opening a file only verifies the peaks against the root. The path of a chunk is verified
+ * when the chunk is loaded, up to the first node which was verified before. Verified nodes are
+ * remembered per file, a chunk which is loaded again is only compared with its stored leaf.
+ */
+final class CeffMerkleTree {
+
+  /** Length of a node in bytes */
+  static final int NODE_LENGTH = CeffUtils.SIGNATURE_LENGTH;
+
+  private static final byte LEAF = 0;
+  private static final byte INNER = 1;
+  private static final byte ROOT = 2;
+
+  private final CeffMode mode;
+  private final long chunks;
+  /** physical position of the first node */
+  private final long start;
+  /** one bit per node position, set once the stored node was verified */
+  private final AtomicLongArray verified;
+
+  private CeffMerkleTree(CeffMode mode, long chunks, long start) {
+    this.mode = mode;
+    this.chunks = chunks;
+    this.start = start;
+    this.verified = new AtomicLongArray((int) ((nodeCount(chunks) + 63) >>> 6));
+  }
+
+  /** @return the number of nodes stored for a file with the given number of chunks */
+  static long nodeCount(long chunks) {
+    return 2 * chunks - Long.bitCount(chunks);
+  }
+
+  /** @return the length of the stored nodes for a file with the given number of chunks */
+  static long length(long chunks) {
+    return nodeCount(chunks) * NODE_LENGTH;
+  }
+
+  /**
+   * @return the post order position of the node at the given height (0 for leaves) and index
+   *     within that height
+   */
+  static long position(int height, long index) {
+    // nodes completed before the first leaf of the subtree, plus the subtree itself
+    return 2 * (index << height) - Long.bitCount(index) + (1L << (height + 1)) - 2;
+  }
+
+  /**
+   * Read the peaks of the tree and verify them against the authenticated root
+   *
+   * @param in The physical input, its position is changed
+   * @param chunks Number of chunks of the file
+   * @param start Physical position of the first node
+   * @param root The root from the decrypted footer
+   * @throws CeffCryptoException if the peaks do not match the root
+   */
+  static CeffMerkleTree open(IndexInput in, CeffMode mode, long chunks, long start, byte[] root)
+      throws IOException, CeffCryptoException {
+    final CeffMerkleTree tree = new CeffMerkleTree(mode, chunks, start);
+    final MessageDigest md = newSha512();
+    final byte[] node = new byte[NODE_LENGTH];
+    md.update(ROOT);
+
+    long first = 0L;
+    for (int height = 63; height >= 0; height--) {
+      if ((chunks & (1L << height)) != 0) {
+        final long position = position(height, first >>> height);
+        tree.readNode(in, position, node);
+        md.update(node);
+        tree.markVerified(position);
+        first += 1L << height;
+      }
+    }
+
+    if (!MessageDigest.isEqual(root, md.digest())) {
+      throw new CeffCryptoException("verification failed: merkle root mismatch", mode);
+    }
+
+    return tree;
+  }
+
+  static MessageDigest newSha512() {
+    try {
+      return MessageDigest.getInstance(CeffUtils.SHA512_DIGEST_ALGO);
+    } catch (final NoSuchAlgorithmException e) {
+      // cannot happen
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Verify a chunk against the tree, reads the nodes on the path of the chunk up to the first
+   * node which is already verified
+   *
+   * @param in Input of the physical file used to read the nodes, its position is changed
+   * @param md Digest used to hash the nodes
+   * @param physicalChunk The physical chunk (AAD, cipher text and tag) at offset
+   * @param length Length of the physical chunk
+   * @throws CeffCryptoException if the chunk does not match the tree
+   */
+  void verify(
+      IndexInput in, MessageDigest md, long chunk, byte[] physicalChunk, int offset, int length)
+      throws IOException, CeffCryptoException {
+    if (chunk < 0L || chunk >= this.chunks) {
+      throw new CeffCryptoException("verification failed: chunk number mismatch", this.mode);
+    }
+
+    // the height of the peak the chunk belongs to bounds the path
+    int peakHeight = 63;
+    long first = 0L;
+    while ((this.chunks & (1L << peakHeight)) == 0 || chunk >= first + (1L << peakHeight)) {
+      if ((this.chunks & (1L << peakHeight)) != 0) {
+        first += 1L << peakHeight;
+      }
+      peakHeight--;
+    }
+
+    final long[] path = new long[2 * peakHeight];
+    int pathLength = 0;
+    final byte[] stored = new byte[NODE_LENGTH];
+    final byte[] sibling = new byte[NODE_LENGTH];
+    final int tagLength = this.mode.getTagLength();
+    md.update(LEAF);
+    md.update(physicalChunk, offset, CeffUtils.AAD_LENGTH);
+    md.update(physicalChunk, offset + length - tagLength, tagLength);
+    byte[] node = md.digest();
+    long index = chunk;
+
+    for (int height = 0; ; height++) {
+      final long position = position(height, index);
+      this.readNode(in, position, stored);
+      if (!MessageDigest.isEqual(stored, node)) {
+        throw new CeffCryptoException("verification failed: merkle tree mismatch", this.mode);
+      }
+      // the peaks were verified against the root when the file was opened
+      if (height == peakHeight || this.isMarked(position)) {
+        break;
+      }
+      path[pathLength++] = position;
+
+      final long siblingPosition = position(height, index ^ 1L);
+      this.readNode(in, siblingPosition, sibling);
+      path[pathLength++] = siblingPosition;
+
+      md.update(INNER);
+      md.update((index & 1L) == 0 ? node : sibling);
+      md.update((index & 1L) == 0 ? sibling : node);
+      node = md.digest();
+      index >>>= 1;
+    }
+
+    // a verified leaf is still compared with every chunk loaded for it, the path is not read
+    for (int i = 0; i < pathLength; i++) {
+      this.markVerified(path[i]);
+    }
+  }
+
+  private void readNode(IndexInput in, long position, byte[] node) throws IOException {
+    in.seek(this.start + position * NODE_LENGTH);
+    in.readBytes(node, 0, NODE_LENGTH);
+  }
+
+  private boolean isMarked(long position) {
+    return (this.verified.get((int) (position >>> 6)) & (1L << position)) != 0;
+  }
+
+  private void markVerified(long position) {
+    final long bit = 1L << position;
+    this.verified.accumulateAndGet((int) (position >>> 6), bit, (a, b) -> a | b);
+  }
+
+  /** Computes the tree while the chunks are written and writes its nodes in post order */
+  static final class Builder {
+
+    private final MessageDigest md = newSha512();
+    /** the root of the last complete subtree of every height, null if there is none */
+    private final byte[][] pending = new byte[64][];
+
+    /**
+     * Add the leaf of the next chunk and write it and every node it completes
+     *
+     * @param aad The AAD of the chunk, from position to limit, the position is not changed
+     * @param tag The AEAD tag of the chunk, tagLength bytes at offset
+     */
+    void add(ByteBuffer aad, byte[] tag, int offset, int tagLength, DataOutput out)
+        throws IOException {
+      this.md.update(LEAF);
+      this.md.update(aad.duplicate());
+      this.md.update(tag, offset, tagLength);
+      byte[] node = this.md.digest();
+      out.writeBytes(node, 0, NODE_LENGTH);
+
+      // like a binary counter, every pending subtree of the same height is merged
+      int height = 0;
+      while (this.pending[height] != null) {
+        this.md.update(INNER);
+        this.md.update(this.pending[height]);
+        this.md.update(node);
+        node = this.md.digest();
+        this.pending[height++] = null;
+        out.writeBytes(node, 0, NODE_LENGTH);
+      }
+      this.pending[height] = node;
+    }
+
+    /** @return the root over all peaks, largest first */
+    byte[] root() {
+      this.md.update(ROOT);
+      for (int height = 63; height >= 0; height--) {
+        if (this.pending[height] != null) {
+          this.md.update(this.pending[height]);
+        }
+      }
+      return this.md.digest();
+    }
+  }
+}
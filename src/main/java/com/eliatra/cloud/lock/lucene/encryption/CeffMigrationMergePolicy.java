@@ -0,0 +1,154 @@
+/* 
+ * Copyright (C) 2021 by eliatra Ltd. - All Rights Reserved
+ * Unauthorized copying, usage or modification of this file in its source or binary form, 
+ * via any medium is strictly prohibited.
+ * Proprietary and confidential.
+ * 
+ * https://eliatra.com
+ */
+package com.eliatra.cloud.lock.lucene.encryption;
+
+import org.apache.lucene.index.FilterMergePolicy;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.MergeTrigger;
+import org.apache.lucene.index.SegmentCommitInfo;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.RateLimiter;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rewrites segments with outdated files (see {@link CeffDirectory#isOutdated(String)}) by merging
+ * them on their own, like Lucene's UpgradeIndexMergePolicy does for old codecs. This migrates an
+ * index to a new mode or chunk lengths and encrypts plain text files left over from mixed mode,
+ * without closing it.
+ *
+ * <p>Only explicitly triggered merges ({@link org.apache.lucene.index.IndexWriter#maybeMerge()})
+ * migrate, one segment at a time. The files of the migrated segment are written at most at the
+ * rate of the limiter, all other merges are left to the wrapped policy.
+ */
+public final class CeffMigrationMergePolicy extends FilterMergePolicy {
+
+  private final CeffDirectory directory;
+  private final RateLimiter rateLimiter;
+  private final AtomicBoolean migrating = new AtomicBoolean();
+  private final AtomicLong migratedSegments = new AtomicLong();
+  private final AtomicLong migratedBytes = new AtomicLong();
+
+  /**
+   * @param in The policy of all regular merges
+   * @param directory The directory of the index, decides which files are outdated
+   * @param rateLimiter Limits the write rate of migrated segments
+   */
+  public CeffMigrationMergePolicy(MergePolicy in, CeffDirectory directory, RateLimiter rateLimiter) {
+    super(in);
+    this.directory = directory;
+    this.rateLimiter = rateLimiter;
+  }
+
+  @Override
+  public MergeSpecification findMerges(
+      MergeTrigger mergeTrigger, SegmentInfos segmentInfos, MergeContext mergeContext)
+      throws IOException {
+    MergeSpecification spec = super.findMerges(mergeTrigger, segmentInfos, mergeContext);
+
+    if (mergeTrigger != MergeTrigger.EXPLICIT || this.migrating.get()) {
+      return spec;
+    }
+
+    final Set<SegmentCommitInfo> merging = new HashSet<>(mergeContext.getMergingSegments());
+    if (spec != null) {
+      for (final OneMerge merge : spec.merges) {
+        merging.addAll(merge.segments);
+      }
+    }
+
+    for (final SegmentCommitInfo info : segmentInfos) {
+      if (!merging.contains(info) && this.isOutdated(info)) {
+        if (!this.migrating.compareAndSet(false, true)) {
+          return spec;
+        }
+        if (spec == null) {
+          spec = new MergeSpecification();
+        }
+        spec.add(new MigrationMerge(info));
+        return spec;
+      }
+    }
+
+    return spec;
+  }
+
+  /** @return true if one of the files of the segment is outdated */
+  public boolean isOutdated(SegmentCommitInfo info) throws IOException {
+    for (final String fileName : info.files()) {
+      if (this.directory.isOutdated(fileName)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** @return true while a segment is migrated */
+  public boolean isMigrating() {
+    return this.migrating.get();
+  }
+
+  /** @return number of segments migrated by this policy */
+  public long getMigratedSegments() {
+    return this.migratedSegments.get();
+  }
+
+  /** @return size of the segments migrated by this policy, before they were migrated */
+  public long getMigratedBytes() {
+    return this.migratedBytes.get();
+  }
+
+  public CeffDirectory getDirectory() {
+    return this.directory;
+  }
+
+  public RateLimiter getRateLimiter() {
+    return this.rateLimiter;
+  }
+
+  private final class MigrationMerge extends OneMerge {
+
+    private final long bytes;
+    private volatile String segmentName;
+
+    private MigrationMerge(SegmentCommitInfo info) throws IOException {
+      super(Collections.singletonList(info));
+      this.bytes = info.sizeInBytes();
+    }
+
+    @Override
+    public void setMergeInfo(SegmentCommitInfo info) {
+      super.setMergeInfo(info);
+      this.segmentName = info.info.name;
+      CeffMigrationMergePolicy.this.directory.throttleSegment(
+          this.segmentName, CeffMigrationMergePolicy.this.rateLimiter);
+    }
+
+    @Override
+    public void mergeFinished(boolean success, boolean segmentDropped) throws IOException {
+      try {
+        super.mergeFinished(success, segmentDropped);
+      } finally {
+        if (this.segmentName != null) {
+          CeffMigrationMergePolicy.this.directory.unthrottleSegment(this.segmentName);
+        }
+        if (success) {
+          CeffMigrationMergePolicy.this.migratedSegments.incrementAndGet();
+          CeffMigrationMergePolicy.this.migratedBytes.addAndGet(this.bytes);
+        }
+        CeffMigrationMergePolicy.this.migrating.set(false);
+      }
+    }
+  }
+}
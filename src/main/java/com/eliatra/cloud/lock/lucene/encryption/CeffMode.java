@@ -135,6 +135,26 @@ public abstract class CeffMode {
   public abstract byte[] encrypt(ByteBuffer plainText, ByteBuffer aad, byte[] key, byte[] nonce)
       throws CeffCryptoException;
 
+  /**
+   * Encrypt plain text and additional authenticated data into a preallocated buffer
+   *
+   * @param plainText The plain text
+   * @param aad Additional authenticated data
+   * @param key The key used for encryption
+   * @param nonce The Nonce/IV used for encryption
+   * @param output Receives the cipher text (including authentication tag), must have at least
+   *     plain text length + tag length bytes remaining
+   * @return The number of bytes written to output
+   * @throws CeffCryptoException in case there is an encryption issue
+   */
+  public int encrypt(
+      ByteBuffer plainText, ByteBuffer aad, byte[] key, byte[] nonce, ByteBuffer output)
+      throws CeffCryptoException {
+    final byte[] cipherText = this.encrypt(plainText, aad, key, nonce);
+    output.put(cipherText);
+    return cipherText.length;
+  }
+
   /**
    * Decrypt cipher text and verify additional authenticated data (AAD)
    *
@@ -195,6 +215,26 @@ public abstract class CeffMode {
       }
     }
 
+    @Override
+    public int encrypt(
+        ByteBuffer plainText, ByteBuffer aad, byte[] key, byte[] nonce, ByteBuffer output)
+        throws CeffCryptoException {
+      try {
+        this.validateKey(key);
+        final Cipher encipher = Cipher.getInstance(ALGO);
+        encipher.init(
+            Cipher.ENCRYPT_MODE,
+            new SecretKeySpec(key, "AES"),
+            new GCMParameterSpec(TAG_LEN, nonce));
+        if(aad != null) {
+          encipher.updateAAD(aad);
+        }
+        return encipher.doFinal(plainText, output);
+      } catch (final Exception e) {
+        throw new CeffCryptoException("encryption failed", e, this);
+      }
+    }
+
     @Override
     public byte[] decrypt(ByteBuffer cipherText, ByteBuffer aad, byte[] key, byte[] nonce)
         throws CeffCryptoException {
@@ -268,6 +308,29 @@ public abstract class CeffMode {
       }
     }
 
+    @Override
+    public int encrypt(
+        ByteBuffer plainText, ByteBuffer aad, byte[] key, byte[] nonce, ByteBuffer output)
+        throws CeffCryptoException {
+
+      if (!Constants.JRE_IS_MINIMUM_JAVA11) {
+        throw new CeffCryptoException(ALGO + " only available for Java 11 and above", this);
+      }
+
+      try {
+        this.validateKey(key);
+        final Cipher encipher = Cipher.getInstance(ALGO);
+        encipher.init(
+            Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "ChaCha20"), new IvParameterSpec(nonce));
+        if(aad != null) {
+          encipher.updateAAD(aad);
+        }
+        return encipher.doFinal(plainText, output);
+      } catch (final Exception e) {
+        throw new CeffCryptoException("encryption failed", e, this);
+      }
+    }
+
     @Override
     public byte[] decrypt(ByteBuffer cipherText, ByteBuffer aad, byte[] key, byte[] nonce)
         throws CeffCryptoException {
@@ -40,6 +40,60 @@ public final class CeffUtils {
   /** Length of a Ceff header in bytes */
   private static final int _HEADER_LENGTH = MAGIC_LENGTH + MODE_LENGTH;
 
+  /** Set in the mode byte if a flags byte follows (mode bytes are always &lt; 0x80) */
+  public static final int EXTENDED_HEADER_BIT = 0x80;
+
+  /** Header flag: the file key is derived from the shard key and a salt stored in the header */
+  public static final int FLAG_DERIVED_KEY = 0x01;
+
+  /**
+   * Header flag: the file key is derived from a key which only exists in memory of the writing
+   * process and the file has no signature over its chunks. Used for temporary files.
+   */
+  public static final int FLAG_EPHEMERAL = 0x02;
+
+  /**
+   * Header flag: the file is a single AEAD cipher text of the whole plain text without chunk
+   * framing, footer and signature. Used for tiny files.
+   */
+  public static final int FLAG_COMPACT = 0x04;
+
+  /**
+   * Header flag: chunks are compressed before they are encrypted where this saves space, see
+   * {@link CeffCompressedIndexInput}. Chunks have variable lengths, a table of their lengths
+   * precedes the footer.
+   */
+  public static final int FLAG_COMPRESSED = 0x08;
+
+  /**
+   * Header flag: the flags are followed by the format version ({@link #FORMAT_VERSION_2} or
+   * {@link #FORMAT_VERSION_3}) and the chunk length. Readers which do not know the flag reject
+   * the file.
+   */
+  public static final int FLAG_VERSIONED = 0x10;
+
+  /**
+   * Header flag: instead of a salt the header ends with a nonce and the random file key
+   * encrypted by the shard key, like a header without flags. Used when a file with {@link
+   * #FLAG_COMPRESSED} or {@link #FLAG_VERSIONED} is copied to a shard with another key.
+   */
+  public static final int FLAG_WRAPPED_KEY = 0x20;
+
+  /**
+   * Format version of files with {@link #FLAG_VERSIONED} and a table of all chunk AADs before
+   * the footer, files without the flag are version 1. Still read, no longer written.
+   */
+  public static final int FORMAT_VERSION_2 = 2;
+
+  /**
+   * Format version of files with {@link #FLAG_VERSIONED} and a hash tree over the chunk AADs and
+   * AEAD tags before the footer, see {@link CeffMerkleTree}. Written for new files.
+   */
+  public static final int FORMAT_VERSION_3 = 3;
+
+  /** Set in the chunk number of the AAD of a compressed chunk */
+  public static final long COMPRESSED_CHUNK_BIT = Long.MIN_VALUE;
+
   /** The name of the SHA 512 algorithm */
   public static final String SHA512_DIGEST_ALGO = "SHA-512";
 
@@ -51,6 +105,29 @@ public final class CeffUtils {
     return _HEADER_LENGTH+mode.getNonceLength()+32+mode.getTagLength();
   }
 
+  /**
+   * @param mode The mode used to encrypt the data.
+   * @param flags The header flags, 0 for a header with a wrapped file key
+   * @return The length of the header (in bytes)
+   */
+  public static int headerLength(CeffMode mode, int flags) {
+    if (flags == 0) {
+      return headerLength(mode);
+    }
+    int length = _HEADER_LENGTH + 1;
+    if ((flags & FLAG_VERSIONED) != 0) {
+      // version and chunk length
+      length += 1 + Integer.BYTES;
+    }
+    if ((flags & FLAG_DERIVED_KEY) != 0) {
+      length += CeffKeyDerivation.SALT_LENGTH;
+    }
+    if ((flags & FLAG_WRAPPED_KEY) != 0) {
+      length += mode.getNonceLength() + 32 + mode.getTagLength();
+    }
+    return length;
+  }
+
   /**
    * @param mode The mode used to encrypt the data.
    * @return The length (in bytes) of the additional crypto data (nonce, auth tag, aad) for a chunk
@@ -190,16 +267,50 @@ public final class CeffUtils {
    */
   public static long calculateNumberOfChunks(
       long encryptedFileLength, int chunkLength, CeffMode mode) {
+    return calculateNumberOfChunks(encryptedFileLength, chunkLength, mode, headerLength(mode));
+  }
+
+  /**
+   * @param encryptedFileLength Length of encrypted data
+   * @param chunkLength Length of a chunk
+   * @param mode The mode
+   * @param headerLength Length of the header of the file
+   * @return Number of chunks in the file/data
+   */
+  public static long calculateNumberOfChunks(
+      long encryptedFileLength, int chunkLength, CeffMode mode, int headerLength) {
     validateChunkLength(chunkLength);
     if (encryptedFileLength == 0L) {
       return 0L;
     }
-    final int additionalBytesLen = CeffUtils.headerLength(mode) + CeffUtils.footerLength(mode);
+    final int additionalBytesLen = headerLength + CeffUtils.footerLength(mode);
     return ((encryptedFileLength - additionalBytesLen)
             / (CeffUtils.cryptoLength(mode) + chunkLength))
         + 1;
   }
 
+  /**
+   * Every chunk of a file of {@link #FORMAT_VERSION_2} has an entry in the AAD table, so the
+   * number of chunks follows from the physical length and the chunk length in the header.
+   *
+   * @param encryptedFileLength Length of encrypted data
+   * @param chunkLength Length of a chunk
+   * @param mode The mode
+   * @param headerLength Length of the header of the file
+   * @return Number of chunks in the file, 0 if the file is too short
+   */
+  public static long calculateNumberOfChunksV2(
+      long encryptedFileLength, int chunkLength, CeffMode mode, int headerLength) {
+    validateChunkLength(chunkLength);
+    final long chunksLength = encryptedFileLength - headerLength - footerLength(mode);
+    if (chunksLength <= 0L) {
+      return 0L;
+    }
+    // only the last chunk may be short, every chunk has at least its crypto data and aad
+    final long unit = chunkLength + cryptoLength(mode) + AAD_LENGTH;
+    return (chunksLength + unit - 1) / unit;
+  }
+
   /**
    * @param encryptedFileLength Length of encrypted data
    * @param chunkLength Length of a chunk
@@ -208,12 +319,41 @@ public final class CeffUtils {
    */
   public static long calculateEncryptionOverhead(
       long encryptedFileLength, int chunkLength, CeffMode mode) {
+    return calculateEncryptionOverhead(encryptedFileLength, chunkLength, mode, headerLength(mode));
+  }
+
+  /**
+   * @param encryptedFileLength Length of encrypted data
+   * @param chunkLength Length of a chunk
+   * @param mode The mode
+   * @param headerLength Length of the header of the file
+   * @return Number of additional bytes added for encryption and signature
+   */
+  public static long calculateEncryptionOverhead(
+      long encryptedFileLength, int chunkLength, CeffMode mode, int headerLength) {
     validateChunkLength(chunkLength);
     if (encryptedFileLength == 0L) {
       return 0L;
     }
-    final long chunks = calculateNumberOfChunks(encryptedFileLength, chunkLength, mode);
-    return (chunks * cryptoLength(mode)) + CeffUtils.headerLength(mode) + CeffUtils.footerLength(mode);
+    final long chunks = calculateNumberOfChunks(encryptedFileLength, chunkLength, mode, headerLength);
+    return (chunks * cryptoLength(mode)) + headerLength + CeffUtils.footerLength(mode);
+  }
+
+  /**
+   * @param encryptedFileLength Length of encrypted data of a {@link #FORMAT_VERSION_2} file
+   * @param chunkLength Length of a chunk, as recorded in the header
+   * @param mode The mode
+   * @param headerLength Length of the header of the file
+   * @return Number of additional bytes added for encryption, aad table and signature
+   */
+  public static long calculateEncryptionOverheadV2(
+      long encryptedFileLength, int chunkLength, CeffMode mode, int headerLength) {
+    final long chunks =
+        calculateNumberOfChunksV2(encryptedFileLength, chunkLength, mode, headerLength);
+    if (chunks == 0L) {
+      return 0L;
+    }
+    return (chunks * (cryptoLength(mode) + AAD_LENGTH)) + headerLength + footerLength(mode);
   }
 
   /**
@@ -224,9 +364,21 @@ public final class CeffUtils {
    */
   public static long calculatePlainFileLength(
       long encryptedFileLength, int chunkLength, CeffMode mode) {
+    return calculatePlainFileLength(encryptedFileLength, chunkLength, mode, headerLength(mode));
+  }
+
+  /**
+   * @param encryptedFileLength Length of encrypted data
+   * @param chunkLength Length of a chunk
+   * @param mode The mode
+   * @param headerLength Length of the header of the file
+   * @return Length of plain text in a chunked file
+   */
+  public static long calculatePlainFileLength(
+      long encryptedFileLength, int chunkLength, CeffMode mode, int headerLength) {
     validateChunkLength(chunkLength);
     return encryptedFileLength
-        - calculateEncryptionOverhead(encryptedFileLength, chunkLength, mode);
+        - calculateEncryptionOverhead(encryptedFileLength, chunkLength, mode, headerLength);
   }
 
   public static byte[] longToNonce(long lng, int nonceLength) {
@@ -234,7 +386,17 @@ public final class CeffUtils {
       //return new byte[nonceLength];
       throw new IllegalArgumentException("nonceLength must be >= 8");
     }
-    byte[] bytes = new byte[nonceLength];
+    return longToNonce(lng, new byte[nonceLength]);
+  }
+
+  /**
+   * Like {@link #longToNonce(long, int)} but writes into an existing nonce
+   *
+   * @param lng The value
+   * @param bytes A zero initialized nonce of at least 8 bytes, only the first 8 bytes are written
+   * @return bytes
+   */
+  public static byte[] longToNonce(long lng, byte[] bytes) {
     bytes[0] = (byte) lng;
     bytes[1] = (byte) (lng >> 8);
     bytes[2] = (byte) (lng >> 16);
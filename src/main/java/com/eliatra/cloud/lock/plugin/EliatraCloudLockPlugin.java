@@ -20,11 +20,21 @@ import com.eliatra.cloud.lock.action.update_key.TransportUpdateKeyAction;
 import com.eliatra.cloud.lock.action.update_key.UpdateKeyAction;
 import com.eliatra.cloud.lock.action.update_key.UpdateKeyRequest;
 import com.eliatra.cloud.lock.action.update_key.UpdateKeyResponse;
+import com.eliatra.cloud.lock.index.CeffMergeService;
+import com.eliatra.cloud.lock.index.CeffMigrationService;
+import com.eliatra.cloud.lock.index.CeffWarmUpIndexEventListener;
 import com.eliatra.cloud.lock.index.CryptoTranslogIndexingOperationListener;
+import com.eliatra.cloud.lock.lucene.encryption.CeffAccessTrace;
+import com.eliatra.cloud.lock.lucene.encryption.CeffBufferAccounting;
+import com.eliatra.cloud.lock.lucene.encryption.CeffCryptoPool;
 import com.eliatra.cloud.lock.lucene.encryption.CeffDirectory;
+import com.eliatra.cloud.lock.lucene.encryption.CeffFilePolicy;
 import com.eliatra.cloud.lock.lucene.encryption.CeffMode;
 import com.eliatra.cloud.lock.repo.EncryptedRepositoryFactory;
+import com.eliatra.cloud.lock.rest.GetAccessTraceApiAction;
 import com.eliatra.cloud.lock.rest.GetEncryptedIndicesApiAction;
+import com.eliatra.cloud.lock.rest.GetMergesApiAction;
+import com.eliatra.cloud.lock.rest.GetMigrationApiAction;
 import com.eliatra.cloud.lock.rest.InitializeKeyApiAction;
 import com.eliatra.cloud.lock.support.BaseDependencies;
 import com.eliatra.cloud.lock.support.RSAUtil;
@@ -33,6 +43,7 @@ import com.google.crypto.tink.aead.AeadConfig;
 import com.google.crypto.tink.streamingaead.StreamingAeadConfig;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.store.LockFactory;
@@ -50,9 +61,15 @@ import org.opensearch.common.settings.IndexScopedSettings;
 import org.opensearch.common.settings.Setting;
 import org.opensearch.common.settings.Settings;
 import org.opensearch.common.settings.SettingsFilter;
+import org.opensearch.common.unit.MemorySizeValue;
+import org.opensearch.common.util.concurrent.OpenSearchExecutors;
+import org.opensearch.core.common.unit.ByteSizeValue;
 import org.opensearch.core.action.ActionListener;
 import org.opensearch.core.action.ActionResponse;
+import org.opensearch.core.common.breaker.CircuitBreaker;
 import org.opensearch.core.common.io.stream.NamedWriteableRegistry;
+import org.opensearch.core.index.Index;
+import org.opensearch.core.index.shard.ShardId;
 import org.opensearch.core.xcontent.NamedXContentRegistry;
 import org.opensearch.env.Environment;
 import org.opensearch.env.NodeEnvironment;
@@ -65,8 +82,11 @@ import org.opensearch.index.engine.EngineFactory;
 import org.opensearch.index.engine.InternalEngine;
 import org.opensearch.index.shard.ShardPath;
 import org.opensearch.index.store.FsDirectoryFactory;
+import org.opensearch.index.translog.Translog;
+import org.opensearch.indices.breaker.BreakerSettings;
 import org.opensearch.indices.recovery.RecoverySettings;
 import org.opensearch.plugins.ActionPlugin;
+import org.opensearch.plugins.CircuitBreakerPlugin;
 import org.opensearch.plugins.EnginePlugin;
 import org.opensearch.plugins.IndexStorePlugin;
 import org.opensearch.plugins.Plugin;
@@ -76,10 +96,13 @@ import org.opensearch.repositories.Repository;
 import org.opensearch.rest.RestController;
 import org.opensearch.rest.RestHandler;
 import org.opensearch.script.ScriptService;
+import org.opensearch.threadpool.ExecutorBuilder;
+import org.opensearch.threadpool.FixedExecutorBuilder;
 import org.opensearch.threadpool.ThreadPool;
 import org.opensearch.watcher.ResourceWatcherService;
 
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
@@ -87,9 +110,11 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.function.BiFunction;
 import java.util.function.Supplier;
 
@@ -97,10 +122,13 @@ import static com.eliatra.cloud.lock.plugin.EliatraCloudLockPluginSettings.INDEX
 import static org.opensearch.index.store.FsDirectoryFactory.INDEX_LOCK_FACTOR_SETTING;
 
 
-public class EliatraCloudLockPlugin extends Plugin implements IndexStorePlugin, RepositoryPlugin, ActionPlugin, EnginePlugin {
+public class EliatraCloudLockPlugin extends Plugin implements IndexStorePlugin, RepositoryPlugin, ActionPlugin, EnginePlugin, CircuitBreakerPlugin {
 
     public static final String ENCRYPTED_TL_FIELD_NAME = "_encrypted_tl_content";
+    public static final String CEFF_BUFFERS_BREAKER_NAME = "cloud_lock_ceff_buffers";
     public static final FsDirectoryFactory FS_DIRECTORY_FACTORY = new FsDirectoryFactory();
+    /** Chunk length of files without a specific one in {@link CeffFilePolicy} or index.cloud_lock_chunk_lengths */
+    public static final int DEFAULT_CHUNK_LENGTH = 16 * 1024;
 
     static {
         try {
@@ -119,6 +147,8 @@ public class EliatraCloudLockPlugin extends Plugin implements IndexStorePlugin,
 
     private final Settings settings;
     private BaseDependencies baseDependencies;
+    private CeffMigrationService migrationService;
+    private CeffMergeService mergeService;
 
     public EliatraCloudLockPlugin(final Settings settings, final Path configPath) {
         this.settings = settings;
@@ -126,6 +156,14 @@ public class EliatraCloudLockPlugin extends Plugin implements IndexStorePlugin,
 
         if(enabled) {
             logger.info("Eliatra Cloud Lock Plugin enabled");
+
+            final int cryptoParallelism = EliatraCloudLockPluginSettings.CRYPTO_PARALLELISM.getFrom(settings);
+            if (cryptoParallelism > 0) {
+                CeffCryptoPool.setParallelism(cryptoParallelism);
+            }
+
+            CeffAccessTrace.configure(EliatraCloudLockPluginSettings.ACCESS_TRACE_CAPACITY.getFrom(settings),
+                    EliatraCloudLockPluginSettings.ACCESS_TRACE_SAMPLE_ONE_IN.getFrom(settings));
         } else {
             logger.info("Eliatra Cloud Lock Plugin disabled");
         }
@@ -145,6 +183,9 @@ public class EliatraCloudLockPlugin extends Plugin implements IndexStorePlugin,
         this.baseDependencies = new BaseDependencies(this.settings, null, client, clusterService,
                 threadPool, xContentRegistry, environment, nodeEnvironment, indexNameExpressionResolver, guiceDependencies);
 
+        this.migrationService = new CeffMigrationService(threadPool);
+        this.mergeService = new CeffMergeService();
+
         final String _publicClusterKey = EliatraCloudLockPluginSettings.NODE_PUBLIC_CLUSTER_KEY.getFrom(baseDependencies.getSettings());
 
         if (_publicClusterKey == null || _publicClusterKey.isEmpty()) {
@@ -211,12 +252,21 @@ public class EliatraCloudLockPlugin extends Plugin implements IndexStorePlugin,
         return Optional.of(new EngineFactory() {
             @Override
             public Engine newReadWriteEngine(EngineConfig config) {
-                return new InternalEngine(config) {
+                final Engine engine = new InternalEngine(config) {
                     @Override
                     public GetResult get(Get get, BiFunction<String, SearcherScope, Searcher> searcherFactory) throws EngineException {
                         return super.get(new Get(false, false, get.id(), get.uid()), searcherFactory);
                     }
+
+                    @Override
+                    protected void commitIndexWriter(IndexWriter writer, Translog translog) throws IOException {
+                        migrationService.install(config.getShardId(), writer);
+                        mergeService.install(config.getShardId(), writer);
+                        super.commitIndexWriter(writer, translog);
+                    }
                 };
+                migrationService.engineCreated(config.getShardId());
+                return engine;
             }
         });
     }
@@ -262,20 +312,58 @@ public class EliatraCloudLockPlugin extends Plugin implements IndexStorePlugin,
 
             @Override
             Directory createDirectory(FSDirectory delegate, IndexSettings indexSettings, ShardPath shardPath, LockFactory lockFactory) throws Exception {
+                shareSourceShardKeys(indexSettings, shardPath);
                 return new CeffDirectory(
                         delegate,
                         lockFactory,
                         () -> KeyStore.INSTANCE.getClusterKey(),
-                        //64*1024,
-                        16*1024,
-                        CeffMode.CHACHA20_POLY1305_MODE,
-                        false); //TODO fail on plaintext?
+                        filePolicy(indexSettings.getSettings()),
+                        mode(indexSettings.getSettings()),
+                        false); // strict anyway once the index is known to be fully encrypted
             }
         });
 
         return directories;
     }
 
+    /**
+     * Shrink, split and clone hard link (or copy) the files of the source shards on this node into the target shard.
+     * The files are bound to the keys of the source shards, which are shared with the target shard before its
+     * directory is created. Nothing is decrypted or encrypted again.
+     */
+    private void shareSourceShardKeys(IndexSettings indexSettings, ShardPath shardPath) throws IOException {
+        final IndexMetadata indexMetadata = indexSettings.getIndexMetadata();
+        final Index source = indexMetadata.getResizeSourceIndex();
+
+        if (source == null || baseDependencies == null) {
+            return;
+        }
+
+        final int shardId = shardPath.getShardId().id();
+
+        if (!indexMetadata.inSyncAllocationIds(shardId).isEmpty()) {
+            // only the primary which was never started recovers from the local source shards, all later recoveries
+            // are from the existing store or a peer
+            return;
+        }
+
+        final IndexMetadata sourceMetadata = baseDependencies.getClusterService().state().metadata().index(source);
+
+        if (sourceMetadata == null) {
+            return;
+        }
+
+        // the same source shards the local shards recovery of the target shard uses
+        for (final ShardId sourceShardId : IndexMetadata.selectRecoverFromShards(shardId, sourceMetadata, indexMetadata.getNumberOfShards())) {
+            for (final Path sourceShardPath : baseDependencies.getNodeEnvironment().availableShardPaths(sourceShardId)) {
+                if (Files.isDirectory(sourceShardPath)
+                        && CeffDirectory.shareShardKey(sourceShardPath, shardPath.getDataPath(), source.getUUID() + "_" + sourceShardId.id())) {
+                    logger.debug("Shared the key of {} with {}", sourceShardId, shardPath.getShardId());
+                }
+            }
+        }
+    }
+
     @Override
     public List<Setting<?>> getSettings() {
         return StaticSettings.AttributeSet.of(EliatraCloudLockPluginSettings.attributes).toPlatform();
@@ -299,7 +387,10 @@ public class EliatraCloudLockPlugin extends Plugin implements IndexStorePlugin,
         }
         return List.of(
                 new InitializeKeyApiAction(baseDependencies.getClusterService(), baseDependencies.getThreadPool().getThreadContext()),
-                new GetEncryptedIndicesApiAction(baseDependencies.getClusterService(), baseDependencies.getThreadPool().getThreadContext())
+                new GetEncryptedIndicesApiAction(baseDependencies.getClusterService(), baseDependencies.getThreadPool().getThreadContext()),
+                new GetAccessTraceApiAction(),
+                new GetMigrationApiAction(migrationService),
+                new GetMergesApiAction(mergeService)
 
         );
     }
@@ -316,8 +407,120 @@ public class EliatraCloudLockPlugin extends Plugin implements IndexStorePlugin,
             throw new RuntimeException("store.type must be set to 'encrypted' for index "+indexModule.getIndex().getName());
         }
 
+        // fail index creation instead of shard allocation on an invalid file policy
+        filePolicy(indexModule.getSettings());
+        mode(indexModule.getSettings());
+
         //if index is encrypted
         indexModule.addIndexOperationListener(new CryptoTranslogIndexingOperationListener(baseDependencies));
+
+        if (EliatraCloudLockPluginSettings.INDEX_WARMUP_ON_RECOVERY.getFrom(indexModule.getSettings())) {
+            indexModule.addIndexEventListener(new CeffWarmUpIndexEventListener(baseDependencies));
+        }
+
+        indexModule.addIndexEventListener(migrationService);
+        indexModule.addIndexEventListener(mergeService);
+    }
+
+    static CeffFilePolicy filePolicy(Settings indexSettings) {
+        final String settingName = EliatraCloudLockPluginSettings.INDEX_CHUNK_LENGTHS.name();
+        final Map<String, Integer> chunkLengths = new HashMap<>();
+        int defaultChunkLength = DEFAULT_CHUNK_LENGTH;
+
+        for (final String entry : EliatraCloudLockPluginSettings.INDEX_CHUNK_LENGTHS.getFrom(indexSettings)) {
+            final int separator = entry.indexOf(':');
+            if (separator < 1) {
+                throw new IllegalArgumentException("Invalid entry '" + entry + "' for " + settingName + ", expected extension:size");
+            }
+
+            final String extension = entry.substring(0, separator).trim();
+            final long chunkLength = ByteSizeValue.parseBytesSizeValue(entry.substring(separator + 1).trim(), settingName).getBytes();
+            if (chunkLength > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Chunk length of '" + extension + "' is too large for " + settingName);
+            }
+
+            if ("*".equals(extension)) {
+                defaultChunkLength = (int) chunkLength;
+            } else {
+                chunkLengths.put(extension.startsWith(".") ? extension.substring(1) : extension, (int) chunkLength);
+            }
+        }
+
+        return CeffFilePolicy.withDefaults(
+                defaultChunkLength,
+                chunkLengths,
+                extensions(EliatraCloudLockPluginSettings.INDEX_ENCRYPTED_EXTENSIONS.getFrom(indexSettings)),
+                extensions(EliatraCloudLockPluginSettings.INDEX_PLAINTEXT_EXTENSIONS.getFrom(indexSettings)),
+                extensions(EliatraCloudLockPluginSettings.INDEX_COMPRESSED_EXTENSIONS.getFrom(indexSettings)));
+    }
+
+    static CeffMode mode(Settings indexSettings) {
+        final String mode = EliatraCloudLockPluginSettings.INDEX_MODE.getFrom(indexSettings);
+
+        switch (mode) {
+            case "chacha20_poly1305":
+                return CeffMode.CHACHA20_POLY1305_MODE;
+            case "aes_gcm":
+                return CeffMode.AES_GCM_MODE;
+            default:
+                throw new IllegalArgumentException("Invalid value '" + mode + "' for " + EliatraCloudLockPluginSettings.INDEX_MODE.name()
+                        + ", expected chacha20_poly1305 or aes_gcm");
+        }
+    }
+
+    private static Set<String> extensions(List<String> entries) {
+        final Set<String> extensions = new HashSet<>();
+        for (final String entry : entries) {
+            final String extension = entry.trim();
+            extensions.add(extension.startsWith(".") ? extension.substring(1) : extension);
+        }
+        return extensions;
+    }
+
+    @Override
+    public List<ExecutorBuilder<?>> getExecutorBuilders(Settings settings) {
+        if (!enabled) {
+            return Collections.emptyList();
+        }
+
+        final int warmUpThreads = Math.max(1, Math.min(4, OpenSearchExecutors.allocatedProcessors(settings) / 4));
+        return List.of(new FixedExecutorBuilder(settings, CeffWarmUpIndexEventListener.THREAD_POOL_NAME, warmUpThreads, -1,
+                "thread_pool." + CeffWarmUpIndexEventListener.THREAD_POOL_NAME));
+    }
+
+    @Override
+    public BreakerSettings getCircuitBreaker(Settings settings) {
+        if (!enabled) {
+            // the node looks up a breaker for every circuit breaker plugin, so register one which never trips
+            return new BreakerSettings(CEFF_BUFFERS_BREAKER_NAME, -1, 1.0, CircuitBreaker.Type.NOOP,
+                    CircuitBreaker.Durability.TRANSIENT);
+        }
+
+        // 10% of the heap by default, can be changed with breaker.cloud_lock_ceff_buffers.limit in opensearch.yml or
+        // at runtime. The node settings are not applied to plugin breakers by the circuit breaker service
+        final String limitSetting = "breaker." + CEFF_BUFFERS_BREAKER_NAME + ".limit";
+        return BreakerSettings.updateFromSettings(new BreakerSettings(CEFF_BUFFERS_BREAKER_NAME,
+                MemorySizeValue.parseBytesSizeValueOrHeapRatio("10%", limitSetting).getBytes(),
+                1.0, CircuitBreaker.Type.MEMORY, CircuitBreaker.Durability.TRANSIENT), settings);
+    }
+
+    @Override
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        if (!enabled) {
+            return;
+        }
+
+        CeffBufferAccounting.setAccountant(new CeffBufferAccounting.Accountant() {
+            @Override
+            public void reserve(long bytes, String label) {
+                circuitBreaker.addEstimateBytesAndMaybeBreak(bytes, label);
+            }
+
+            @Override
+            public void release(long bytes) {
+                circuitBreaker.addWithoutBreaking(-bytes);
+            }
+        });
     }
 
     @Override
@@ -2,8 +2,13 @@ package com.eliatra.cloud.lock.plugin;
 
 
 import com.eliatra.cloud.lock.support.StaticSettings;
+import org.opensearch.common.unit.TimeValue;
+import org.opensearch.core.common.unit.ByteSizeUnit;
+import org.opensearch.core.common.unit.ByteSizeValue;
 import org.opensearch.index.IndexModule;
 
+import java.util.List;
+
 public class EliatraCloudLockPluginSettings {
 
     private EliatraCloudLockPluginSettings() {
@@ -35,11 +40,168 @@ public class EliatraCloudLockPluginSettings {
                     .define("eliatra.cloud_lock.public_cluster_key")
                     .withDefault((String) null).asString();
 
+    /**
+     * Number of threads used to en-/decrypt chunks in parallel. 0 means half of the available processors (at most 8).
+     */
+    public static final StaticSettings.Attribute<Integer> CRYPTO_PARALLELISM =
+            StaticSettings.Attribute
+                    .define("eliatra.cloud_lock.crypto.parallelism")
+                    .withDefault(0)
+                    .asInteger();
+
+    /**
+     * If true all files of the last commit of an encrypted shard are verified in parallel before the shard is recovered.
+     * The parallelism is bounded by the cloud_lock_warmup thread pool.
+     */
+    public static final StaticSettings.Attribute<Boolean> INDEX_WARMUP_ON_RECOVERY =
+            StaticSettings.Attribute
+                    .define("index.cloud_lock_warmup_on_recovery")
+                    .indexScoped()
+                    .withDefault(false)
+                    .asBoolean();
+
+    /**
+     * Maximum number of chunk loads recorded by the access trace. 0 disables the trace.
+     */
+    public static final StaticSettings.Attribute<Integer> ACCESS_TRACE_CAPACITY =
+            StaticSettings.Attribute
+                    .define("eliatra.cloud_lock.access_trace.capacity")
+                    .withDefault(0)
+                    .asInteger();
+
+    /**
+     * Trace one of this many opened encrypted files.
+     */
+    public static final StaticSettings.Attribute<Integer> ACCESS_TRACE_SAMPLE_ONE_IN =
+            StaticSettings.Attribute
+                    .define("eliatra.cloud_lock.access_trace.sample_one_in")
+                    .withDefault(10)
+                    .asInteger();
+
+    /**
+     * Chunk lengths of encrypted files by extension, as "extension:size" (for example "fdt:128kb"). "*" sets the chunk
+     * length of all other files. Entries override the built-in table of CeffFilePolicy.
+     */
+    public static final StaticSettings.Attribute<List<String>> INDEX_CHUNK_LENGTHS =
+            StaticSettings.Attribute
+                    .define("index.cloud_lock_chunk_lengths")
+                    .indexScoped()
+                    .asListOfStrings();
+
+    /**
+     * Only files with these extensions (for example "fdt", "tim", "vec") are encrypted. Empty encrypts all files.
+     * Segment infos and commit points are never encrypted.
+     */
+    public static final StaticSettings.Attribute<List<String>> INDEX_ENCRYPTED_EXTENSIONS =
+            StaticSettings.Attribute
+                    .define("index.cloud_lock_encrypted_extensions")
+                    .indexScoped()
+                    .asListOfStrings();
+
+    /**
+     * Files with these extensions (for example "nvd", "dim") are written in plain text, even if listed in
+     * index.cloud_lock_encrypted_extensions. Files written encrypted before remain readable.
+     */
+    public static final StaticSettings.Attribute<List<String>> INDEX_PLAINTEXT_EXTENSIONS =
+            StaticSettings.Attribute
+                    .define("index.cloud_lock_plaintext_extensions")
+                    .indexScoped()
+                    .asListOfStrings();
+
+    /**
+     * The chunks of encrypted files with these extensions (for example "dvd", "kdd", "tim", or "*" for all files) are
+     * compressed before they are encrypted, where this saves space. Cipher text can not be compressed by the storage
+     * layer. Existing files are not rewritten when this changes.
+     */
+    public static final StaticSettings.Attribute<List<String>> INDEX_COMPRESSED_EXTENSIONS =
+            StaticSettings.Attribute
+                    .define("index.cloud_lock_compressed_extensions")
+                    .indexScoped()
+                    .asListOfStrings();
+
+    /**
+     * Cipher of newly written files, "chacha20_poly1305" or "aes_gcm". Files written with another cipher remain
+     * readable and are rewritten by the migration.
+     */
+    public static final StaticSettings.Attribute<String> INDEX_MODE =
+            StaticSettings.Attribute
+                    .define("index.cloud_lock_mode")
+                    .indexScoped()
+                    .withDefault("chacha20_poly1305")
+                    .asString();
+
+    /**
+     * If true segments whose files were written with another cipher or chunk length than the current settings, and
+     * plain text files left over from mixed mode, are rewritten in the background. Opt-in, rewriting costs I/O and CPU.
+     */
+    public static final StaticSettings.Attribute<Boolean> INDEX_MIGRATION_ENABLED =
+            StaticSettings.Attribute
+                    .define("index.cloud_lock_migration_enabled")
+                    .indexScoped()
+                    .withDefault(false)
+                    .asBoolean();
+
+    /**
+     * How often each shard is checked for outdated segments. At most one segment per shard is migrated at a time.
+     */
+    public static final StaticSettings.Attribute<TimeValue> INDEX_MIGRATION_INTERVAL =
+            StaticSettings.Attribute
+                    .define("index.cloud_lock_migration_interval")
+                    .indexScoped()
+                    .withDefault(TimeValue.timeValueMinutes(1))
+                    .asTimeValue();
+
+    /**
+     * Maximum write rate of a migrated segment, per shard.
+     */
+    public static final StaticSettings.Attribute<ByteSizeValue> INDEX_MIGRATION_MAX_BYTES_PER_SEC =
+            StaticSettings.Attribute
+                    .define("index.cloud_lock_migration_max_bytes_per_sec")
+                    .indexScoped()
+                    .withDefault(new ByteSizeValue(10, ByteSizeUnit.MB))
+                    .asByteSizeValue(new ByteSizeValue(1), new ByteSizeValue(Long.MAX_VALUE));
+
+    /**
+     * Merges are throttled by their crypto time once the CPU usage of the node reaches this percentage, above 100
+     * never. Encrypted merges spend most of their CPU time decrypting and encrypting again.
+     */
+    public static final StaticSettings.Attribute<Integer> INDEX_MERGE_CPU_SATURATION_PERCENT =
+            StaticSettings.Attribute
+                    .define("index.cloud_lock_merge_cpu_saturation_percent")
+                    .indexScoped()
+                    .withDefault(90)
+                    .asInteger(0, Integer.MAX_VALUE);
+
+    /**
+     * While the node is CPU saturated a merge is slowed down so that its crypto time stays within this percentage of
+     * one processor. Must be positive.
+     */
+    public static final StaticSettings.Attribute<Integer> INDEX_MERGE_CRYPTO_CPU_PERCENT =
+            StaticSettings.Attribute
+                    .define("index.cloud_lock_merge_crypto_cpu_percent")
+                    .indexScoped()
+                    .withDefault(50)
+                    .asInteger(1, Integer.MAX_VALUE);
+
     static final StaticSettings.Attribute[] attributes =
             new StaticSettings.Attribute[] {
                     INDEX_ENCRYPTION_ENABLED,
                     NODE_PUBLIC_CLUSTER_KEY,
                     CLOUD_LOCK_ENABLED,
-                    INDEX_STORETYPE_ORIGINAL
+                    INDEX_STORETYPE_ORIGINAL,
+                    CRYPTO_PARALLELISM,
+                    INDEX_WARMUP_ON_RECOVERY,
+                    ACCESS_TRACE_CAPACITY,
+                    ACCESS_TRACE_SAMPLE_ONE_IN,
+                    INDEX_CHUNK_LENGTHS,
+                    INDEX_ENCRYPTED_EXTENSIONS,
+                    INDEX_PLAINTEXT_EXTENSIONS,
+                    INDEX_COMPRESSED_EXTENSIONS,
+                    INDEX_MODE,
+                    INDEX_MIGRATION_ENABLED,
+                    INDEX_MIGRATION_INTERVAL,
+                    INDEX_MIGRATION_MAX_BYTES_PER_SEC,
+                    INDEX_MERGE_CPU_SATURATION_PERCENT,
+                    INDEX_MERGE_CRYPTO_CPU_PERCENT
             };
 }
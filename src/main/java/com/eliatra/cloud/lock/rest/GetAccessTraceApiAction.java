@@ -0,0 +1,71 @@
+/*
+ * Copyright 2024 by Eliatra - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://eliatra.com
+ *
+ */
+
+package com.eliatra.cloud.lock.rest;
+
+import com.eliatra.cloud.lock.lucene.encryption.CeffAccessTrace;
+import org.opensearch.client.node.NodeClient;
+import org.opensearch.common.io.stream.BytesStreamOutput;
+import org.opensearch.core.rest.RestStatus;
+import org.opensearch.core.xcontent.XContentBuilder;
+import org.opensearch.rest.BaseRestHandler;
+import org.opensearch.rest.BytesRestResponse;
+import org.opensearch.rest.RestRequest;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.opensearch.rest.RestRequest.Method.GET;
+
+/**
+ * Returns the chunk access trace of the local node in the binary format of {@link CeffAccessTrace}.
+ */
+public class GetAccessTraceApiAction extends BaseRestHandler {
+
+    @Override
+    public List<Route> routes() {
+        return List.of(new Route(GET, "/_eliatra/cloud_lock/api/_access_trace"));
+    }
+
+    @Override
+    public String getName() {
+        return "Get Access Trace Action";
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) throws IOException {
+        return channel -> {
+            BytesRestResponse response = null;
+
+            try (BytesStreamOutput out = new BytesStreamOutput()) {
+                if (CeffAccessTrace.dump(out)) {
+                    response = new BytesRestResponse(RestStatus.OK, "application/octet-stream", out.bytes());
+                } else {
+                    response = error(channel.newBuilder(), RestStatus.BAD_REQUEST, "Access trace is not enabled on this node");
+                }
+            } catch (final Exception e1) {
+                response = error(channel.newBuilder(), RestStatus.INTERNAL_SERVER_ERROR, e1.toString());
+            }
+
+            channel.sendResponse(response);
+        };
+    }
+
+    private static BytesRestResponse error(XContentBuilder builder, RestStatus status, String error) throws IOException {
+        builder.startObject();
+        builder.field("error", error);
+        builder.endObject();
+        return new BytesRestResponse(status, builder);
+    }
+}
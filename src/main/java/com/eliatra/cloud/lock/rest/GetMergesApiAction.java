@@ -0,0 +1,119 @@
+/*
+ * Copyright 2024 by Eliatra - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://eliatra.com
+ *
+ */
+
+package com.eliatra.cloud.lock.rest;
+
+
+import com.eliatra.cloud.lock.index.CeffMergeService;
+import com.eliatra.cloud.lock.lucene.encryption.CeffCryptoMergePolicy;
+import org.opensearch.client.node.NodeClient;
+import org.opensearch.core.rest.RestStatus;
+import org.opensearch.core.xcontent.XContentBuilder;
+import org.opensearch.rest.BaseRestHandler;
+import org.opensearch.rest.BytesRestResponse;
+import org.opensearch.rest.RestRequest;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.opensearch.rest.RestRequest.Method.GET;
+
+/**
+ * Returns the crypto time of the merges of the encrypted shards of the local node, see {@link CeffMergeService}.
+ */
+public class GetMergesApiAction extends BaseRestHandler {
+
+    private final CeffMergeService mergeService;
+
+    public GetMergesApiAction(CeffMergeService mergeService) {
+        this.mergeService = mergeService;
+    }
+
+    @Override
+    public List<Route> routes() {
+        return List.of(new Route(GET, "/_eliatra/cloud_lock/api/_merges"));
+    }
+
+    @Override
+    public String getName() {
+        return "Get Merges Action";
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) throws IOException {
+        return channel -> {
+            XContentBuilder builder = channel.newBuilder(); //NOSONAR
+            BytesRestResponse response = null;
+
+            try {
+                builder.startObject();
+                builder.startArray("shards");
+
+                for (CeffMergeService.Stats stats : mergeService.stats()) {
+                    builder.startObject();
+                    builder.field("index", stats.getShardId().getIndexName());
+                    builder.field("shard", stats.getShardId().id());
+                    builder.field("merges", stats.getMerges());
+                    builder.field("merge_time_in_millis", TimeUnit.NANOSECONDS.toMillis(stats.getMergeNanos()));
+                    builder.field("crypto_time_in_millis", TimeUnit.NANOSECONDS.toMillis(stats.getCryptoNanos()));
+                    builder.field("throttled_time_in_millis", TimeUnit.NANOSECONDS.toMillis(stats.getThrottledNanos()));
+                    builder.field("cpu_saturated", stats.isSaturated());
+                    mergesField(builder, "running", stats.getRunningMerges());
+                    mergesField(builder, "recent", stats.getRecentMerges());
+                    builder.endObject();
+                }
+
+                builder.endArray();
+                builder.endObject();
+
+                response = new BytesRestResponse(RestStatus.OK, builder);
+            } catch (final Exception e1) {
+                builder = channel.newBuilder(); //NOSONAR
+                builder.startObject();
+                builder.field("error", e1.toString());
+                builder.endObject();
+                response = new BytesRestResponse(RestStatus.INTERNAL_SERVER_ERROR, builder);
+            } finally {
+                if (builder != null) {
+                    builder.close();
+                }
+            }
+
+            channel.sendResponse(response);
+        };
+    }
+
+    private static void mergesField(XContentBuilder builder, String name, List<CeffCryptoMergePolicy.MergeCryptoStats> merges)
+            throws IOException {
+        builder.startArray(name);
+
+        for (CeffCryptoMergePolicy.MergeCryptoStats merge : merges) {
+            builder.startObject();
+            builder.field("segment", merge.getSegmentName());
+            builder.field("source_segments", merge.getSourceSegments());
+            builder.field("source_bytes", merge.getSourceBytes());
+            builder.field("written_bytes", merge.getWrittenBytes());
+            builder.field("merge_time_in_millis", TimeUnit.NANOSECONDS.toMillis(merge.getMergeNanos()));
+            builder.field("crypto_time_in_millis", TimeUnit.NANOSECONDS.toMillis(merge.getCryptoNanos()));
+            builder.field("throttled_time_in_millis", TimeUnit.NANOSECONDS.toMillis(merge.getThrottledNanos()));
+            if (!merge.isFinished()) {
+                builder.field("throttle_mb_per_sec", merge.getMBPerSec());
+            }
+            builder.endObject();
+        }
+
+        builder.endArray();
+    }
+}
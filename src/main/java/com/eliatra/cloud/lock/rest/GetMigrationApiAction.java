@@ -0,0 +1,96 @@
+/*
+ * Copyright 2024 by Eliatra - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://eliatra.com
+ *
+ */
+
+package com.eliatra.cloud.lock.rest;
+
+import com.eliatra.cloud.lock.index.CeffMigrationService;
+import org.opensearch.client.node.NodeClient;
+import org.opensearch.core.rest.RestStatus;
+import org.opensearch.core.xcontent.XContentBuilder;
+import org.opensearch.rest.BaseRestHandler;
+import org.opensearch.rest.BytesRestResponse;
+import org.opensearch.rest.RestRequest;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.opensearch.rest.RestRequest.Method.GET;
+
+/**
+ * Returns the migration progress of the encrypted shards of the local node, see {@link CeffMigrationService}.
+ */
+public class GetMigrationApiAction extends BaseRestHandler {
+
+    private final CeffMigrationService migrationService;
+
+    public GetMigrationApiAction(CeffMigrationService migrationService) {
+        this.migrationService = migrationService;
+    }
+
+    @Override
+    public List<Route> routes() {
+        return List.of(new Route(GET, "/_eliatra/cloud_lock/api/_migration"));
+    }
+
+    @Override
+    public String getName() {
+        return "Get Migration Action";
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) throws IOException {
+        return channel -> {
+            XContentBuilder builder = channel.newBuilder(); //NOSONAR
+            BytesRestResponse response = null;
+
+            try {
+                builder.startObject();
+                builder.startArray("shards");
+
+                for (CeffMigrationService.Progress progress : migrationService.progress()) {
+                    builder.startObject();
+                    builder.field("index", progress.getShardId().getIndexName());
+                    builder.field("shard", progress.getShardId().id());
+                    builder.field("segments", progress.getSegments());
+                    builder.field("outdated_segments", progress.getOutdatedSegments());
+                    builder.field("outdated_bytes", progress.getOutdatedBytes());
+                    builder.field("migrated_segments", progress.getMigratedSegments());
+                    builder.field("migrated_bytes", progress.getMigratedBytes());
+                    builder.field("migrating", progress.isMigrating());
+                    if (progress.getError() != null) {
+                        builder.field("error", progress.getError());
+                    }
+                    builder.endObject();
+                }
+
+                builder.endArray();
+                builder.endObject();
+
+                response = new BytesRestResponse(RestStatus.OK, builder);
+            } catch (final Exception e1) {
+                builder = channel.newBuilder(); //NOSONAR
+                builder.startObject();
+                builder.field("error", e1.toString());
+                builder.endObject();
+                response = new BytesRestResponse(RestStatus.INTERNAL_SERVER_ERROR, builder);
+            } finally {
+                if (builder != null) {
+                    builder.close();
+                }
+            }
+
+            channel.sendResponse(response);
+        };
+    }
+}
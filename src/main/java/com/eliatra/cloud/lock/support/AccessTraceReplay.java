@@ -0,0 +1,113 @@
+/*
+ * Copyright 2024 by Eliatra - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://eliatra.com
+ *
+ */
+
+package com.eliatra.cloud.lock.support;
+
+import com.eliatra.cloud.lock.lucene.encryption.CeffAccessTrace;
+import org.opensearch.core.common.unit.ByteSizeValue;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Replays an access trace (see {@link CeffAccessTrace}) against LRU caches of decrypted chunks and prints the hit
+ * rates for different cache sizes and chunk lengths.
+ *
+ * Usage: AccessTraceReplay trace-file [cache sizes, e.g. 16mb,64mb,256mb] [chunk lengths, e.g. 16kb,64kb]
+ *
+ * Chunk lengths which differ from the traced ones are approximated by mapping the start of a traced chunk to the
+ * chunk it would fall into.
+ */
+public class AccessTraceReplay {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: AccessTraceReplay trace-file [cache sizes] [chunk lengths]");
+            System.exit(-1);
+        }
+
+        final List<CeffAccessTrace.Entry> entries;
+
+        try (InputStream in = Files.newInputStream(Paths.get(args[0]))) {
+            entries = CeffAccessTrace.read(in);
+        }
+
+        final long[] cacheSizes = parseSizes(args.length > 1 ? args[1] : "16mb,64mb,256mb,1gb");
+        final long[] chunkLengths = parseSizes(args.length > 2 ? args[2] : "16kb,64kb,256kb");
+
+        final Map<String, Integer> perExtension = new TreeMap<>();
+        for (CeffAccessTrace.Entry entry : entries) {
+            perExtension.merge(entry.getExtension(), 1, Integer::sum);
+        }
+
+        System.out.println(entries.size() + " chunk loads");
+        perExtension.forEach((extension, count) -> System.out.println("  " + extension + ": " + count));
+        System.out.println();
+
+        final StringBuilder header = new StringBuilder(String.format("%-14s", "chunk/cache"));
+        for (long cacheSize : cacheSizes) {
+            header.append(String.format("%12s", new ByteSizeValue(cacheSize)));
+        }
+        System.out.println(header);
+
+        for (long chunkLength : chunkLengths) {
+            final StringBuilder row = new StringBuilder(String.format("%-14s", new ByteSizeValue(chunkLength)));
+            for (long cacheSize : cacheSizes) {
+                row.append(String.format("%11.1f%%", 100d * hitRate(entries, chunkLength, cacheSize)));
+            }
+            System.out.println(row);
+        }
+    }
+
+    static double hitRate(List<CeffAccessTrace.Entry> entries, long chunkLength, long cacheSize) {
+        final long capacity = Math.max(1, cacheSize / chunkLength);
+        final LinkedHashMap<Long, Boolean> cache = new LinkedHashMap<Long, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+                return size() > capacity;
+            }
+        };
+
+        long hits = 0;
+
+        for (CeffAccessTrace.Entry entry : entries) {
+            final long chunk = entry.getChunk() * entry.getChunkLength() / chunkLength;
+            final Long key = ((long) entry.getFile() << 32) ^ chunk;
+
+            if (cache.get(key) != null) {
+                hits++;
+            } else {
+                cache.put(key, Boolean.TRUE);
+            }
+        }
+
+        return entries.isEmpty() ? 0d : (double) hits / entries.size();
+    }
+
+    private static long[] parseSizes(String sizes) {
+        final String[] parts = sizes.split(",");
+        final long[] result = new long[parts.length];
+
+        for (int k = 0; k < parts.length; k++) {
+            result[k] = ByteSizeValue.parseBytesSizeValue(parts[k].trim(), "size").getBytes();
+        }
+
+        return result;
+    }
+}
@@ -22,6 +22,7 @@ import org.apache.logging.log4j.Logger;
 import org.opensearch.common.settings.Setting.Property;
 import org.opensearch.common.settings.Settings;
 import org.opensearch.common.unit.TimeValue;
+import org.opensearch.core.common.unit.ByteSizeValue;
 import org.opensearch.env.Environment;
 
 import java.nio.file.Path;
@@ -72,11 +73,21 @@ public class StaticSettings {
         protected final V defaultValue;
         protected final boolean filtered;
         protected final boolean indexScoped;
+        /** Smallest allowed value, null if unbounded */
+        protected final V minValue;
+        /** Largest allowed value, null if unbounded */
+        protected final V maxValue;
         protected final org.opensearch.common.settings.Setting<?> platformInstance;
 
         Attribute(String name, V defaultValue, boolean filtered, boolean indexScoped) {
+            this(name, defaultValue, null, null, filtered, indexScoped);
+        }
+
+        Attribute(String name, V defaultValue, V minValue, V maxValue, boolean filtered, boolean indexScoped) {
             this.name = name;
             this.defaultValue = defaultValue;
+            this.minValue = minValue;
+            this.maxValue = maxValue;
             this.filtered = filtered;
             this.indexScoped = indexScoped;
             this.platformInstance = toPlatformInstance();
@@ -157,6 +168,13 @@ public class StaticSettings {
                 return new TimeValueBuilder(castedBuilder);
             }
 
+            public ByteSizeValueBuilder withDefault(ByteSizeValue defaultValue) {
+                @SuppressWarnings({ "unchecked", "rawtypes" })
+                Builder<ByteSizeValue> castedBuilder = (Builder<ByteSizeValue>) (Builder) this;
+                castedBuilder.defaultValue = defaultValue;
+                return new ByteSizeValueBuilder(castedBuilder);
+            }
+
             public PatternBuilder withDefault(Pattern defaultValue) {
                 @SuppressWarnings({ "unchecked", "rawtypes" })
                 Builder<Pattern> castedBuilder = (Builder<Pattern>) (Builder) this;
@@ -204,6 +222,13 @@ public class StaticSettings {
             public Attribute<Integer> asInteger() {
                 return new IntegerAttribute(parent.name, parent.defaultValue, parent.filtered, parent.indexScoped);
             }
+
+            /**
+             * Values outside of the bounds are rejected when the setting is set
+             */
+            public Attribute<Integer> asInteger(int minValue, int maxValue) {
+                return new IntegerAttribute(parent.name, parent.defaultValue, minValue, maxValue, parent.filtered, parent.indexScoped);
+            }
         }
 
         public static class TimeValueBuilder {
@@ -218,6 +243,21 @@ public class StaticSettings {
             }
         }
 
+        public static class ByteSizeValueBuilder {
+            private final Builder<ByteSizeValue> parent;
+
+            ByteSizeValueBuilder(Builder<ByteSizeValue> parent) {
+                this.parent = parent;
+            }
+
+            /**
+             * Values outside of the bounds are rejected when the setting is set
+             */
+            public Attribute<ByteSizeValue> asByteSizeValue(ByteSizeValue minValue, ByteSizeValue maxValue) {
+                return new ByteSizeValueAttribute(parent.name, parent.defaultValue, minValue, maxValue, parent.filtered, parent.indexScoped);
+            }
+        }
+
         public static class PatternBuilder {
             private final Builder<Pattern> parent;
 
@@ -252,9 +292,15 @@ public class StaticSettings {
             super(name, defaultValue, filtered, indexScoped);
         }
 
+        IntegerAttribute(String name, Integer defaultValue, int minValue, int maxValue, boolean filtered, boolean indexScoped) {
+            super(name, defaultValue, minValue, maxValue, filtered, indexScoped);
+        }
+
         @Override
         protected org.opensearch.common.settings.Setting<Integer> toPlatformInstance() {
-            return org.opensearch.common.settings.Setting.intSetting(name, defaultValue != null ? defaultValue : 0, toPlatformProperties());
+            return org.opensearch.common.settings.Setting.intSetting(name, defaultValue != null ? defaultValue : 0,
+                    minValue != null ? minValue : Integer.MIN_VALUE, maxValue != null ? maxValue : Integer.MAX_VALUE,
+                    toPlatformProperties());
         }
     }
 
@@ -280,6 +326,18 @@ public class StaticSettings {
         }
     }
 
+    static class ByteSizeValueAttribute extends Attribute<ByteSizeValue> {
+        ByteSizeValueAttribute(String name, ByteSizeValue defaultValue, ByteSizeValue minValue, ByteSizeValue maxValue, boolean filtered,
+                boolean indexScoped) {
+            super(name, defaultValue, minValue, maxValue, filtered, indexScoped);
+        }
+
+        @Override
+        protected org.opensearch.common.settings.Setting<ByteSizeValue> toPlatformInstance() {
+            return org.opensearch.common.settings.Setting.byteSizeSetting(name, defaultValue, minValue, maxValue, toPlatformProperties());
+        }
+    }
+
     static class PatternAttribute extends Attribute<Pattern> {
         private static final List<String> EMPTY_DEFAULT = ImmutableList.of("___empty");
 
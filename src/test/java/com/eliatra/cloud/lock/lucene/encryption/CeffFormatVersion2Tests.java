@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2021 by eliatra Ltd. - All Rights Reserved
+ * Unauthorized copying, usage or modification of this file in its source or binary form,
+ * via any medium is strictly prohibited.
+ * Proprietary and confidential.
+ *
+ * https://eliatra.com
+ */
+
+package com.eliatra.cloud.lock.lucene.encryption;
+
+import com.carrotsearch.randomizedtesting.annotations.ThreadLeakFilters;
+import com.eliatra.cloud.lock.plugin.CeffDirectoryTests;
+import java.io.IOException;
+import java.util.Arrays;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.tests.util.LuceneTestCase;
+import org.apache.lucene.tests.util.QuickPatchThreadsFilter;
+import org.apache.lucene.tests.util.TestUtil;
+import org.junit.Assert;
+
+/** Files of format version 2 are no longer written but must stay readable */
+@ThreadLeakFilters(
+    defaultFilters = true,
+    filters = {QuickPatchThreadsFilter.class, CeffDirectoryTests.CeffThreadsFilter.class})
+public class CeffFormatVersion2Tests extends LuceneTestCase {
+
+  public void testReadFormatVersion2() throws Exception {
+    final CeffMode mode = CeffMode.AES_GCM_MODE;
+    final int chunkLength = CeffUtils.CHUNK_SIZE_MIN;
+    final byte[] key0 = new byte[32];
+    random().nextBytes(key0);
+    final byte[] salt = new byte[CeffKeyDerivation.SALT_LENGTH];
+    random().nextBytes(salt);
+    final byte[] data = new byte[3 * chunkLength + TestUtil.nextInt(random(), 1, chunkLength)];
+    random().nextBytes(data);
+
+    try (Directory dir = new ByteBuffersDirectory()) {
+      try (IndexOutput out = dir.createOutput("v2", IOContext.DEFAULT);
+          CeffIndexOutput ceffOut =
+              new CeffIndexOutput(
+                  out, chunkLength, key0, mode, random().nextBoolean(), salt, false, 0, false,
+                  CeffUtils.FORMAT_VERSION_2)) {
+        ceffOut.writeBytes(data, 0, data.length);
+      }
+
+      final byte[] raw = readAll(dir, "v2");
+      final int flags = CeffUtils.FLAG_DERIVED_KEY | CeffUtils.FLAG_VERSIONED;
+      final int headerLength = CeffUtils.headerLength(mode, flags);
+      assertEquals(flags, raw[5]);
+      assertEquals(CeffUtils.FORMAT_VERSION_2, raw[6]);
+      assertEquals(chunkLength, (raw[7] & 0xFF) | (raw[8] & 0xFF) << 8 | (raw[9] & 0xFF) << 16 | (raw[10] & 0xFF) << 24);
+      assertEquals(
+          raw.length - data.length,
+          CeffUtils.calculateEncryptionOverheadV2(raw.length, chunkLength, mode, headerLength));
+
+      // the table repeats the aad in front of every chunk
+      final int chunks = 4;
+      final int physicalChunkLength = chunkLength + CeffUtils.cryptoLength(mode);
+      final int tableStart = raw.length - CeffUtils.footerLength(mode) - chunks * CeffUtils.AAD_LENGTH;
+      for (int chunk = 0; chunk < chunks; chunk++) {
+        final int aadStart = headerLength + chunk * physicalChunkLength;
+        final int entryStart = tableStart + chunk * CeffUtils.AAD_LENGTH;
+        Assert.assertArrayEquals(
+            Arrays.copyOfRange(raw, aadStart, aadStart + CeffUtils.AAD_LENGTH),
+            Arrays.copyOfRange(raw, entryStart, entryStart + CeffUtils.AAD_LENGTH));
+      }
+
+      try (IndexInput in = new CeffIndexInput(dir.openInput("v2", IOContext.DEFAULT), key0)) {
+        assertEquals(data.length, in.length());
+        final byte[] read = new byte[data.length];
+        in.readBytes(read, 0, read.length);
+        Assert.assertArrayEquals(data, read);
+        final IndexInput slice = in.slice("slice", chunkLength + 1, chunkLength);
+        final byte[] sliced = new byte[chunkLength];
+        slice.readBytes(sliced, 0, sliced.length);
+        Assert.assertArrayEquals(Arrays.copyOfRange(data, chunkLength + 1, 2 * chunkLength + 1), sliced);
+      }
+
+      // the signature in the footer covers the table, a tampered table fails when the file is opened
+      final byte[] tamperedTable = raw.clone();
+      tamperedTable[tableStart + TestUtil.nextInt(random(), 0, chunks * CeffUtils.AAD_LENGTH - 1)] ^= 1;
+      writeAll(dir, "tampered_table", tamperedTable);
+      expectThrows(
+          IOException.class,
+          () -> new CeffIndexInput(dir.openInput("tampered_table", IOContext.DEFAULT), key0).close());
+
+      // swapped chunks do not match the table entries at their position, the first chunk is
+      // already loaded when the file is opened
+      final byte[] swapped = raw.clone();
+      System.arraycopy(raw, headerLength, swapped, headerLength + physicalChunkLength, physicalChunkLength);
+      System.arraycopy(raw, headerLength + physicalChunkLength, swapped, headerLength, physicalChunkLength);
+      writeAll(dir, "swapped", swapped);
+      expectThrows(
+          IOException.class,
+          () -> {
+            try (IndexInput in = new CeffIndexInput(dir.openInput("swapped", IOContext.DEFAULT), key0)) {
+              in.readBytes(new byte[2 * chunkLength], 0, 2 * chunkLength);
+            }
+          });
+    }
+  }
+
+  private static byte[] readAll(Directory dir, String name) throws IOException {
+    try (IndexInput in = dir.openInput(name, IOContext.DEFAULT)) {
+      final byte[] bytes = new byte[Math.toIntExact(in.length())];
+      in.readBytes(bytes, 0, bytes.length);
+      return bytes;
+    }
+  }
+
+  private static void writeAll(Directory dir, String name, byte[] bytes) throws IOException {
+    try (IndexOutput out = dir.createOutput(name, IOContext.DEFAULT)) {
+      out.writeBytes(bytes, 0, bytes.length);
+    }
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2021 by eliatra Ltd. - All Rights Reserved
+ * Unauthorized copying, usage or modification of this file in its source or binary form,
+ * via any medium is strictly prohibited.
+ * Proprietary and confidential.
+ *
+ * https://eliatra.com
+ */
+
+package com.eliatra.cloud.lock.lucene.encryption;
+
+import com.carrotsearch.randomizedtesting.annotations.ThreadLeakFilters;
+import com.eliatra.cloud.lock.plugin.CeffDirectoryTests;
+import java.io.IOException;
+import java.util.Arrays;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.tests.util.LuceneTestCase;
+import org.apache.lucene.tests.util.QuickPatchThreadsFilter;
+import org.apache.lucene.tests.util.TestUtil;
+import org.junit.Assert;
+
+@ThreadLeakFilters(
+    defaultFilters = true,
+    filters = {QuickPatchThreadsFilter.class, CeffDirectoryTests.CeffThreadsFilter.class})
+public class CeffMerkleTreeTests extends LuceneTestCase {
+
+  /**
+   * Two files with the same key and salt have the same chunk aads, a chunk of one file is still
+   * authenticated at the same position of the other. The tree commits to the tags of the chunks.
+   */
+  public void testChunkOfOtherFileWithSameAad() throws Exception {
+    final CeffMode mode = CeffMode.AES_GCM_MODE;
+    final int chunkLength = CeffUtils.CHUNK_SIZE_MIN;
+    final byte[] key0 = new byte[32];
+    random().nextBytes(key0);
+    final byte[] salt = new byte[CeffKeyDerivation.SALT_LENGTH];
+    random().nextBytes(salt);
+    final int length = 3 * chunkLength + TestUtil.nextInt(random(), 1, chunkLength);
+
+    try (Directory dir = new ByteBuffersDirectory()) {
+      final byte[] data = write(dir, "a", mode, chunkLength, key0, salt, length);
+      write(dir, "b", mode, chunkLength, key0, salt, length);
+
+      final byte[] a = readAll(dir, "a");
+      final byte[] b = readAll(dir, "b");
+      final int headerLength =
+          CeffUtils.headerLength(mode, CeffUtils.FLAG_DERIVED_KEY | CeffUtils.FLAG_VERSIONED);
+      final int physicalChunkLength = chunkLength + CeffUtils.cryptoLength(mode);
+      final int chunk = TestUtil.nextInt(random(), 0, 2);
+      final int chunkStart = headerLength + chunk * physicalChunkLength;
+      Assert.assertArrayEquals(
+          Arrays.copyOfRange(a, chunkStart, chunkStart + CeffUtils.AAD_LENGTH),
+          Arrays.copyOfRange(b, chunkStart, chunkStart + CeffUtils.AAD_LENGTH));
+
+      final byte[] spliced = a.clone();
+      System.arraycopy(b, chunkStart, spliced, chunkStart, physicalChunkLength);
+      writeAll(dir, "spliced", spliced);
+
+      try (IndexInput in = new CeffIndexInput(dir.openInput("a", IOContext.DEFAULT), key0)) {
+        final byte[] read = new byte[length];
+        in.readBytes(read, 0, read.length);
+        Assert.assertArrayEquals(data, read);
+      }
+      expectThrows(
+          IOException.class,
+          () -> {
+            try (IndexInput in =
+                new CeffIndexInput(dir.openInput("spliced", IOContext.DEFAULT), key0)) {
+              in.readBytes(new byte[length], 0, length);
+            }
+          });
+    }
+  }
+
+  private static byte[] write(
+      Directory dir, String name, CeffMode mode, int chunkLength, byte[] key0, byte[] salt, int length)
+      throws Exception {
+    final byte[] data = new byte[length];
+    random().nextBytes(data);
+    try (IndexOutput out = dir.createOutput(name, IOContext.DEFAULT);
+        CeffIndexOutput ceffOut =
+            new CeffIndexOutput(
+                out, chunkLength, key0, mode, random().nextBoolean(), salt, false, 0, false)) {
+      ceffOut.writeBytes(data, 0, data.length);
+    }
+    return data;
+  }
+
+  private static byte[] readAll(Directory dir, String name) throws IOException {
+    try (IndexInput in = dir.openInput(name, IOContext.DEFAULT)) {
+      final byte[] bytes = new byte[Math.toIntExact(in.length())];
+      in.readBytes(bytes, 0, bytes.length);
+      return bytes;
+    }
+  }
+
+  private static void writeAll(Directory dir, String name, byte[] bytes) throws IOException {
+    try (IndexOutput out = dir.createOutput(name, IOContext.DEFAULT)) {
+      out.writeBytes(bytes, 0, bytes.length);
+    }
+  }
+}
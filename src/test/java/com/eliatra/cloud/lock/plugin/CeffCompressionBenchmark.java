@@ -0,0 +1,181 @@
+/* 
+ * Copyright (C) 2021 by eliatra Ltd. - All Rights Reserved
+ * Unauthorized copying, usage or modification of this file in its source or binary form, 
+ * via any medium is strictly prohibited.
+ * Proprietary and confidential.
+ * 
+ * https://eliatra.com
+ */
+
+package com.eliatra.cloud.lock.plugin;
+
+import com.eliatra.cloud.lock.crypto.PlainSymmetricAeadAesKey;
+import com.eliatra.cloud.lock.crypto.SymmetricKek;
+import com.eliatra.cloud.lock.lucene.encryption.CeffDirectory;
+import com.eliatra.cloud.lock.lucene.encryption.CeffFilePolicy;
+import com.eliatra.cloud.lock.lucene.encryption.CeffMode;
+import com.google.crypto.tink.KeyTemplates;
+import com.google.crypto.tink.KeysetHandle;
+import com.google.crypto.tink.config.TinkConfig;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.IntPoint;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.apache.lucene.store.FSLockFactory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Benchmark for compressing chunks before they are encrypted, not run as part of the tests.
+ *
+ * <p>Indexes the same documents (text, stored fields, doc values, points) into a {@link
+ * CeffDirectory} without and with compression of all files and reports per file type the bytes
+ * on disk (which is also what the page cache holds), the time to read each file sequentially and
+ * the time of random 64 byte reads.
+ *
+ * <p>Usage: CeffCompressionBenchmark [docs] [random reads per file]
+ */
+public class CeffCompressionBenchmark {
+
+  private static final CeffMode MODE = CeffMode.CHACHA20_POLY1305_MODE;
+
+  public static void main(String[] args) throws Exception {
+    final int docs = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+    final int randomReads = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+
+    TinkConfig.register();
+    final SymmetricKek kek = new SymmetricKek(new PlainSymmetricAeadAesKey(KeysetHandle.generateNew(KeyTemplates.get("AES256_GCM"))), new byte[0]);
+
+    // the shard key is stored next to the index directory
+    final Path root = Files.createTempDirectory("ceff-compression-bench");
+    final Path plain = Files.createDirectories(root.resolve("plain").resolve("index"));
+    final Path compressed = Files.createDirectories(root.resolve("compressed").resolve("index"));
+
+    try {
+      index(kek, plain, docs, Collections.emptySet());
+      index(kek, compressed, docs, Collections.singleton(CeffFilePolicy.ALL_EXTENSIONS));
+
+      System.out.println(docs + " docs, " + randomReads + " random reads per file");
+
+      for (int round = 0; round < 3; round++) {
+        final TreeMap<String, long[]> plainStats = read(kek, plain, randomReads);
+        final TreeMap<String, long[]> compressedStats = read(kek, compressed, randomReads);
+
+        System.out.println("round " + round);
+        System.out.printf("  %-5s %12s %12s %6s %10s %10s %10s %10s%n",
+            "ext", "bytes", "compressed", "ratio", "seq ms", "seq ms", "rand ms", "rand ms");
+        for (final String extension : plainStats.keySet()) {
+          final long[] p = plainStats.get(extension);
+          final long[] c = compressedStats.getOrDefault(extension, new long[3]);
+          System.out.printf("  %-5s %12d %12d %6.2f %10.1f %10.1f %10.1f %10.1f%n",
+              extension, p[0], c[0], c[0] / (double) p[0],
+              p[1] / 1_000_000d, c[1] / 1_000_000d, p[2] / 1_000_000d, c[2] / 1_000_000d);
+        }
+      }
+    } finally {
+      IOUtils.rm(root);
+    }
+  }
+
+  private static CeffDirectory directory(SymmetricKek kek, Path path, Set<String> compressedExtensions) throws IOException {
+    return new CeffDirectory(
+        new NIOFSDirectory(path),
+        FSLockFactory.getDefault(),
+        () -> kek,
+        CeffFilePolicy.withDefaults(
+            CeffDirectory.DEFAULT_CHUNK_LENGTH,
+            Collections.emptyMap(),
+            Collections.emptySet(),
+            Collections.emptySet(),
+            compressedExtensions),
+        MODE,
+        true);
+  }
+
+  private static void index(SymmetricKek kek, Path path, int docs, Set<String> compressedExtensions) throws IOException {
+    final Random random = new Random(42);
+    // one file per type instead of a compound file
+    final TieredMergePolicy mergePolicy = new TieredMergePolicy();
+    mergePolicy.setNoCFSRatio(0.0);
+    final IndexWriterConfig config =
+        new IndexWriterConfig(new StandardAnalyzer()).setUseCompoundFile(false).setMergePolicy(mergePolicy);
+
+    try (CeffDirectory dir = directory(kek, path, compressedExtensions);
+        IndexWriter writer = new IndexWriter(dir, config)) {
+      final StringBuilder text = new StringBuilder();
+      for (int i = 0; i < docs; i++) {
+        text.setLength(0);
+        for (int t = 0; t < 16; t++) {
+          text.append('t').append(random.nextInt(10_000)).append(' ');
+        }
+        final String category = "category" + random.nextInt(50);
+        final Document doc = new Document();
+        doc.add(new TextField("body", text.toString(), Field.Store.YES));
+        doc.add(new StringField("category", category, Field.Store.NO));
+        doc.add(new SortedDocValuesField("category", new BytesRef(category)));
+        doc.add(new NumericDocValuesField("timestamp", 1_700_000_000_000L + i * 1000L + random.nextInt(1000)));
+        doc.add(new IntPoint("price", random.nextInt(100_000)));
+        writer.addDocument(doc);
+      }
+      writer.forceMerge(1);
+    }
+  }
+
+  /** @return bytes on disk, sequential read nanos and random read nanos by extension */
+  private static TreeMap<String, long[]> read(SymmetricKek kek, Path path, int randomReads) throws IOException {
+    final TreeMap<String, long[]> stats = new TreeMap<>();
+    final Random random = new Random(42);
+    final byte[] scratch = new byte[64 * 1024];
+
+    try (CeffDirectory dir = directory(kek, path, Collections.emptySet())) {
+      for (final String fileName : SegmentInfos.readLatestCommit(dir).files(false)) {
+        final String extension = IndexFileNames.getExtension(fileName);
+        if (extension == null || "si".equals(extension)) {
+          continue;
+        }
+        final long[] stat = stats.computeIfAbsent(extension, e -> new long[3]);
+        stat[0] += Files.size(path.resolve(fileName));
+
+        try (IndexInput in = dir.openInput(fileName, IOContext.DEFAULT)) {
+          long start = System.nanoTime();
+          long remaining = in.length();
+          while (remaining > 0) {
+            final int read = (int) Math.min(remaining, scratch.length);
+            in.readBytes(scratch, 0, read);
+            remaining -= read;
+          }
+          stat[1] += System.nanoTime() - start;
+
+          start = System.nanoTime();
+          for (int k = 0; k < randomReads && in.length() > 64; k++) {
+            in.seek((long) (random.nextDouble() * (in.length() - 64)));
+            in.readBytes(scratch, 0, 64);
+          }
+          stat[2] += System.nanoTime() - start;
+        }
+      }
+    }
+
+    return stats;
+  }
+}
@@ -10,15 +10,26 @@
 package com.eliatra.cloud.lock.plugin;
 
 import com.carrotsearch.randomizedtesting.RandomizedTest;
+import com.carrotsearch.randomizedtesting.ThreadFilter;
+import com.carrotsearch.randomizedtesting.annotations.ThreadLeakFilters;
 import com.eliatra.cloud.lock.crypto.PlainSymmetricAeadAesKey;
 import com.eliatra.cloud.lock.crypto.SymmetricKek;
+import com.eliatra.cloud.lock.lucene.encryption.CeffAccessTrace;
+import com.eliatra.cloud.lock.lucene.encryption.CeffBufferAccounting;
+import com.eliatra.cloud.lock.lucene.encryption.CeffCryptoMergePolicy;
+import com.eliatra.cloud.lock.lucene.encryption.CeffCryptoPool;
 import com.eliatra.cloud.lock.lucene.encryption.CeffDirectory;
+import com.eliatra.cloud.lock.lucene.encryption.CeffFilePolicy;
+import com.eliatra.cloud.lock.lucene.encryption.CeffIndexInput;
+import com.eliatra.cloud.lock.lucene.encryption.CeffIndexOutput;
+import com.eliatra.cloud.lock.lucene.encryption.CeffMigrationMergePolicy;
 import com.eliatra.cloud.lock.lucene.encryption.CeffMode;
 import com.eliatra.cloud.lock.lucene.encryption.CeffUtils;
 import com.google.crypto.tink.KeyTemplates;
 import com.google.crypto.tink.KeysetHandle;
 import com.google.crypto.tink.config.TinkConfig;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.codecs.CodecUtil;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.IntPoint;
@@ -33,23 +44,43 @@ import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.IndexWriterConfig.OpenMode;
 import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.SegmentCommitInfo;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.index.SerialMergeScheduler;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.apache.lucene.misc.store.HardlinkCopyDirectoryWrapper;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.store.ByteBuffersDataOutput;
 import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.FSLockFactory;
+import org.apache.lucene.store.FilterDirectory;
+import org.apache.lucene.store.FlushInfo;
+import org.apache.lucene.store.IOContext;
 import org.apache.lucene.store.IndexInput;
 import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.MergeInfo;
 import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.store.RateLimiter;
 import org.apache.lucene.tests.analysis.MockAnalyzer;
+import org.apache.lucene.tests.mockfile.ExtrasFS;
 import org.apache.lucene.tests.store.BaseDirectoryTestCase;
 import org.apache.lucene.tests.util.English;
+import org.apache.lucene.tests.util.QuickPatchThreadsFilter;
 import org.apache.lucene.tests.util.TestUtil;
+import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
@@ -58,9 +89,36 @@ import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.security.GeneralSecurityException;
-
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+@ThreadLeakFilters(
+    defaultFilters = true,
+    filters = {QuickPatchThreadsFilter.class, CeffDirectoryTests.CeffThreadsFilter.class})
 public class CeffDirectoryTests extends BaseDirectoryTestCase {
 
+  /** The shared {@link CeffCryptoPool} and the buffer cleaner live as long as the JVM */
+  public static class CeffThreadsFilter implements ThreadFilter {
+    @Override
+    public boolean reject(Thread t) {
+      return (t instanceof ForkJoinWorkerThread && !(t.getName().startsWith("ForkJoinPool.commonPool")))
+          || t.getName().equals("ceff-buffer-cleaner");
+    }
+  }
+
   protected static final SymmetricKek DEFAULT_KEY;
 
   static {
@@ -145,8 +203,17 @@ public class CeffDirectoryTests extends BaseDirectoryTestCase {
       out.writeBytes(bytes, 0, byteUpto);
       assertEquals(size, out.getFilePointer());
       out.close();
-      final long encryptedFileLength = dir.fileLength("test");
-      final long calculatedFileLength = CeffUtils.calculateEncryptionOverhead(encryptedFileLength, CeffDirectory.DEFAULT_CHUNK_LENGTH, CeffMode.CHACHA20_POLY1305_MODE) + size;
+      // the directory reports the plain text length
+      assertEquals(size, dir.fileLength("test"));
+      final long encryptedFileLength = ((CeffDirectory) dir).getDelegate().fileLength("test");
+      final long chunks = (size + CeffDirectory.DEFAULT_CHUNK_LENGTH - 1) / CeffDirectory.DEFAULT_CHUNK_LENGTH;
+      final long calculatedFileLength = size <= CeffFilePolicy.DEFAULT_COMPACT_LENGTH
+          ? CeffUtils.headerLength(CeffMode.CHACHA20_POLY1305_MODE, CeffUtils.FLAG_DERIVED_KEY) + size + CeffMode.CHACHA20_POLY1305_MODE.getTagLength()
+          : CeffUtils.headerLength(CeffMode.CHACHA20_POLY1305_MODE, CeffUtils.FLAG_DERIVED_KEY | CeffUtils.FLAG_VERSIONED) + size
+              + chunks * CeffUtils.cryptoLength(CeffMode.CHACHA20_POLY1305_MODE)
+              // the merkle tree has 2 * chunks - bitCount(chunks) nodes
+              + (2 * chunks - Long.bitCount(chunks)) * CeffUtils.SIGNATURE_LENGTH
+              + CeffUtils.footerLength(CeffMode.CHACHA20_POLY1305_MODE);
       assertEquals("Difference: "+Math.abs(encryptedFileLength-calculatedFileLength)+" bytes",
              calculatedFileLength,
           encryptedFileLength);
@@ -195,6 +262,1048 @@ public class CeffDirectoryTests extends BaseDirectoryTestCase {
     }
   }
 
+  public void testParallelBulkRead() throws Exception {
+    try (Directory dir = this.getDirectory(createTempDir("testParallelBulkRead"))) {
+      final int chunkLength = CeffDirectory.DEFAULT_CHUNK_LENGTH;
+      final byte[] data = new byte[chunkLength * TestUtil.nextInt(random(), 10, 20) + TestUtil.nextInt(random(), 1, chunkLength)];
+      random().nextBytes(data);
+
+      try (IndexOutput out = dir.createOutput("bulk", newIOContext(random()))) {
+        out.writeBytes(data, 0, data.length);
+      }
+
+      try (IndexInput in = dir.openInput("bulk", newIOContext(random()))) {
+        // start inside the first chunk so that the bulk read drains the buffer first
+        final int start = TestUtil.nextInt(random(), 0, chunkLength - 1);
+        in.seek(start);
+        final byte[] read = new byte[data.length - start];
+        in.readBytes(read, 0, read.length);
+        assertEquals(data.length, in.getFilePointer());
+        Assert.assertArrayEquals(ArrayUtil.copyOfSubArray(data, start, data.length), read);
+
+        // seek back into a chunk which was decrypted in parallel
+        final int pos = chunkLength * 5 + TestUtil.nextInt(random(), 0, chunkLength - 1);
+        in.seek(pos);
+        assertEquals(data[pos], in.readByte());
+
+        final int sliceOffset = TestUtil.nextInt(random(), 1, chunkLength);
+        final IndexInput slice = in.slice("bulk slice", sliceOffset, data.length - sliceOffset);
+        final byte[] sliceRead = new byte[data.length - sliceOffset - 1];
+        slice.readBytes(sliceRead, 0, sliceRead.length);
+        Assert.assertArrayEquals(ArrayUtil.copyOfSubArray(data, sliceOffset, data.length - 1), sliceRead);
+        assertEquals(data[data.length - 1], slice.readByte());
+      }
+    }
+  }
+
+  public void testReadOnceAndVerifyIntegrity() throws Exception {
+    try (CeffDirectory dir = (CeffDirectory) this.getDirectory(createTempDir("testReadOnce"))) {
+      final int chunkLength = CeffDirectory.DEFAULT_CHUNK_LENGTH;
+      final byte[] data = new byte[chunkLength * TestUtil.nextInt(random(), 6, 12) + TestUtil.nextInt(random(), 1, chunkLength)];
+      random().nextBytes(data);
+
+      try (IndexOutput out = dir.createOutput("readonce", newIOContext(random()))) {
+        CodecUtil.writeHeader(out, "readonce", 0);
+        out.writeBytes(data, 0, data.length);
+        CodecUtil.writeFooter(out);
+      }
+
+      final long expectedChecksum;
+      try (IndexInput in = dir.openInput("readonce", newIOContext(random()))) {
+        expectedChecksum = CodecUtil.checksumEntireFile(in);
+      }
+
+      assertEquals(expectedChecksum, dir.verifyIntegrity("readonce"));
+
+      try (IndexInput in = dir.openInput("readonce", IOContext.READONCE)) {
+        CodecUtil.checkHeader(in, "readonce", 0, 0);
+        // mix single byte and small bulk reads so that every chunk is served from read-ahead
+        final byte[] read = new byte[data.length];
+        int pos = 0;
+        while (pos < read.length) {
+          if (random().nextBoolean()) {
+            read[pos++] = in.readByte();
+          } else {
+            final int len = Math.min(read.length - pos, TestUtil.nextInt(random(), 1, chunkLength / 3));
+            in.readBytes(read, pos, len);
+            pos += len;
+          }
+        }
+        Assert.assertArrayEquals(data, read);
+        assertEquals(expectedChecksum, CodecUtil.retrieveChecksum(in));
+      }
+    }
+  }
+
+  @Test
+  public void testCopyFromPassthrough() throws Exception {
+    // the shard key file lives in the parent, give the target its own
+    final Path targetPath = createTempDir("testCopyFromTarget").resolve("index");
+    Files.createDirectories(targetPath);
+
+    try (CeffDirectory source = (CeffDirectory) this.getDirectory(createTempDir("testCopyFromSource"));
+        CeffDirectory target = (CeffDirectory) this.getDirectoryOtherKey(targetPath)) {
+      final int chunkLength = CeffDirectory.DEFAULT_CHUNK_LENGTH;
+      final byte[] data = new byte[chunkLength * TestUtil.nextInt(random(), 1, 5) + TestUtil.nextInt(random(), 0, chunkLength)];
+      random().nextBytes(data);
+
+      try (IndexOutput out = source.createOutput("copy", newIOContext(random()))) {
+        out.writeBytes(data, 0, data.length);
+      }
+
+      target.copyFrom(new FilterDirectory(source) {}, "copy", "copied", newIOContext(random()));
+
+      try (IndexInput in = target.openInput("copied", newIOContext(random()))) {
+        final byte[] read = new byte[data.length];
+        in.readBytes(read, 0, read.length);
+        Assert.assertArrayEquals(data, read);
+      }
+
+      // the derived file key is wrapped in the target header, which keeps the flags and the
+      // version. The chunks, the merkle tree and the footer are copied as they are
+      final CeffMode mode = source.getMode();
+      final int sourceHeaderLength = CeffUtils.headerLength(mode, CeffUtils.FLAG_DERIVED_KEY | CeffUtils.FLAG_VERSIONED);
+      final int targetHeaderLength = CeffUtils.headerLength(mode, CeffUtils.FLAG_WRAPPED_KEY | CeffUtils.FLAG_VERSIONED);
+      final byte[] sourceBytes = Files.readAllBytes(source.getDirectory().resolve("copy"));
+      final byte[] targetBytes = Files.readAllBytes(target.getDirectory().resolve("copied"));
+      assertEquals(CeffUtils.FLAG_WRAPPED_KEY | CeffUtils.FLAG_VERSIONED, targetBytes[5]);
+      assertEquals(CeffUtils.FORMAT_VERSION_3, targetBytes[6]);
+      assertEquals(sourceBytes.length - sourceHeaderLength, targetBytes.length - targetHeaderLength);
+      Assert.assertArrayEquals(
+          Arrays.copyOfRange(sourceBytes, sourceHeaderLength, sourceBytes.length),
+          Arrays.copyOfRange(targetBytes, targetHeaderLength, targetBytes.length));
+
+      // unencrypted files are copied as they are
+      try (IndexOutput out = source.createOutput("_1.si", newIOContext(random()))) {
+        out.writeBytes(data, 0, data.length);
+      }
+      target.copyFrom(source, "_1.si", "_1.si", newIOContext(random()));
+      Assert.assertArrayEquals(data, Files.readAllBytes(target.getDirectory().resolve("_1.si")));
+    }
+  }
+
+  @Test
+  public void testCopyFromCompressed() throws Exception {
+    final Path targetPath = createTempDir("testCopyFromCompressedTarget").resolve("index");
+    Files.createDirectories(targetPath);
+    final CeffFilePolicy policy =
+        new CeffFilePolicy(
+            CeffUtils.CHUNK_SIZE_MIN,
+            Collections.emptyMap(),
+            CeffFilePolicy.DEFAULT_COMPACT_LENGTH,
+            Collections.emptySet(),
+            Collections.emptySet(),
+            Collections.singleton("dvd"));
+
+    try (CeffDirectory source = newCeffDirectory(createTempDir("testCopyFromCompressedSource"), policy);
+        CeffDirectory target = new CeffDirectory(new NIOFSDirectory(targetPath), FSLockFactory.getDefault(),
+            () -> OTHER_KEY, policy, CeffMode.CHACHA20_POLY1305_MODE, false)) {
+      final byte[] data = new byte[CeffUtils.CHUNK_SIZE_MIN * TestUtil.nextInt(random(), 2, 10) + TestUtil.nextInt(random(), 0, 1000)];
+      for (int i = 0; i < data.length; i++) {
+        data[i] = value(i % 1000);
+      }
+
+      try (IndexOutput out = source.createOutput("_0.dvd", newIOContext(random()))) {
+        out.writeBytes(data, 0, data.length);
+      }
+
+      target.copyFrom(new FilterDirectory(source) {}, "_0.dvd", "_0.dvd", newIOContext(random()));
+
+      try (IndexInput in = target.openInput("_0.dvd", newIOContext(random()))) {
+        final byte[] read = new byte[data.length];
+        in.readBytes(read, 0, read.length);
+        Assert.assertArrayEquals(data, read);
+      }
+
+      // the chunk offsets follow from the header length, the compressed chunks and the footer are
+      // copied as they are
+      final CeffMode mode = CeffMode.CHACHA20_POLY1305_MODE;
+      final int sourceHeaderLength = CeffUtils.headerLength(mode, CeffUtils.FLAG_DERIVED_KEY | CeffUtils.FLAG_COMPRESSED);
+      final int targetHeaderLength = CeffUtils.headerLength(mode, CeffUtils.FLAG_WRAPPED_KEY | CeffUtils.FLAG_COMPRESSED);
+      final byte[] sourceBytes = Files.readAllBytes(source.getDirectory().resolve("_0.dvd"));
+      final byte[] targetBytes = Files.readAllBytes(targetPath.resolve("_0.dvd"));
+      assertEquals(CeffUtils.FLAG_WRAPPED_KEY | CeffUtils.FLAG_COMPRESSED, targetBytes[5]);
+      Assert.assertArrayEquals(
+          Arrays.copyOfRange(sourceBytes, sourceHeaderLength, sourceBytes.length),
+          Arrays.copyOfRange(targetBytes, targetHeaderLength, targetBytes.length));
+    }
+  }
+
+  @Test
+  public void testSharedShardKeys() throws Exception {
+    // shard paths with their own shard keys, like the source and the target shards of a shrink
+    final Path root = createTempDir("testSharedShardKeys");
+    final List<CeffDirectory> sources = new ArrayList<>();
+    int docs = 0;
+
+    try {
+      for (int shard = 0; shard < 2; shard++) {
+        final CeffDirectory source = (CeffDirectory) this.getDirectory(Files.createDirectories(root.resolve("source" + shard).resolve("index")));
+        sources.add(source);
+        try (IndexWriter writer = new IndexWriter(source, new IndexWriterConfig(new MockAnalyzer(random())))) {
+          final int count = TestUtil.nextInt(random(), 10, 100);
+          for (int i = 0; i < count; i++) {
+            final Document doc = new Document();
+            doc.add(new TextField("body", English.intToEnglish(docs++), Field.Store.YES));
+            doc.add(new NumericDocValuesField("ndv", i));
+            writer.addDocument(doc);
+          }
+        }
+      }
+
+      // hard linked files are bound to the keys of the sources
+      try (CeffDirectory target = (CeffDirectory) this.getDirectory(Files.createDirectories(root.resolve("unshared").resolve("index")))) {
+        addIndexesHardlinked(target, sources);
+        expectThrows(IOException.class, () -> DirectoryReader.open(target).close());
+      }
+
+      for (int shard = 0; shard < 2; shard++) {
+        assertTrue(CeffDirectory.shareShardKey(root.resolve("source" + shard), root.resolve("target"), "source" + shard));
+      }
+      assertFalse(CeffDirectory.shareShardKey(root.resolve("unknown"), root.resolve("target"), "unknown"));
+
+      final Path targetPath = Files.createDirectories(root.resolve("target").resolve("index"));
+      try (CeffDirectory target = (CeffDirectory) this.getDirectory(targetPath)) {
+        addIndexesHardlinked(target, sources);
+        try (IndexReader reader = DirectoryReader.open(target)) {
+          assertEquals(docs, reader.numDocs());
+        }
+
+        // copied as it is, no new header
+        final String fileName = SegmentInfos.readLatestCommit(sources.get(1)).files(false).stream()
+            .filter(name -> name.endsWith(".cfs") || name.endsWith(".fdt"))
+            .findFirst()
+            .get();
+        target.copyFrom(new FilterDirectory(sources.get(1)) {}, fileName, "copied", newIOContext(random()));
+        Assert.assertArrayEquals(
+            Files.readAllBytes(sources.get(1).getDirectory().resolve(fileName)),
+            Files.readAllBytes(targetPath.resolve("copied")));
+        target.verifyIntegrity("copied");
+
+        // new files are bound to the key of the target
+        try (IndexWriter writer = new IndexWriter(target, new IndexWriterConfig(new MockAnalyzer(random())))) {
+          writer.forceMerge(1);
+        }
+      }
+
+      // the shared keys outlive the sources
+      for (final CeffDirectory source : sources) {
+        source.close();
+      }
+      IOUtils.rm(root.resolve("source0"), root.resolve("source1"));
+
+      try (CeffDirectory target = (CeffDirectory) this.getDirectory(targetPath)) {
+        try (IndexReader reader = DirectoryReader.open(target)) {
+          assertEquals(docs, reader.numDocs());
+        }
+        target.verifyIntegrity("copied");
+      }
+    } finally {
+      IOUtils.close(sources);
+    }
+  }
+
+  /** Add the indexes like a shrink does, files are hard linked where possible */
+  private static void addIndexesHardlinked(Directory target, List<CeffDirectory> sources) throws IOException {
+    try (IndexWriter writer = new IndexWriter(new HardlinkCopyDirectoryWrapper(target), new IndexWriterConfig(null).setMergePolicy(NoMergePolicy.INSTANCE))) {
+      writer.addIndexes(sources.toArray(new Directory[0]));
+      writer.commit();
+    }
+  }
+
+  @Test
+  public void testFilePolicy() throws Exception {
+    final Path path = createTempDir("testFilePolicy");
+    final CeffFilePolicy policy =
+        CeffFilePolicy.withDefaults(CeffUtils.CHUNK_SIZE_MIN, Collections.singletonMap("tim", 32 * 1024));
+
+    try (CeffDirectory dir =
+        new CeffDirectory(
+            new NIOFSDirectory(path),
+            FSLockFactory.getDefault(),
+            () -> this.key,
+            policy,
+            CeffMode.CHACHA20_POLY1305_MODE,
+            true)) {
+      final byte[] data = new byte[TestUtil.nextInt(random(), CeffFilePolicy.DEFAULT_COMPACT_LENGTH + 1, 200_000)];
+      random().nextBytes(data);
+
+      for (final String fileName : Arrays.asList("_0.fdt", "_0.tim", "_0.doc", "_0_1.dvd")) {
+        try (IndexOutput out = dir.createOutput(fileName, newIOContext(random()))) {
+          out.writeBytes(data, 0, data.length);
+        }
+
+        try (IndexInput in = dir.openInput(fileName, newIOContext(random()))) {
+          final byte[] read = new byte[data.length];
+          in.readBytes(read, 0, read.length);
+          Assert.assertArrayEquals(data, read);
+        }
+
+        // the chunk length is the first value of the footer
+        try (IndexInput raw = dir.getDelegate().openInput(fileName, IOContext.READONCE)) {
+          raw.seek(raw.length() - CeffUtils.footerLength(CeffMode.CHACHA20_POLY1305_MODE));
+          assertEquals(fileName, policy.chunkLength(fileName), raw.readLong());
+        }
+      }
+
+      assertEquals(64 * 1024, policy.chunkLength("_0_1.dvd"));
+      assertEquals(32 * 1024, policy.chunkLength("_0.tim"));
+      assertEquals(CeffUtils.CHUNK_SIZE_MIN, policy.chunkLength("_0.doc"));
+    }
+  }
+
+  @Test
+  public void testFileFormatRecord() throws Exception {
+    final Path path = createTempDir("testFileFormatRecord");
+    final byte[] data = new byte[TestUtil.nextInt(random(), 1, 10_000)];
+    random().nextBytes(data);
+
+    // a new index is fully encrypted, even in mixed mode
+    try (CeffDirectory dir = new CeffDirectory(new NIOFSDirectory(path), () -> this.key, false);
+        IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new MockAnalyzer(random())))) {
+      assertTrue(dir.isFullyEncrypted());
+      for (int i = 0; i < 10; i++) {
+        final Document doc = new Document();
+        doc.add(newTextField("content", English.intToEnglish(i), Field.Store.YES));
+        writer.addDocument(doc);
+      }
+      writer.commit();
+    }
+
+    final String[] files = FSDirectory.listAll(path);
+    final String record = "ceff_formats_" + Long.toString(SegmentInfos.getLastCommitGeneration(files), Character.MAX_RADIX);
+    assertTrue(Arrays.asList(files).contains(record));
+
+    // a plain text file which was not written by the directory
+    Files.write(path.resolve("_99.fdt"), data);
+
+    try (CeffDirectory dir = new CeffDirectory(new NIOFSDirectory(path), () -> this.key, false)) {
+      assertTrue(dir.isFullyEncrypted());
+      try (DirectoryReader reader = DirectoryReader.open(dir)) {
+        assertEquals(10, reader.numDocs());
+      }
+      expectThrows(IllegalArgumentException.class, () -> dir.openInput("_99.fdt", IOContext.READONCE));
+    }
+
+    // a planted record with a valid checksum which declares the file as plain text is not
+    // authentic and ignored, the plain text file is still rejected
+    try (Directory raw = new NIOFSDirectory(path)) {
+      raw.deleteFile(record);
+      try (IndexOutput out = raw.createOutput(record, IOContext.DEFAULT)) {
+        CodecUtil.writeHeader(out, "CeffFileFormats", 1);
+        final ByteBuffersDataOutput entries = new ByteBuffersDataOutput();
+        entries.writeByte((byte) 0);
+        entries.writeVInt(1);
+        entries.writeString("_99.fdt");
+        entries.writeByte((byte) 0);
+        out.writeVInt((int) entries.size());
+        entries.copyTo(out);
+        final byte[] mac = new byte[32];
+        random().nextBytes(mac);
+        out.writeBytes(mac, mac.length);
+        CodecUtil.writeFooter(out);
+      }
+    }
+
+    try (CeffDirectory dir = new CeffDirectory(new NIOFSDirectory(path), () -> this.key, true)) {
+      expectThrows(IllegalArgumentException.class, () -> dir.openInput("_99.fdt", IOContext.READONCE));
+    }
+
+    // without the record files are probed
+    Files.delete(path.resolve(record));
+
+    try (CeffDirectory dir = new CeffDirectory(new NIOFSDirectory(path), () -> this.key, false)) {
+      assertFalse(dir.isFullyEncrypted());
+      try (IndexInput in = dir.openInput("_99.fdt", IOContext.READONCE)) {
+        final byte[] read = new byte[data.length];
+        in.readBytes(read, 0, read.length);
+        Assert.assertArrayEquals(data, read);
+      }
+
+      // fully encrypted again once all files were rewritten and the old ones are deleted
+      try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new MockAnalyzer(random())))) {
+        writer.addDocument(new Document());
+        writer.forceMerge(1);
+        writer.commit();
+        assertFalse(dir.isFullyEncrypted());
+        writer.addDocument(new Document());
+        writer.commit();
+        assertTrue(dir.isFullyEncrypted());
+      }
+    }
+  }
+
+  @Test
+  public void testFileLength() throws Exception {
+    final Path path = createTempDir("testFileLength");
+    final List<String> fileNames = Arrays.asList("_0.compact", "_0.chunk", "_0.chunks", "_0.empty");
+    final int[] lengths = {
+      TestUtil.nextInt(random(), 1, CeffFilePolicy.DEFAULT_COMPACT_LENGTH),
+      TestUtil.nextInt(random(), CeffFilePolicy.DEFAULT_COMPACT_LENGTH + 1, CeffDirectory.DEFAULT_CHUNK_LENGTH),
+      TestUtil.nextInt(random(), CeffDirectory.DEFAULT_CHUNK_LENGTH + 1, 500_000),
+      0
+    };
+
+    try (Directory dir = this.getDirectory(path)) {
+      for (int i = 0; i < fileNames.size(); i++) {
+        final byte[] data = new byte[lengths[i]];
+        random().nextBytes(data);
+        try (IndexOutput out = dir.createOutput(fileNames.get(i), newIOContext(random()))) {
+          out.writeBytes(data, 0, data.length);
+          if (lengths[i] > CeffDirectory.DEFAULT_CHUNK_LENGTH) {
+            // not written completely, the physical length so far
+            assertEquals(Files.size(path.resolve(fileNames.get(i))), dir.fileLength(fileNames.get(i)));
+          }
+        }
+        // from the cache filled on write
+        assertEquals(fileNames.get(i), lengths[i], dir.fileLength(fileNames.get(i)));
+      }
+
+      dir.rename("_0.chunks", "_1.chunks");
+      assertEquals(lengths[2], dir.fileLength("_1.chunks"));
+    }
+
+    // read from the footer without opening the file
+    try (Directory dir = this.getDirectory(path)) {
+      assertEquals(lengths[0], dir.fileLength("_0.compact"));
+      assertEquals(lengths[1], dir.fileLength("_0.chunk"));
+      assertEquals(lengths[2], dir.fileLength("_1.chunks"));
+      assertEquals(0, dir.fileLength("_0.empty"));
+      expectThrows(IOException.class, () -> dir.fileLength("_0.missing"));
+    }
+  }
+
+  @Test
+  public void testEncryptionPolicy() throws Exception {
+    final Path path = createTempDir("testEncryptionPolicy");
+    final CeffFilePolicy policy =
+        new CeffFilePolicy(
+            CeffUtils.CHUNK_SIZE_MIN,
+            Collections.emptyMap(),
+            CeffFilePolicy.DEFAULT_COMPACT_LENGTH,
+            new HashSet<>(Arrays.asList("fdt", "tim", "vec", "nvd")),
+            Collections.singleton("nvd"));
+
+    assertTrue(policy.isEncrypted("_0.fdt"));
+    assertTrue(policy.isEncrypted("_0_Lucene90_0.tim"));
+    assertFalse(policy.isEncrypted("_0.nvd"));
+    assertFalse(policy.isEncrypted("_0.dim"));
+    assertFalse(policy.isEncrypted("_0.si"));
+    assertFalse(policy.isEncrypted("segments_1"));
+
+    final byte[] data = new byte[TestUtil.nextInt(random(), 1, 50_000)];
+    random().nextBytes(data);
+
+    // written under the former policy which encrypts everything
+    try (Directory dir = this.getDirectory(path)) {
+      try (IndexOutput out = dir.createOutput("_0.nvd", newIOContext(random()))) {
+        out.writeBytes(data, 0, data.length);
+      }
+    }
+
+    try (CeffDirectory dir =
+        new CeffDirectory(
+            new NIOFSDirectory(path),
+            FSLockFactory.getDefault(),
+            () -> this.key,
+            policy,
+            CeffMode.CHACHA20_POLY1305_MODE,
+            true)) {
+      for (final String fileName : Arrays.asList("_1.fdt", "_1.nvd", "_1.dim")) {
+        try (IndexOutput out = dir.createOutput(fileName, newIOContext(random()))) {
+          out.writeBytes(data, 0, data.length);
+        }
+      }
+
+      Assert.assertArrayEquals(data, Files.readAllBytes(path.resolve("_1.nvd")));
+      Assert.assertArrayEquals(data, Files.readAllBytes(path.resolve("_1.dim")));
+      assertFalse(Arrays.equals(data, Files.readAllBytes(path.resolve("_1.fdt"))));
+
+      for (final String fileName : Arrays.asList("_0.nvd", "_1.fdt", "_1.nvd", "_1.dim")) {
+        try (IndexInput in = dir.openInput(fileName, newIOContext(random()))) {
+          assertEquals(fileName, data.length, in.length());
+          final byte[] read = new byte[data.length];
+          in.readBytes(read, 0, read.length);
+          Assert.assertArrayEquals(fileName, data, read);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testMigration() throws Exception {
+    final Path path = createTempDir("testMigration");
+    // does not compress well, stored fields are chunked
+    final String text = TestUtil.randomSimpleString(random(), 5_000, 10_000);
+
+    // plain text, another mode and another chunk length
+    try (Directory dir = new NIOFSDirectory(path)) {
+      addDocuments(dir, text, 10);
+    }
+    try (Directory dir = newCeffDirectory(path, CeffUtils.CHUNK_SIZE_MIN, CeffMode.AES_GCM_MODE)) {
+      addDocuments(dir, text, 10);
+    }
+    try (Directory dir = newCeffDirectory(path, CeffUtils.CHUNK_SIZE_MIN, CeffMode.CHACHA20_POLY1305_MODE)) {
+      addDocuments(dir, text, 10);
+    }
+
+    try (CeffDirectory dir =
+        newCeffDirectory(path, CeffDirectory.DEFAULT_CHUNK_LENGTH, CeffMode.CHACHA20_POLY1305_MODE)) {
+      addDocuments(dir, text, 10);
+      assertFalse(dir.isFullyEncrypted());
+
+      final CeffMigrationMergePolicy mergePolicy =
+          new CeffMigrationMergePolicy(
+              NoMergePolicy.INSTANCE, dir, new RateLimiter.SimpleRateLimiter(1000));
+      final List<Boolean> outdated = new ArrayList<>();
+      for (final SegmentCommitInfo info : SegmentInfos.readLatestCommit(dir)) {
+        outdated.add(mergePolicy.isOutdated(info));
+      }
+      assertEquals(Arrays.asList(true, true, true, false), outdated);
+
+      try (IndexWriter writer =
+          new IndexWriter(
+              dir,
+              new IndexWriterConfig(new MockAnalyzer(random()))
+                  .setMergePolicy(mergePolicy)
+                  .setMergeScheduler(new SerialMergeScheduler()))) {
+        // natural merges do not migrate
+        writer.addDocument(new Document());
+        writer.flush();
+        assertEquals(0, mergePolicy.getMigratedSegments());
+
+        // one segment per explicit merge
+        for (int i = 1; i <= 3; i++) {
+          writer.maybeMerge();
+          assertEquals(i, mergePolicy.getMigratedSegments());
+          assertFalse(mergePolicy.isMigrating());
+        }
+        writer.maybeMerge();
+        assertEquals(3, mergePolicy.getMigratedSegments());
+        writer.commit();
+
+        for (final String fileName : dir.listAll()) {
+          if (ExtrasFS.isExtra(fileName)) {
+            // the test file system may add extra files and directories
+            continue;
+          }
+          assertFalse(fileName, dir.isOutdated(fileName));
+        }
+
+        // recorded by the next commit, once the outdated files are deleted
+        assertFalse(dir.isFullyEncrypted());
+        writer.setLiveCommitData(Collections.singletonMap("migrated", "true").entrySet());
+        writer.commit();
+        assertTrue(dir.isFullyEncrypted());
+      }
+
+      try (DirectoryReader reader = DirectoryReader.open(dir)) {
+        assertEquals(41, reader.numDocs());
+        assertEquals(text, reader.storedFields().document(0).get("content"));
+      }
+    }
+  }
+
+  @Test
+  public void testCryptoMergePolicy() throws Exception {
+    final Path path = createTempDir("testCryptoMergePolicy");
+    final AtomicReference<Double> cpuLoad = new AtomicReference<>(0.5);
+    String text = null;
+
+    try (CeffDirectory dir =
+        newCeffDirectory(path, CeffDirectory.DEFAULT_CHUNK_LENGTH, CeffMode.CHACHA20_POLY1305_MODE)) {
+      // more than a megabyte per merged stored fields file, so the throttle is asked at least once
+      for (int i = 0; i < 3; i++) {
+        text = TestUtil.randomSimpleString(random(), 40_000, 60_000);
+        addDocuments(dir, text, 20);
+      }
+
+      // a budget which is never exhausted, the merge is not slowed down
+      final CeffCryptoMergePolicy mergePolicy =
+          new CeffCryptoMergePolicy(new TieredMergePolicy(), dir, cpuLoad::get, 0.9, 1000);
+      assertFalse(mergePolicy.isSaturated());
+
+      try (IndexWriter writer =
+          new IndexWriter(
+              dir,
+              new IndexWriterConfig(new MockAnalyzer(random()))
+                  .setMergePolicy(mergePolicy)
+                  .setMergeScheduler(new SerialMergeScheduler()))) {
+        writer.forceMerge(2);
+        cpuLoad.set(1.0);
+        assertTrue(mergePolicy.isSaturated());
+        writer.forceMerge(1);
+        writer.commit();
+      }
+
+      assertEquals(2, mergePolicy.getMerges());
+      assertTrue(mergePolicy.getRunningMerges().isEmpty());
+      assertTrue(mergePolicy.getCryptoNanos() > 0);
+      assertTrue(mergePolicy.getMergeNanos() > 0);
+
+      final List<CeffCryptoMergePolicy.MergeCryptoStats> merges = mergePolicy.getRecentMerges();
+      assertEquals(2, merges.size());
+      long cryptoNanos = 0;
+      for (final CeffCryptoMergePolicy.MergeCryptoStats merge : merges) {
+        assertTrue(merge.isFinished());
+        assertTrue(merge.getCryptoNanos() > 0);
+        assertTrue(merge.getWrittenBytes() > 0);
+        assertNull(dir.getSegmentThrottle(merge.getSegmentName()));
+        cryptoNanos += merge.getCryptoNanos();
+      }
+      assertEquals(mergePolicy.getCryptoNanos(), cryptoNanos);
+      // the latest first, the last merge merged all documents
+      assertEquals(2, merges.get(0).getSourceSegments());
+      assertTrue(merges.get(0).getWrittenBytes() > 1024 * 1024);
+
+      // reads outside of merges are not accounted
+      try (DirectoryReader reader = DirectoryReader.open(dir)) {
+        assertEquals(60, reader.numDocs());
+        int matching = 0;
+        for (int i = 0; i < reader.maxDoc(); i++) {
+          if (text.equals(reader.storedFields().document(i).get("content"))) {
+            matching++;
+          }
+        }
+        assertEquals(20, matching);
+      }
+      assertEquals(cryptoNanos, mergePolicy.getCryptoNanos());
+    }
+  }
+
+  private CeffDirectory newCeffDirectory(Path path, int chunkLength, CeffMode mode)
+      throws IOException {
+    return new CeffDirectory(
+        new NIOFSDirectory(path),
+        FSLockFactory.getDefault(),
+        () -> this.key,
+        CeffFilePolicy.uniform(chunkLength),
+        mode,
+        false);
+  }
+
+  private static void addDocuments(Directory dir, String text, int count) throws IOException {
+    try (IndexWriter writer =
+        new IndexWriter(
+            dir,
+            new IndexWriterConfig(new MockAnalyzer(random()))
+                .setMergePolicy(NoMergePolicy.INSTANCE))) {
+      for (int i = 0; i < count; i++) {
+        final Document doc = new Document();
+        doc.add(new StoredField("content", text));
+        writer.addDocument(doc);
+      }
+      writer.commit();
+    }
+  }
+
+  @Test
+  public void testDerivedFileKeys() throws Exception {
+    final Path path = createTempDir("testDerivedFileKeys");
+
+    try (CeffDirectory dir = (CeffDirectory) this.getDirectory(path)) {
+      final byte[] data = new byte[TestUtil.nextInt(random(), CeffFilePolicy.DEFAULT_COMPACT_LENGTH + 1, 100_000)];
+      random().nextBytes(data);
+
+      for (final String fileName : Arrays.asList("derived1", "derived2")) {
+        try (IndexOutput out = dir.createOutput(fileName, newIOContext(random()))) {
+          out.writeBytes(data, 0, data.length);
+        }
+      }
+
+      final int headerLength = CeffUtils.headerLength(dir.getMode(), CeffUtils.FLAG_DERIVED_KEY | CeffUtils.FLAG_VERSIONED);
+      final byte[] derived1 = Files.readAllBytes(path.resolve("derived1"));
+      final byte[] derived2 = Files.readAllBytes(path.resolve("derived2"));
+      assertEquals(dir.getMode().getModeByte() | CeffUtils.EXTENDED_HEADER_BIT, derived1[4] & 0xFF);
+      assertEquals(CeffUtils.FLAG_DERIVED_KEY | CeffUtils.FLAG_VERSIONED, derived1[5]);
+      assertEquals(derived1.length, derived2.length);
+      assertFalse(Arrays.equals(Arrays.copyOfRange(derived1, 0, headerLength), Arrays.copyOfRange(derived2, 0, headerLength)));
+
+      try (IndexInput in = dir.openInput("derived1", newIOContext(random()))) {
+        final byte[] read = new byte[data.length];
+        in.readBytes(read, 0, read.length);
+        Assert.assertArrayEquals(data, read);
+      }
+
+      // the salt binds the key, a header of another file does not decrypt the chunks
+      System.arraycopy(derived2, 0, derived1, 0, headerLength);
+      Files.write(path.resolve("derived1"), derived1);
+      expectThrows(IOException.class, () -> dir.openInput("derived1", newIOContext(random())).close());
+
+      // files with a wrapped random file key stay readable
+      final CeffMode mode = dir.getMode();
+      final byte[] key = mode.randomKey();
+      try (IndexOutput out = new CeffIndexOutput(dir.getDelegate().createOutput("wrapped", newIOContext(random())), dir.getChunkLength(), key, mode)) {
+        out.writeBytes(data, 0, data.length);
+      }
+
+      assertEquals(
+          CeffUtils.headerLength(mode) + CeffUtils.footerLength(mode) + data.length,
+          dir.getDelegate().fileLength("wrapped")
+              - (CeffUtils.calculateNumberOfChunks(dir.getDelegate().fileLength("wrapped"), dir.getChunkLength(), mode) * CeffUtils.cryptoLength(mode)));
+
+      try (IndexInput in = new CeffIndexInput(dir.getDelegate().openInput("wrapped", newIOContext(random())), key)) {
+        final byte[] read = new byte[data.length];
+        in.readBytes(read, 0, read.length);
+        Assert.assertArrayEquals(data, read);
+      }
+    }
+  }
+
+  @Test
+  public void testFormatVersion3() throws Exception {
+    final Path path = createTempDir("testFormatVersion3");
+
+    try (CeffDirectory dir = (CeffDirectory) this.getDirectory(path)) {
+      final CeffMode mode = dir.getMode();
+      final int chunkLength = dir.getChunkLength();
+      final byte[] data = new byte[3 * chunkLength + TestUtil.nextInt(random(), 1, chunkLength)];
+      random().nextBytes(data);
+
+      try (IndexOutput out = dir.createOutput("v3", newIOContext(random()))) {
+        out.writeBytes(data, 0, data.length);
+      }
+
+      final int flags = CeffUtils.FLAG_DERIVED_KEY | CeffUtils.FLAG_VERSIONED;
+      final int headerLength = CeffUtils.headerLength(mode, flags);
+      final byte[] raw = Files.readAllBytes(path.resolve("v3"));
+      assertEquals(flags, raw[5]);
+      assertEquals(CeffUtils.FORMAT_VERSION_3, raw[6]);
+      // the chunk length is little endian, like all ints written by lucene
+      assertEquals(chunkLength, (raw[7] & 0xFF) | (raw[8] & 0xFF) << 8 | (raw[9] & 0xFF) << 16 | (raw[10] & 0xFF) << 24);
+      assertEquals(data.length, dir.fileLength("v3"));
+
+      // 4 chunks, the merkle tree is one perfect tree of 7 nodes in post order:
+      // leaf 0, leaf 1, node 0-1, leaf 2, leaf 3, node 2-3, root
+      final int chunks = 4;
+      final int nodes = 7;
+      final int physicalChunkLength = chunkLength + CeffUtils.cryptoLength(mode);
+      assertEquals(headerLength + data.length + chunks * CeffUtils.cryptoLength(mode) + nodes * CeffUtils.SIGNATURE_LENGTH + CeffUtils.footerLength(mode), raw.length);
+      final int treeStart = raw.length - CeffUtils.footerLength(mode) - nodes * CeffUtils.SIGNATURE_LENGTH;
+      final int[] leafPositions = {0, 1, 3, 4};
+      final MessageDigest md = MessageDigest.getInstance("SHA-512");
+      final int tagLength = mode.getTagLength();
+      for (int chunk = 0; chunk < chunks; chunk++) {
+        // a leaf hashes the aad and the tag at the end of the chunk, the last chunk is short
+        final int aadStart = headerLength + chunk * physicalChunkLength;
+        final int chunkEnd = Math.min(aadStart + physicalChunkLength, treeStart);
+        md.update((byte) 0);
+        md.update(raw, aadStart, CeffUtils.AAD_LENGTH);
+        md.update(raw, chunkEnd - tagLength, tagLength);
+        final int leafStart = treeStart + leafPositions[chunk] * CeffUtils.SIGNATURE_LENGTH;
+        Assert.assertArrayEquals(md.digest(), Arrays.copyOfRange(raw, leafStart, leafStart + CeffUtils.SIGNATURE_LENGTH));
+      }
+
+      try (IndexInput in = dir.openInput("v3", newIOContext(random()))) {
+        final byte[] read = new byte[data.length];
+        in.readBytes(read, 0, read.length);
+        Assert.assertArrayEquals(data, read);
+        // a slice checks the chunk numbers as well
+        final IndexInput slice = in.slice("slice", chunkLength + 1, chunkLength);
+        final byte[] sliced = new byte[chunkLength];
+        slice.readBytes(sliced, 0, sliced.length);
+        Assert.assertArrayEquals(Arrays.copyOfRange(data, chunkLength + 1, 2 * chunkLength + 1), sliced);
+      }
+
+      // the root is in the authenticated footer, a tampered peak fails when the file is opened
+      final byte[] tamperedRoot = raw.clone();
+      tamperedRoot[treeStart + 6 * CeffUtils.SIGNATURE_LENGTH] ^= 1;
+      Files.write(path.resolve("tampered_root"), tamperedRoot);
+      expectThrows(IOException.class, () -> dir.openInput("tampered_root", newIOContext(random())).close());
+
+      // the path of a chunk is only verified when the chunk is loaded, the leaf of chunk 3 is
+      // also on the path of chunk 2
+      final byte[] tamperedLeaf = raw.clone();
+      tamperedLeaf[treeStart + leafPositions[3] * CeffUtils.SIGNATURE_LENGTH] ^= 1;
+      Files.write(path.resolve("tampered_leaf"), tamperedLeaf);
+      try (IndexInput in = dir.openInput("tampered_leaf", newIOContext(random()))) {
+        final byte[] read = new byte[2 * chunkLength];
+        in.readBytes(read, 0, read.length);
+        Assert.assertArrayEquals(Arrays.copyOfRange(data, 0, read.length), read);
+        expectThrows(IOException.class, () -> in.readBytes(new byte[data.length - read.length], 0, data.length - read.length));
+      }
+
+      // swapped chunks do not match the leaves at their position
+      final byte[] swapped = raw.clone();
+      System.arraycopy(raw, headerLength, swapped, headerLength + physicalChunkLength, physicalChunkLength);
+      System.arraycopy(raw, headerLength + physicalChunkLength, swapped, headerLength, physicalChunkLength);
+      Files.write(path.resolve("swapped"), swapped);
+      expectThrows(IOException.class, () -> {
+        try (IndexInput in = dir.openInput("swapped", newIOContext(random()))) {
+          in.readBytes(new byte[data.length], 0, data.length);
+        }
+      });
+    }
+  }
+
+  @Test
+  public void testSwappedChunksAfterVerification() throws Exception {
+    final Path path = createTempDir("testSwappedChunksAfterVerification");
+
+    try (CeffDirectory dir = (CeffDirectory) this.getDirectory(path)) {
+      final int chunkLength = dir.getChunkLength();
+      final byte[] data = new byte[2 * chunkLength + TestUtil.nextInt(random(), 1, chunkLength)];
+      random().nextBytes(data);
+
+      try (IndexOutput out = dir.createOutput("swapped", newIOContext(random()))) {
+        out.writeBytes(data, 0, data.length);
+      }
+
+      // the first open verifies the file, later opens take the verified shortcut
+      try (IndexInput in = dir.openInput("swapped", newIOContext(random()))) {
+        final byte[] read = new byte[data.length];
+        in.readBytes(read, 0, read.length);
+        Assert.assertArrayEquals(data, read);
+      }
+
+      final int headerLength = CeffUtils.headerLength(dir.getMode(), CeffUtils.FLAG_DERIVED_KEY | CeffUtils.FLAG_VERSIONED);
+      final int physicalChunkLength = chunkLength + CeffUtils.cryptoLength(dir.getMode());
+      final byte[] raw = Files.readAllBytes(path.resolve("swapped"));
+      final byte[] swapped = raw.clone();
+      System.arraycopy(raw, headerLength, swapped, headerLength + physicalChunkLength, physicalChunkLength);
+      System.arraycopy(raw, headerLength + physicalChunkLength, swapped, headerLength, physicalChunkLength);
+      Files.write(path.resolve("swapped"), swapped);
+
+      // the first chunk is loaded when the file is opened
+      expectThrows(IOException.class, () -> {
+        try (IndexInput in = dir.openInput("swapped", newIOContext(random()))) {
+          in.readBytes(new byte[data.length], 0, data.length);
+        }
+      });
+    }
+  }
+
+  @Test
+  public void testEphemeralTempFiles() throws Exception {
+    final Path path = createTempDir("testEphemeralTempFiles");
+
+    try (CeffDirectory dir = (CeffDirectory) this.getDirectory(path)) {
+      final byte[] data = new byte[TestUtil.nextInt(random(), 1, 200_000)];
+      random().nextBytes(data);
+
+      final String fileName;
+      try (IndexOutput out = dir.createTempOutput("points", "bkd", newIOContext(random()))) {
+        fileName = out.getName();
+        out.writeBytes(data, 0, data.length);
+        CodecUtil.writeFooter(out);
+      }
+
+      final byte[] raw = Files.readAllBytes(path.resolve(fileName));
+      assertEquals(CeffUtils.FLAG_DERIVED_KEY | CeffUtils.FLAG_EPHEMERAL, raw[5]);
+
+      try (IndexInput in = dir.openInput(fileName, IOContext.READONCE)) {
+        final byte[] read = new byte[data.length];
+        in.readBytes(read, 0, read.length);
+        Assert.assertArrayEquals(data, read);
+      }
+
+      try (IndexInput in = dir.openInput(fileName, newIOContext(random()))) {
+        CodecUtil.checksumEntireFile(in);
+      }
+
+      // chunks are still authenticated
+      final int headerLength = CeffUtils.headerLength(dir.getMode(), CeffUtils.FLAG_DERIVED_KEY | CeffUtils.FLAG_EPHEMERAL);
+      raw[headerLength + CeffUtils.AAD_LENGTH + random().nextInt(Math.min(data.length, CeffDirectory.DEFAULT_CHUNK_LENGTH))] ^= 1;
+      Files.write(path.resolve(fileName), raw);
+
+      expectThrows(IOException.class, () -> {
+        try (IndexInput in = dir.openInput(fileName, newIOContext(random()))) {
+          in.readBytes(new byte[data.length], 0, data.length);
+        }
+      });
+    }
+  }
+
+  @Test
+  public void testCompactFiles() throws Exception {
+    final Path path = createTempDir("testCompactFiles");
+
+    try (CeffDirectory dir = (CeffDirectory) this.getDirectory(path)) {
+      final CeffMode mode = dir.getMode();
+      final int compactHeaderLength = CeffUtils.headerLength(mode, CeffUtils.FLAG_DERIVED_KEY | CeffUtils.FLAG_COMPACT);
+
+      for (final int length : new int[] {0, 1, TestUtil.nextInt(random(), 2, CeffFilePolicy.DEFAULT_COMPACT_LENGTH), CeffFilePolicy.DEFAULT_COMPACT_LENGTH}) {
+        final byte[] data = new byte[length];
+        random().nextBytes(data);
+
+        try (IndexOutput out = dir.createOutput("_0.fnm", newIOContext(random()))) {
+          out.writeBytes(data, 0, data.length);
+        }
+
+        final byte[] raw = Files.readAllBytes(path.resolve("_0.fnm"));
+        assertEquals(CeffUtils.FLAG_DERIVED_KEY | CeffUtils.FLAG_COMPACT, raw[5]);
+        assertEquals(compactHeaderLength + length + mode.getTagLength(), raw.length);
+
+        try (IndexInput in = dir.openInput("_0.fnm", newIOContext(random()))) {
+          assertEquals(length, in.length());
+          final byte[] read = new byte[length];
+          in.readBytes(read, 0, read.length);
+          Assert.assertArrayEquals(data, read);
+        }
+
+        // the tag covers the whole file, also its length
+        if (length > 0) {
+          final byte[] tampered = random().nextBoolean() ? Arrays.copyOf(raw, raw.length - 1) : raw.clone();
+          if (tampered.length == raw.length) {
+            tampered[compactHeaderLength + random().nextInt(length)] ^= 1;
+          }
+          Files.write(path.resolve("_0.fnm"), tampered);
+          expectThrows(IOException.class, () -> dir.openInput("_0.fnm", newIOContext(random())).close());
+        }
+
+        dir.deleteFile("_0.fnm");
+      }
+
+      // one more byte is written chunked
+      final byte[] data = new byte[CeffFilePolicy.DEFAULT_COMPACT_LENGTH + 1];
+      try (IndexOutput out = dir.createOutput("_0.fnm", newIOContext(random()))) {
+        out.writeBytes(data, 0, data.length);
+      }
+      assertEquals(CeffUtils.FLAG_DERIVED_KEY | CeffUtils.FLAG_VERSIONED, Files.readAllBytes(path.resolve("_0.fnm"))[5]);
+    }
+  }
+
+  @Test
+  public void testCompressedChunks() throws Exception {
+    final Path path = createTempDir("testCompressedChunks");
+    final CeffFilePolicy policy =
+        new CeffFilePolicy(
+            CeffUtils.CHUNK_SIZE_MIN,
+            Collections.emptyMap(),
+            CeffFilePolicy.DEFAULT_COMPACT_LENGTH,
+            Collections.emptySet(),
+            Collections.emptySet(),
+            Collections.singleton("dvd"));
+
+    // compressible chunks alternate with random ones, which are stored as they are
+    final byte[] data = new byte[CeffUtils.CHUNK_SIZE_MIN * TestUtil.nextInt(random(), 5, 20) + TestUtil.nextInt(random(), 0, 1000)];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (i / CeffUtils.CHUNK_SIZE_MIN) % 3 == 2 ? (byte) random().nextInt() : value(i % 1000);
+    }
+
+    final IOContext context = random().nextBoolean()
+        ? new IOContext(new MergeInfo(1000, data.length, false, 1))
+        : newIOContext(random());
+
+    try (CeffDirectory dir = newCeffDirectory(path, policy)) {
+      for (final String fileName : Arrays.asList("_0.dvd", "_0.fdt")) {
+        try (IndexOutput out = dir.createOutput(fileName, context)) {
+          out.writeBytes(data, 0, data.length);
+          CodecUtil.writeFooter(out);
+        }
+      }
+
+      final byte[] raw = Files.readAllBytes(path.resolve("_0.dvd"));
+      assertEquals(CeffUtils.FLAG_DERIVED_KEY | CeffUtils.FLAG_COMPRESSED, raw[5]);
+      assertEquals(CeffUtils.FLAG_DERIVED_KEY | CeffUtils.FLAG_VERSIONED, Files.readAllBytes(path.resolve("_0.fdt"))[5]);
+      assertTrue(raw.length < Files.size(path.resolve("_0.fdt")) * 2 / 3);
+      assertEquals(data.length + CodecUtil.footerLength(), dir.fileLength("_0.dvd"));
+
+      try (IndexInput in = dir.openInput("_0.dvd", newIOContext(random()))) {
+        final byte[] read = new byte[data.length];
+        in.readBytes(read, 0, read.length);
+        Assert.assertArrayEquals(data, read);
+        final long checksum = CodecUtil.retrieveChecksum(in);
+        assertEquals(checksum, dir.verifyIntegrity("_0.dvd"));
+
+        // random access, also through clones and slices
+        for (int k = 0; k < 100; k++) {
+          final int offset = random().nextInt(data.length);
+          final int length = TestUtil.nextInt(random(), 0, Math.min(data.length - offset, 3 * CeffUtils.CHUNK_SIZE_MIN));
+          final IndexInput source = random().nextBoolean() ? in : in.clone();
+          final byte[] expected = Arrays.copyOfRange(data, offset, offset + length);
+
+          source.seek(offset);
+          final byte[] actual = new byte[length];
+          source.readBytes(actual, 0, length);
+          Assert.assertArrayEquals(expected, actual);
+          assertEquals(offset + length, source.getFilePointer());
+
+          final IndexInput slice = source.slice("slice", offset, length);
+          assertEquals(length, slice.length());
+          final IndexInput sliceSource = random().nextBoolean() ? slice : slice.clone();
+          sliceSource.readBytes(actual, 0, length);
+          Assert.assertArrayEquals(expected, actual);
+          expectThrows(IOException.class, sliceSource::readByte);
+          if (length > 0) {
+            sliceSource.seek(length - 1);
+            assertEquals(expected[length - 1], sliceSource.readByte());
+          }
+        }
+      }
+    }
+
+    // from the footer and the chunk table without opening the file
+    try (CeffDirectory dir = newCeffDirectory(path, policy)) {
+      assertEquals(data.length + CodecUtil.footerLength(), dir.fileLength("_0.dvd"));
+    }
+
+    // chunks, the table and the footer are authenticated
+    final byte[] raw = Files.readAllBytes(path.resolve("_0.dvd"));
+    final int headerLength = CeffUtils.headerLength(CeffMode.CHACHA20_POLY1305_MODE, CeffUtils.FLAG_DERIVED_KEY | CeffUtils.FLAG_COMPRESSED);
+    for (int k = 0; k < 10; k++) {
+      final byte[] tampered = raw.clone();
+      tampered[TestUtil.nextInt(random(), headerLength, raw.length - 17)] ^= 1;
+      Files.write(path.resolve("_0.dvd"), tampered);
+
+      try (CeffDirectory dir = newCeffDirectory(path, policy)) {
+        expectThrows(IOException.class, () -> dir.verifyIntegrity("_0.dvd"));
+      }
+    }
+    Files.write(path.resolve("_0.dvd"), raw);
+
+    // an index with compressed doc values, points and terms
+    try (CeffDirectory dir =
+        newCeffDirectory(
+            createTempDir("testCompressedIndex"),
+            new CeffFilePolicy(
+                CeffUtils.CHUNK_SIZE_MIN,
+                Collections.emptyMap(),
+                CeffFilePolicy.DEFAULT_COMPACT_LENGTH,
+                Collections.emptySet(),
+                Collections.emptySet(),
+                Collections.singleton(CeffFilePolicy.ALL_EXTENSIONS)))) {
+      final int docs = TestUtil.nextInt(random(), 1000, 5000);
+      try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new MockAnalyzer(random())))) {
+        for (int i = 0; i < docs; i++) {
+          final Document doc = new Document();
+          doc.add(new TextField("body", English.intToEnglish(i), Field.Store.YES));
+          doc.add(new IntPoint("point", i % 100));
+          doc.add(new NumericDocValuesField("ndv", i % 10));
+          writer.addDocument(doc);
+        }
+        writer.forceMerge(1);
+      }
+
+      try (IndexReader reader = DirectoryReader.open(dir)) {
+        final IndexSearcher searcher = new IndexSearcher(reader);
+        assertEquals(docs, searcher.count(new MatchAllDocsQuery()));
+        assertEquals((docs + 99 - 42) / 100, searcher.count(IntPoint.newExactQuery("point", 42)));
+      }
+      int compressed = 0;
+      for (final String fileName : SegmentInfos.readLatestCommit(dir).files(false)) {
+        dir.verifyIntegrity(fileName);
+        try (IndexInput in = dir.getDelegate().openInput(fileName, IOContext.READONCE)) {
+          if (in.length() > 5 && in.readInt() == CeffUtils.CEFF_MAGIC) {
+            in.readByte();
+            compressed += (in.readByte() & CeffUtils.FLAG_COMPRESSED) != 0 ? 1 : 0;
+          }
+        }
+      }
+      assertTrue(compressed > 0);
+    }
+  }
+
+  private CeffDirectory newCeffDirectory(Path path, CeffFilePolicy policy) throws IOException {
+    return new CeffDirectory(
+        new NIOFSDirectory(path),
+        FSLockFactory.getDefault(),
+        () -> this.key,
+        policy,
+        CeffMode.CHACHA20_POLY1305_MODE,
+        false);
+  }
+
   public void testWriteRead() throws Exception {
     final StandardAnalyzer analyzer = new StandardAnalyzer();
 
@@ -306,6 +1415,207 @@ public class CeffDirectoryTests extends BaseDirectoryTestCase {
     }
   }
 
+  public void testWarmUp() throws Exception {
+    final Path tmpDirPath = createTempDir("testWarmUp");
+    final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+    try (CeffDirectory dir = (CeffDirectory) this.getDirectory(tmpDirPath)) {
+      try (IndexWriter w = new IndexWriter(dir, new IndexWriterConfig(new StandardAnalyzer()))) {
+        for (int k = 0; k < 2000; k++) {
+          final Document doc = new Document();
+          doc.add(new TextField("title", English.intToEnglish(k), Field.Store.YES));
+          doc.add(new NumericDocValuesField("ndv", k));
+          w.addDocument(doc);
+        }
+      }
+
+      final Collection<String> files = SegmentInfos.readLatestCommit(dir).files(true);
+      assertTrue(dir.warmUp(files, executor) > 0);
+
+      try (IndexReader reader = DirectoryReader.open(dir)) {
+        assertEquals(2000, reader.numDocs());
+      }
+
+      final byte[] data = new byte[CeffDirectory.DEFAULT_CHUNK_LENGTH * 3 + 1];
+      random().nextBytes(data);
+
+      // warming up verifies the codec footer of the plaintext as well
+      try (IndexOutput out = dir.createOutput("warm", newIOContext(random()))) {
+        CodecUtil.writeHeader(out, "warm", 0);
+        out.writeBytes(data, 0, data.length);
+        CodecUtil.writeFooter(out);
+      }
+
+      assertEquals(1, dir.warmUp(Collections.singletonList("warm"), executor));
+      dir.rename("warm", "warm_renamed");
+
+      try (IndexInput in = dir.openInput("warm_renamed", newIOContext(random()))) {
+        CodecUtil.checkHeader(in, "warm", 0, 0);
+        final byte[] read = new byte[data.length];
+        in.readBytes(read, 0, read.length);
+        Assert.assertArrayEquals(data, read);
+      }
+
+      try (IndexOutput out = dir.createOutput("tampered", newIOContext(random()))) {
+        out.writeBytes(data, 0, data.length);
+      }
+
+      // swap the chunk number in the aad of the second chunk
+      try (FileChannel fc = FileChannel.open(tmpDirPath.resolve("tampered"), StandardOpenOption.WRITE)) {
+        fc.position(CeffUtils.headerLength(dir.getMode(), CeffUtils.FLAG_DERIVED_KEY) + CeffUtils.cryptoLength(dir.getMode()) + CeffDirectory.DEFAULT_CHUNK_LENGTH);
+        fc.write(ByteBuffer.wrap(new byte[] {7}));
+      }
+
+      expectThrows(IOException.class, () -> dir.warmUp(Arrays.asList("tampered", "warm_renamed"), executor));
+    } finally {
+      executor.shutdown();
+      assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+  }
+
+  public void testBufferAccounting() throws Exception {
+    final AtomicLong used = new AtomicLong();
+    final AtomicLong limit = new AtomicLong(Long.MAX_VALUE);
+
+    CeffBufferAccounting.setAccountant(new CeffBufferAccounting.Accountant() {
+      @Override
+      public void reserve(long bytes, String label) {
+        if (used.addAndGet(bytes) > limit.get()) {
+          used.addAndGet(-bytes);
+          throw new IllegalStateException("limit exceeded by " + label);
+        }
+      }
+
+      @Override
+      public void release(long bytes) {
+        used.addAndGet(-bytes);
+      }
+    });
+
+    try (Directory dir = this.getDirectory(createTempDir("testBufferAccounting"))) {
+      final byte[] data = new byte[CeffDirectory.DEFAULT_CHUNK_LENGTH * 10 + 1];
+      random().nextBytes(data);
+
+      try (IndexOutput out = dir.createOutput("accounted", newIOContext(random()))) {
+        assertTrue(used.get() > 0);
+        out.writeBytes(data, 0, data.length);
+        assertTrue(used.get() >= CeffDirectory.DEFAULT_CHUNK_LENGTH);
+      }
+
+      assertEquals(0, used.get());
+
+      // the buffers of small files do not grow to the chunk length
+      try (IndexOutput out = dir.createOutput("small", IOContext.DEFAULT)) {
+        out.writeBytes(data, 0, TestUtil.nextInt(random(), 1, 500));
+        assertTrue(used.get() < CeffDirectory.DEFAULT_CHUNK_LENGTH / 4);
+      }
+
+      assertEquals(0, used.get());
+
+      final long cloneBytes;
+      try (IndexInput in = dir.openInput("accounted", newIOContext(random()))) {
+        final long inputBytes = used.get();
+        assertTrue(inputBytes >= 2L * CeffDirectory.DEFAULT_CHUNK_LENGTH);
+
+        // a clone is accounted once it loads a chunk, cloning never fails
+        limit.set(used.get());
+        final IndexInput full = in.clone();
+        assertEquals(inputBytes, used.get());
+        expectThrows(IllegalStateException.class, () -> full.readBytes(new byte[data.length], 0, data.length));
+        limit.set(Long.MAX_VALUE);
+
+        final IndexInput clone = in.clone();
+        final byte[] read = new byte[data.length];
+        clone.readBytes(read, 0, read.length);
+        Assert.assertArrayEquals(data, read);
+        // including the buffers of parallel reads
+        cloneBytes = used.get() - inputBytes;
+        assertTrue(cloneBytes >= inputBytes);
+      }
+
+      // closing the input releases its own buffers, not those of the clone
+      assertEquals(cloneBytes, used.get());
+    } finally {
+      CeffBufferAccounting.setAccountant(null);
+    }
+  }
+
+  public void testAccessTrace() throws Exception {
+    CeffAccessTrace.configure(1000, 1);
+
+    try (Directory dir = this.getDirectory(createTempDir("testAccessTrace"))) {
+      final int chunkLength = CeffDirectory.DEFAULT_CHUNK_LENGTH;
+      final byte[] data = new byte[chunkLength * 3 + 1];
+      random().nextBytes(data);
+
+      try (IndexOutput out = dir.createOutput("traced.tst", newIOContext(random()))) {
+        out.writeBytes(data, 0, data.length);
+      }
+
+      try (IndexInput in = dir.openInput("traced.tst", IOContext.DEFAULT)) {
+        in.seek(chunkLength * 2L + 1);
+        in.readByte();
+        final IndexInput slice = in.slice("traced slice", chunkLength * 3L, 1);
+        slice.readByte();
+      }
+
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      assertTrue(CeffAccessTrace.dump(out));
+      final List<CeffAccessTrace.Entry> entries = CeffAccessTrace.read(new ByteArrayInputStream(out.toByteArray()));
+
+      assertEquals(3, entries.size());
+      assertEquals(Arrays.asList(0L, 2L, 3L), entries.stream().map(CeffAccessTrace.Entry::getChunk).collect(Collectors.toList()));
+      for (CeffAccessTrace.Entry entry : entries) {
+        assertEquals("tst", entry.getExtension());
+        assertEquals(chunkLength, entry.getChunkLength());
+        assertEquals(IOContext.Context.DEFAULT.ordinal(), entry.getContext());
+        assertEquals(entries.get(0).getFile(), entry.getFile());
+      }
+    } finally {
+      CeffAccessTrace.configure(0, 1);
+    }
+
+    assertFalse(CeffAccessTrace.dump(new ByteArrayOutputStream()));
+  }
+
+  public void testPipelinedWrite() throws Exception {
+    try (Directory dir = this.getDirectory(createTempDir("testPipelinedWrite"))) {
+      final int chunkLength = CeffDirectory.DEFAULT_CHUNK_LENGTH;
+      final byte[] data = new byte[chunkLength * TestUtil.nextInt(random(), 10, 30) + TestUtil.nextInt(random(), 0, chunkLength)];
+      random().nextBytes(data);
+
+      final IOContext context = random().nextBoolean()
+          ? new IOContext(new MergeInfo(1000, data.length, false, 1))
+          : new IOContext(new FlushInfo(1000, data.length));
+
+      final long checksum;
+      try (IndexOutput out = dir.createOutput("pipelined", context)) {
+        int pos = 0;
+        while (pos < data.length) {
+          if (random().nextInt(10) == 0) {
+            out.writeByte(data[pos++]);
+          } else {
+            final int len = Math.min(data.length - pos, TestUtil.nextInt(random(), 1, 3 * chunkLength));
+            out.writeBytes(data, pos, len);
+            pos += len;
+          }
+        }
+        checksum = out.getChecksum();
+      }
+
+      try (IndexInput in = dir.openInput("pipelined", newIOContext(random()))) {
+        assertEquals(data.length, in.length());
+        final byte[] read = new byte[data.length];
+        in.readBytes(read, 0, read.length);
+        Assert.assertArrayEquals(data, read);
+      }
+
+      final CRC32 crc32 = new CRC32();
+      crc32.update(data);
+      assertEquals(crc32.getValue(), checksum);
+    }
+  }
+
   public void testTamperedWith() throws Exception {
     final StandardAnalyzer analyzer = new StandardAnalyzer();
 
@@ -0,0 +1,180 @@
+/* 
+ * Copyright (C) 2021 by eliatra Ltd. - All Rights Reserved
+ * Unauthorized copying, usage or modification of this file in its source or binary form, 
+ * via any medium is strictly prohibited.
+ * Proprietary and confidential.
+ * 
+ * https://eliatra.com
+ */
+
+package com.eliatra.cloud.lock.plugin;
+
+import com.eliatra.cloud.lock.crypto.PlainSymmetricAeadAesKey;
+import com.eliatra.cloud.lock.crypto.SymmetricKek;
+import com.eliatra.cloud.lock.lucene.encryption.CeffDirectory;
+import com.eliatra.cloud.lock.lucene.encryption.CeffIndexOutput;
+import com.eliatra.cloud.lock.lucene.encryption.CeffMode;
+import com.google.crypto.tink.KeyTemplates;
+import com.google.crypto.tink.KeysetHandle;
+import com.google.crypto.tink.config.TinkConfig;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.ByteBuffersDataOutput;
+import org.apache.lucene.store.ByteBuffersIndexOutput;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FilterDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.util.IOUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Benchmark for the primitive write paths of {@link CeffIndexOutput}, not run as part of the
+ * tests.
+ *
+ * <p>Postings, term dictionaries and points are written as many single bytes, vints and ints.
+ * Compares the direct in-buffer writes with routing every byte through writeBytes (the former
+ * path), first for plain vint/int/long writes and then for indexing postings-heavy documents
+ * (many short terms, no stored fields) into a {@link CeffDirectory}.
+ *
+ * <p>Usage: CeffPostingsBenchmark [docs] [mb of primitives]
+ */
+public class CeffPostingsBenchmark {
+
+  private static final CeffMode MODE = CeffMode.CHACHA20_POLY1305_MODE;
+
+  public static void main(String[] args) throws Exception {
+    final int docs = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+    final int mb = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+
+    TinkConfig.register();
+    final SymmetricKek kek = new SymmetricKek(new PlainSymmetricAeadAesKey(KeysetHandle.generateNew(KeyTemplates.get("AES256_GCM"))), new byte[0]);
+
+    System.out.println(docs + " docs, " + mb + " mb of primitives");
+
+    for (int round = 0; round < 3; round++) {
+      final long directNanos = writePrimitives(mb, false);
+      final long bytewiseNanos = writePrimitives(mb, true);
+      final long directIndexNanos = index(kek, docs, false);
+      final long bytewiseIndexNanos = index(kek, docs, true);
+
+      System.out.println("round " + round);
+      System.out.printf("  primitives, direct:            %8.1f mb/s%n", mb / (directNanos / 1_000_000_000d));
+      System.out.printf("  primitives, through writeBytes:%8.1f mb/s%n", mb / (bytewiseNanos / 1_000_000_000d));
+      System.out.printf("  indexing, direct:              %8.1f docs/ms%n", docs / (directIndexNanos / 1_000_000d));
+      System.out.printf("  indexing, through writeBytes:  %8.1f docs/ms%n", docs / (bytewiseIndexNanos / 1_000_000d));
+    }
+  }
+
+  /** Write a mix of vints, vlongs, ints and longs like a postings writer does */
+  private static long writePrimitives(int mb, boolean bytewise) throws Exception {
+    final long bytes = mb * 1024L * 1024L;
+    final Random random = new Random(42);
+    final long start = System.nanoTime();
+
+    IndexOutput out = new CeffIndexOutput(
+        new ByteBuffersIndexOutput(ByteBuffersDataOutput.newResettableInstance(), "bench", "bench"),
+        16 * 1024, MODE.randomKey(), MODE, false);
+    if (bytewise) {
+      out = new BytewiseIndexOutput(out);
+    }
+
+    try (IndexOutput o = out) {
+      while (o.getFilePointer() < bytes) {
+        for (int k = 0; k < 128; k++) {
+          o.writeVInt(random.nextInt(128)); // doc deltas
+          o.writeVInt(random.nextInt(4)); // freqs
+        }
+        o.writeVLong(random.nextInt(1 << 20)); // file pointers
+        o.writeInt(random.nextInt());
+        o.writeLong(random.nextLong());
+      }
+    }
+
+    return System.nanoTime() - start;
+  }
+
+  private static long index(SymmetricKek kek, int docs, boolean bytewise) throws IOException {
+    final Path path = Files.createTempDirectory("ceff-postings-bench");
+    final Random random = new Random(42);
+
+    Directory dir = new CeffDirectory(new NIOFSDirectory(path), () -> kek, true);
+    if (bytewise) {
+      dir = new FilterDirectory(dir) {
+        @Override
+        public IndexOutput createOutput(String name, IOContext context) throws IOException {
+          return new BytewiseIndexOutput(super.createOutput(name, context));
+        }
+      };
+    }
+
+    try {
+      final long start = System.nanoTime();
+
+      try (Directory d = dir; IndexWriter writer = new IndexWriter(d, new IndexWriterConfig(new StandardAnalyzer()))) {
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < docs; i++) {
+          text.setLength(0);
+          for (int t = 0; t < 32; t++) {
+            text.append('t').append(random.nextInt(10_000)).append(' ');
+          }
+          final Document doc = new Document();
+          doc.add(new TextField("body", text.toString(), Field.Store.NO));
+          writer.addDocument(doc);
+        }
+        writer.forceMerge(1);
+      }
+
+      return System.nanoTime() - start;
+    } finally {
+      IOUtils.rm(path);
+    }
+  }
+
+  /** Routes every byte through writeBytes like {@link CeffIndexOutput} did before, minus its checksum update per call */
+  private static final class BytewiseIndexOutput extends IndexOutput {
+
+    private final IndexOutput delegate;
+    private final byte[] singleByte = new byte[1];
+
+    private BytewiseIndexOutput(IndexOutput delegate) {
+      super(delegate.toString(), delegate.getName());
+      this.delegate = delegate;
+    }
+
+    @Override
+    public void writeByte(byte b) throws IOException {
+      this.singleByte[0] = b;
+      this.delegate.writeBytes(this.singleByte, 0, 1);
+    }
+
+    @Override
+    public void writeBytes(byte[] b, int offset, int length) throws IOException {
+      this.delegate.writeBytes(b, offset, length);
+    }
+
+    @Override
+    public long getFilePointer() {
+      return this.delegate.getFilePointer();
+    }
+
+    @Override
+    public long getChecksum() throws IOException {
+      return this.delegate.getChecksum();
+    }
+
+    @Override
+    public void close() throws IOException {
+      this.delegate.close();
+    }
+  }
+}
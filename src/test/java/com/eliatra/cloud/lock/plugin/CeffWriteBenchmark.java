@@ -0,0 +1,125 @@
+/* 
+ * Copyright (C) 2021 by eliatra Ltd. - All Rights Reserved
+ * Unauthorized copying, usage or modification of this file in its source or binary form, 
+ * via any medium is strictly prohibited.
+ * Proprietary and confidential.
+ * 
+ * https://eliatra.com
+ */
+
+package com.eliatra.cloud.lock.plugin;
+
+import com.eliatra.cloud.lock.lucene.encryption.CeffIndexOutput;
+import com.eliatra.cloud.lock.lucene.encryption.CeffMode;
+import org.apache.lucene.store.ByteBuffersDataOutput;
+import org.apache.lucene.store.ByteBuffersIndexOutput;
+import org.apache.lucene.store.IndexOutput;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Multi-threaded write benchmark for {@link CeffIndexOutput}, not run as part of the tests.
+ *
+ * <p>Compares drawing a random UUID per chunk (the former chunk id scheme, every draw
+ * synchronizes on the shared SecureRandom) with a per file random prefix plus counter (the
+ * current scheme) and measures the end-to-end write throughput, with and without pipelined
+ * encryption. Files are written to heap so that the results are not dominated by disk I/O.
+ *
+ * <p>Usage: CeffWriteBenchmark [threads] [mb per thread] [chunk length]
+ */
+public class CeffWriteBenchmark {
+
+  private static final long ID_DRAWS_PER_THREAD = 1_000_000L;
+
+  public static void main(String[] args) throws Exception {
+    final int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+    final int mbPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+    final int chunkLength = args.length > 2 ? Integer.parseInt(args[2]) : 16 * 1024;
+    final long chunksPerThread = mbPerThread * 1024L * 1024L / chunkLength;
+
+    System.out.println(threads + " threads, " + mbPerThread + " mb per thread, chunk length " + chunkLength);
+
+    for (int round = 0; round < 3; round++) {
+      final long uuidNanos = run(threads, () -> {
+        long sink = 0;
+        for (long k = 0; k < ID_DRAWS_PER_THREAD; k++) {
+          final UUID chunkId = UUID.randomUUID();
+          sink += chunkId.getMostSignificantBits() ^ chunkId.getLeastSignificantBits();
+        }
+        return sink;
+      });
+
+      final long counterNanos = run(threads, () -> {
+        final long prefixMsb = ThreadLocalRandom.current().nextLong();
+        final long prefixLsb = ThreadLocalRandom.current().nextLong();
+        long sink = 0;
+        for (long k = 0; k < ID_DRAWS_PER_THREAD; k++) {
+          sink += prefixMsb ^ (prefixLsb + k);
+        }
+        return sink;
+      });
+
+      final long writeNanos = run(threads, () -> write(chunkLength, chunksPerThread, false));
+      final long pipelinedWriteNanos = run(threads, () -> write(chunkLength, chunksPerThread, true));
+
+      System.out.println("round " + round);
+      System.out.printf("  chunk ids, uuid per chunk:     %8.1f M ids/s%n", (threads * ID_DRAWS_PER_THREAD) / (uuidNanos / 1000d));
+      System.out.printf("  chunk ids, prefix + counter:   %8.1f M ids/s%n", (threads * ID_DRAWS_PER_THREAD) / (counterNanos / 1000d));
+      System.out.printf("  encrypted writes:              %8.1f mb/s%n", (threads * (double) mbPerThread) / (writeNanos / 1_000_000_000d));
+      System.out.printf("  encrypted writes, pipelined:   %8.1f mb/s%n", (threads * (double) mbPerThread) / (pipelinedWriteNanos / 1_000_000_000d));
+    }
+  }
+
+  private static long write(int chunkLength, long chunks, boolean pipelined) throws Exception {
+    final byte[] key = CeffMode.CHACHA20_POLY1305_MODE.randomKey();
+    final byte[] data = new byte[chunkLength];
+    ThreadLocalRandom.current().nextBytes(data);
+
+    try (IndexOutput out = new CeffIndexOutput(
+        new ByteBuffersIndexOutput(ByteBuffersDataOutput.newResettableInstance(), "bench", "bench"),
+        chunkLength, key, CeffMode.CHACHA20_POLY1305_MODE, pipelined)) {
+      for (long k = 0; k < chunks; k++) {
+        out.writeBytes(data, 0, data.length);
+      }
+      return out.getFilePointer();
+    }
+  }
+
+  private interface Task {
+    long run() throws Exception;
+  }
+
+  private static long run(int threads, Task task) throws Exception {
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+    try {
+      final long start = System.nanoTime();
+      final List<Future<Long>> futures = new ArrayList<>();
+
+      for (int t = 0; t < threads; t++) {
+        futures.add(executor.submit(task::run));
+      }
+
+      long sink = 0;
+      for (Future<Long> future : futures) {
+        sink += future.get();
+      }
+
+      final long nanos = System.nanoTime() - start;
+
+      if (sink == 42) {
+        System.out.println();
+      }
+
+      return nanos;
+    } finally {
+      executor.shutdown();
+    }
+  }
+}